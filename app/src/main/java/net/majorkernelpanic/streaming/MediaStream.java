@@ -9,6 +9,9 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.metrics.MetricsRegistry;
+import net.majorkernelpanic.streaming.metrics.StreamMetrics;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStatistics;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
 
 import java.io.IOException;
@@ -68,6 +71,7 @@ public  class MediaStream implements IMediaStream {
     private int mSocketId;
 
     private int mTTL = 64;
+    private String mMetricsName = null;
 
     protected MediaRecorder mMediaRecorder;
     protected MediaCodec mMediaCodec;
@@ -228,6 +232,10 @@ public  class MediaStream implements IMediaStream {
         } else {
             encodeWithMediaRecorder();
         }
+
+        // The metrics are exported under the name of the stream and its SSRC
+        mMetricsName = getClass().getSimpleName() + "-" + Integer.toHexString(getSSRC());
+        MetricsRegistry.register(mMetricsName, getMetrics());
     }
 
     @Override
@@ -249,8 +257,13 @@ public  class MediaStream implements IMediaStream {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            mPacketizer.getRtpSocket().stopReports();
             mStreaming = false;
         }
+        if (mMetricsName != null) {
+            MetricsRegistry.unregister(mMetricsName);
+            mMetricsName = null;
+        }
 
     }
 
@@ -311,6 +324,16 @@ public  class MediaStream implements IMediaStream {
         return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate();
     }
 
+    @Override
+    public ReceiverStatistics getReceiverStatistics() {
+        return mPacketizer.getRtpSocket().getReceiverStatistics();
+    }
+
+    @Override
+    public StreamMetrics getMetrics() {
+        return mPacketizer.getRtpSocket().getMetrics();
+    }
+
 
 
 
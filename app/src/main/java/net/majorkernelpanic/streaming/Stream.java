@@ -24,6 +24,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 
+import net.majorkernelpanic.streaming.metrics.StreamMetrics;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStatistics;
+
 /**
  * An interface that represents a Stream.
  */
@@ -112,6 +115,18 @@ public interface Stream {
      */
     public long getBitrate();
 
+    /**
+     * Returns what the receivers of the stream report in RTCP: loss, jitter and round trip time.
+     * The statistics are updated as reports are received.
+     */
+    public ReceiverStatistics getReceiverStatistics();
+
+    /**
+     * Returns the counters and latency histograms of the stream. While the stream is running,
+     * they can also be read from the {@link net.majorkernelpanic.streaming.metrics.MetricsRegistry}.
+     */
+    public StreamMetrics getMetrics();
+
     /**
      * Returns a description of the stream using SDP.
      * This method can only be called after {@link Stream#configure()}.
@@ -14,7 +14,6 @@ import android.util.Log;
 
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 
 import java.io.File;
 import java.io.IOException;
@@ -200,7 +199,6 @@ public class UVCAACStream extends UVCAudioStream {
         mAudioRecord.startRecording();
         mMediaCodec.start();
 
-        final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
         final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
 
         mThread = new Thread(new Runnable() {
@@ -229,8 +227,8 @@ public class UVCAACStream extends UVCAudioStream {
 
         mThread.start();
 
-        // The packetizer encapsulates this stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(inputStream);
+        // The packetizer encapsulates the output buffers of the codec in an RTP stream and send it over the network
+        ((AACLATMPacketizer) mPacketizer).setMediaCodec(mMediaCodec);
         mPacketizer.start();
 
         mStreaming = true;
@@ -50,9 +50,13 @@ public class UVCAMRNBStream extends UVCAudioStream {
      * Returns a description of the stream using SDP. It can then be included in an SDP file.
      */
     public String getSessionDescription() {
+        AMRNBPacketizer packetizer = (AMRNBPacketizer) mPacketizer;
+        int redundancy = packetizer.getRedundancy() * 20;
         return "m=audio " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
                 "a=rtpmap:96 AMR/8000\r\n" +
-                "a=fmtp:96 octet-align=1;\r\n";
+                "a=fmtp:96 octet-align=1;" + (redundancy > 0 ? " max-red=" + redundancy + ";" : "") + "\r\n" +
+                "a=ptime:" + packetizer.getPtime() + "\r\n" +
+                "a=maxptime:" + (packetizer.getPtime() + redundancy) + "\r\n";
     }
 
     @Override
@@ -13,6 +13,7 @@ import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.mp4.MP4Config;
 import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 
 import java.io.File;
 import java.io.IOException;
@@ -44,13 +45,22 @@ public class UVCH264Stream extends UVCVideoStream {
 
     /**
      * Returns a description of the stream using SDP. It can then be included in an SDP file.
+     * Retransmissions are off by default, they are enabled with {@link RtpSocket#setRetransmission(int, long)}
+     * on the socket of the packetizer. The stream then uses the RTP/AVPF profile so that receivers send NACKs.
      */
     public synchronized String getSessionDescription() throws IllegalStateException {
         if (mConfig == null)
             throw new IllegalStateException("You need to call configure() first !");
-        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
+        RtpSocket socket = mPacketizer.getRtpSocket();
+        int rtx = socket.getRtxPayloadType(), fec = socket.getFecPayloadType();
+        String profile = socket.isRetransmissionEnabled() ? "RTP/AVPF" : "RTP/AVP";
+        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " " + profile + " 96" + (rtx >= 0 ? " " + rtx : "") + (fec >= 0 ? " " + fec : "") + "\r\n" +
                 "a=rtpmap:96 H264/90000\r\n" +
-                "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel() + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + ";\r\n";
+                "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel() + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + ";\r\n" +
+                (socket.isRetransmissionEnabled() ? "a=rtcp-fb:96 nack\r\n" : "") +
+                (rtx >= 0 ? "a=rtpmap:" + rtx + " rtx/90000\r\n" +
+                        "a=fmtp:" + rtx + " apt=96;rtx-time=" + socket.getMaxRetransmissionAge() + "\r\n" : "") +
+                (fec >= 0 ? "a=rtpmap:" + fec + " ulpfec/90000\r\n" : "");
     }
 
     /**
@@ -21,7 +21,9 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.metrics.LatencyTracer;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.video.BitrateController;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import java.io.FileDescriptor;
@@ -79,6 +81,11 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
     protected boolean sendEOS = false;
     protected int mColorFormat;
     private MediaCodec.BufferInfo mBufferInfo;
+    protected boolean mAdaptiveBitrate = false;
+    protected BitrateController mBitrateController = null;
+    // Minimum interval between two frames given to the encoder in us, 0 to keep every frame
+    private volatile long mFrameInterval = 0;
+    private long mNextFrameTime = 0;
 
     // don't use this directly
     public UVCVideoStream() {
@@ -189,6 +196,7 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
                 Log.d(TAG, "mMode is Mediarecorder");
 
             }
+            stopBitrateController();
             super.stop();
             // We need to restart the preview
             if (!mCameraOpenedManually) {
@@ -205,7 +213,10 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
 
     protected synchronized void destroyCamera() {
         if (mCamera != null) {
-            if (mStreaming) super.stop();
+            if (mStreaming) {
+                stopBitrateController();
+                super.stop();
+            }
             //  lockCamera(); unlock the camera so the camera can be used by other acitivity
             mCamera.stopPreview();
             try {
@@ -243,6 +254,57 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
         return mRequestedQuality;
     }
 
+    /**
+     * Adapts the bit rate of the encoder to the network with a {@link BitrateController},
+     * the bit rate of the {@link VideoQuality} is then the maximum. Disabled by default,
+     * only used with the MediaCodec API.
+     */
+    public void setAdaptiveBitrate(boolean adaptive) {
+        mAdaptiveBitrate = adaptive;
+    }
+
+    /** Returns the controller of the bit rate while streaming, or null. */
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    /**
+     * Starts adapting the bit rate of the encoder once it is started.
+     * @param dropFrames Whether the frame rate can be lowered by dropping frames of the camera
+     */
+    protected void startBitrateController(boolean dropFrames) {
+        mFrameInterval = 0;
+        mNextFrameTime = 0;
+        if (!mAdaptiveBitrate) return;
+        mBitrateController = new BitrateController(mMediaCodec, mPacketizer.getRtpSocket(), mQuality);
+        if (dropFrames) {
+            mBitrateController.setCallback(new BitrateController.Callback() {
+                @Override
+                public void onVideoQualityChanged(VideoQuality quality) {
+                    mFrameInterval = quality.framerate < mQuality.framerate ? 1000000L / quality.framerate : 0;
+                }
+            });
+        }
+        mBitrateController.start();
+    }
+
+    protected void stopBitrateController() {
+        if (mBitrateController != null) {
+            mBitrateController.stop();
+            mBitrateController = null;
+        }
+    }
+
+    /** Returns true if the frame of the camera must be dropped to lower the frame rate. */
+    private boolean skipFrame(long timeUs) {
+        long interval = mFrameInterval;
+        if (interval == 0) return false;
+        // Half an interval of tolerance, the camera is not exactly regular
+        if (timeUs < mNextFrameTime - interval / 2) return true;
+        mNextFrameTime = Math.max(mNextFrameTime + interval, timeUs);
+        return false;
+    }
+
     public void setVideoQuality(VideoQuality videoQuality) {
 
         if (!mRequestedQuality.equals(videoQuality)) {
@@ -330,8 +392,11 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
         //I/ACodec﹕ setupVideoEncoder succeeded
         mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
+        startBitrateController(true);
 
 
+        final LatencyTracer tracer = getMetrics().latency;
+
         /**this sentence is quite comment for test*/
         //  for (int i = 0; i < 10; i++) mCamera.addCallbackBuffer(new byte[convertor.getBufferSize()]);
         // mCamera.setPreviewCallbackWithBuffer(callback);
@@ -342,6 +407,9 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
 
                 //every frame is 460800
                 long result = System.nanoTime() / 1000;
+                if (skipFrame(result)) return;
+                // The capture time identifies the frame up to the RtpSocket
+                tracer.begin(result);
                 ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
                 if (inputBuffers == null) Log.d(TAG, "inputBuffer is null");
 
@@ -354,8 +422,10 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
                     frame.get(data);
                     Log.d(TAG, ":" + data.length);
                     convertor.convert(data, inputBuffer);
+                    tracer.mark(result, LatencyTracer.STAGE_CONVERTED);
                     mMediaCodec.queueInputBuffer(inputBufferIndex, 0, inputBuffer.position(),
                             result, 0);
+                    tracer.mark(result, LatencyTracer.STAGE_QUEUED);
 
                 } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     Log.d(TAG, "inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER" + mBufferInfo.size);
@@ -375,7 +445,9 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
 
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+        MediaCodecInputStream input = new MediaCodecInputStream(mMediaCodec);
+        input.setLatencyTracer(tracer);
+        mPacketizer.setInputStream(input);
         mPacketizer.start();
 
         mStreaming = true;
@@ -435,6 +507,8 @@ public class UVCVideoStream extends MediaStream implements IVideoStream {
         //mSurfaceView=surface;
         mMediaCodec.start();
         Log.d(TAG, "mediacodec.start" + mQuality.bitrate + "," + mQuality.framerate);
+        // Frames drawn on the surface can't be dropped, only the bit rate is adapted
+        startBitrateController(false);
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
         if (mMediaCodec == null) {
             Log.d(TAG, "mMediacodec");
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be incremented by several threads without contention.
+ * Each thread adds to one of several cells, the cells are summed when the counter is read.
+ * The cells are far enough apart in the array not to share a cache line.
+ */
+public final class Counter {
+
+	/** Distance between two cells in the array, 8 longs make a 64 bytes cache line. */
+	private static final int PADDING = 8;
+
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long value) {
+		mCells.getAndAdd(cell(), value);
+	}
+
+	/** Returns the sum of the cells, it is not an atomic snapshot when the counter is updated concurrently. */
+	public long get() {
+		long sum = 0;
+		for (int i=0;i<STRIPES;i++) sum += mCells.get(i * PADDING);
+		return sum;
+	}
+
+	public void reset() {
+		for (int i=0;i<STRIPES;i++) mCells.set(i * PADDING, 0);
+	}
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		return ((int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of positive values with a bounded relative error, like an HDR histogram.
+ * Values below 2^{@link #SUB_BITS} are counted exactly, larger values are counted in buckets
+ * given by their highest bit, each split in 2^{@link #SUB_BITS} sub buckets: the error is below 1/2^{@link #SUB_BITS} (3.1%).
+ * Recording a value does not allocate nor lock, the histogram is read without stopping the writers.
+ */
+public final class Histogram {
+
+	/** Precision of the histogram, 5 bits give 32 sub buckets per power of 2. */
+	public static final int SUB_BITS = 5;
+
+	/** Values above are counted as this value. */
+	public static final long MAX_VALUE = (1L << 40) - 1;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(index(MAX_VALUE) + 1);
+	private final AtomicLong mCount = new AtomicLong(), mSum = new AtomicLong();
+	private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE), mMax = new AtomicLong(0);
+
+	/** Records a value, negative values are counted as 0. */
+	public void record(long value) {
+		long v;
+		value = Math.max(0, Math.min(MAX_VALUE, value));
+		mCounts.incrementAndGet(index(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		while (value < (v = mMin.get()) && !mMin.compareAndSet(v, value));
+		while (value > (v = mMax.get()) && !mMax.compareAndSet(v, value));
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMin() {
+		return mCount.get() == 0 ? 0 : mMin.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public double getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : (double) mSum.get() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the values fall, up to the precision of the histogram.
+	 * @param percentile Between 0 and 100
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = 0, total = 0, target;
+		int length = mCounts.length();
+		for (int i=0;i<length;i++) total += mCounts.get(i);
+		if (total == 0) return 0;
+		target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+		for (int i=0;i<length;i++) {
+			count += mCounts.get(i);
+			if (count >= target) return Math.min(highestValue(i), mMax.get());
+		}
+		return mMax.get();
+	}
+
+	public void reset() {
+		for (int i=0;i<mCounts.length();i++) mCounts.set(i, 0);
+		mCount.set(0);
+		mSum.set(0);
+		mMin.set(Long.MAX_VALUE);
+		mMax.set(0);
+	}
+
+	/** Writes the count, min, mean, max and main percentiles as a JSON object. */
+	public void toJson(StringBuilder json) {
+		json.append("{\"count\":").append(getCount())
+		.append(",\"min\":").append(getMin())
+		.append(",\"mean\":").append(Math.round(getMean()))
+		.append(",\"p50\":").append(getValueAtPercentile(50))
+		.append(",\"p90\":").append(getValueAtPercentile(90))
+		.append(",\"p99\":").append(getValueAtPercentile(99))
+		.append(",\"p999\":").append(getValueAtPercentile(99.9))
+		.append(",\"max\":").append(getMax())
+		.append('}');
+	}
+
+	/** The sub bucket of a value: its highest bit gives the bucket, the next SUB_BITS bits the sub bucket. */
+	static int index(long value) {
+		int bucket;
+		if (value < SUB_BUCKETS << 1) return (int) value;
+		bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (bucket + 1) * SUB_BUCKETS + (int) (value >>> bucket) - SUB_BUCKETS;
+	}
+
+	/** The highest value counted in a sub bucket. */
+	static long highestValue(int index) {
+		int bucket;
+		if (index < SUB_BUCKETS << 1) return index;
+		bucket = index / SUB_BUCKETS - 1;
+		return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1) << bucket) - 1;
+	}
+
+}
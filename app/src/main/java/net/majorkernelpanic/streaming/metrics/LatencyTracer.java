@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces the frames of a video stream from the camera to the network. Each frame is identified
+ * by its capture time in us, which is also its presentation time in the encoder and its RTP timestamp,
+ * and the time at which it reaches each stage of the pipeline is recorded in a preallocated ring.
+ *
+ * The time spent in each stage is added to a {@link Histogram}, and the last frames of the ring
+ * can be dumped in the trace event format of Chrome (chrome://tracing, Perfetto).
+ * Marking a stage does not allocate nor lock.
+ */
+public final class LatencyTracer {
+
+	/** The frame is received from the camera. */
+	public static final int STAGE_CAPTURE = 0;
+	/** The frame is converted from NV21 to the color format of the encoder, once an input buffer of the encoder is available. */
+	public static final int STAGE_CONVERTED = 1;
+	/** The frame is queued in an input buffer of the encoder. */
+	public static final int STAGE_QUEUED = 2;
+	/** The frame is output by the encoder. */
+	public static final int STAGE_ENCODED = 3;
+	/** The packets of the frame are committed to the RtpSocket. */
+	public static final int STAGE_PACKETIZED = 4;
+	/** The last packet of the frame is sent. */
+	public static final int STAGE_SENT = 5;
+
+	public static final int STAGE_COUNT = 6;
+
+	private static final String[] STAGE_NAMES = {
+		"capture", "nv21_conversion", "queue_input_buffer", "encoder", "packetizer", "socket_send"
+	};
+
+	/** Default number of frames in the ring. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int mMask;
+	private final AtomicLongArray mFrames, mTimes;
+	private final AtomicInteger mNext = new AtomicInteger();
+	private final Histogram[] mStages = new Histogram[STAGE_COUNT];
+	private final Histogram mTotal = new Histogram();
+	private volatile boolean mEnabled = true;
+
+	public LatencyTracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/** @param capacity The number of frames kept, rounded up to a power of 2 */
+	public LatencyTracer(int capacity) {
+		int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		mMask = n - 1;
+		mFrames = new AtomicLongArray(n);
+		mTimes = new AtomicLongArray(n * STAGE_COUNT);
+		for (int i=0;i<STAGE_COUNT;i++) mStages[i] = new Histogram();
+		for (int i=0;i<n;i++) mFrames.set(i, -1);
+	}
+
+	/** Enabled by default. */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+
+	/**
+	 * Starts tracing a frame received from the camera.
+	 * @param frame The capture time of the frame in us, on the timebase of System.nanoTime()
+	 */
+	public void begin(long frame) {
+		if (!mEnabled) return;
+		int slot = mNext.getAndIncrement() & mMask, offset = slot * STAGE_COUNT;
+		// The slot is invalidated while it is cleared
+		mFrames.set(slot, -1);
+		for (int i=1;i<STAGE_COUNT;i++) mTimes.lazySet(offset + i, 0);
+		mTimes.set(offset, System.nanoTime());
+		mFrames.set(slot, frame);
+	}
+
+	/**
+	 * Records that a frame reached a stage, frames that were not started with
+	 * {@link #begin(long)} or that left the ring are ignored.
+	 * @param frame The capture time of the frame in us
+	 */
+	public void mark(long frame, int stage) {
+		int slot, offset, previous;
+		long now, time;
+		if (!mEnabled) return;
+		if ((slot = find(frame)) < 0) return;
+		now = System.nanoTime();
+		offset = slot * STAGE_COUNT;
+		// A stage reached several times by a frame (one per packet...) is only recorded the first time
+		if (!mTimes.compareAndSet(offset + stage, 0, now)) return;
+		for (previous=stage-1;previous>=0;previous--) {
+			if ((time = mTimes.get(offset + previous)) != 0) {
+				mStages[stage].record((now - time) / 1000);
+				break;
+			}
+		}
+		if (stage == STAGE_SENT) {
+			mTotal.record((now - mTimes.get(offset)) / 1000);
+		}
+	}
+
+	/** Returns the time spent by the frames before reaching a stage since the previous one, in us. */
+	public Histogram getStageLatency(int stage) {
+		return mStages[stage];
+	}
+
+	/** Returns the time between the capture of the frames and the sending of their last packet, in us. */
+	public Histogram getTotalLatency() {
+		return mTotal;
+	}
+
+	public void reset() {
+		for (int i=0;i<=mMask;i++) mFrames.set(i, -1);
+		for (int i=0;i<STAGE_COUNT;i++) mStages[i].reset();
+		mTotal.reset();
+	}
+
+	/** Writes the percentiles of each stage and of the whole pipeline as a JSON object, in us. */
+	public void toJson(StringBuilder json) {
+		json.append('{');
+		for (int i=1;i<STAGE_COUNT;i++) {
+			json.append('"').append(STAGE_NAMES[i]).append("\":");
+			mStages[i].toJson(json);
+			json.append(',');
+		}
+		json.append("\"total\":");
+		mTotal.toJson(json);
+		json.append('}');
+	}
+
+	/**
+	 * Writes the stages of the frames of the ring as complete events of the Chrome trace format,
+	 * one thread per stage, separated by commas. Frames still being traced may be incomplete.
+	 * @param pid The process identifier of the events, to tell the streams apart in the trace
+	 * @return Whether an event was written
+	 */
+	public boolean writeChromeTrace(StringBuilder json, int pid) {
+		boolean first = true;
+		int offset, previous;
+		long frame, start, end;
+		for (int i=1;i<STAGE_COUNT;i++) {
+			if (!first) json.append(',');
+			first = false;
+			json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+			.append(",\"tid\":").append(i)
+			.append(",\"args\":{\"name\":\"").append(STAGE_NAMES[i]).append("\"}}");
+		}
+		for (int slot=0;slot<=mMask;slot++) {
+			if ((frame = mFrames.get(slot)) < 0) continue;
+			offset = slot * STAGE_COUNT;
+			for (int i=1;i<STAGE_COUNT;i++) {
+				if ((end = mTimes.get(offset + i)) == 0) continue;
+				start = 0;
+				for (previous=i-1;previous>=0 && start == 0;previous--) start = mTimes.get(offset + previous);
+				if (start == 0 || end < start) continue;
+				json.append(",{\"name\":\"").append(STAGE_NAMES[i])
+				.append("\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":").append(pid)
+				.append(",\"tid\":").append(i)
+				.append(",\"ts\":");
+				appendMicros(json, start);
+				json.append(",\"dur\":");
+				appendMicros(json, end - start);
+				json.append(",\"args\":{\"frame\":").append(frame).append("}}");
+			}
+		}
+		return !first;
+	}
+
+	/** Writes a duration in ns as us with 3 decimals, the unit of the trace format. */
+	private static void appendMicros(StringBuilder json, long ns) {
+		long fraction = ns % 1000;
+		json.append(ns / 1000).append('.');
+		if (fraction < 100) json.append('0');
+		if (fraction < 10) json.append('0');
+		json.append(fraction);
+	}
+
+	/** Looks for a frame from the most recent one, the frames in flight are at the end of the ring. */
+	private int find(long frame) {
+		int last = mNext.get(), slot, count = last >= 0 && last <= mMask ? last : mMask + 1;
+		for (int i=1;i<=count;i++) {
+			slot = (last - i) & mMask;
+			if (mFrames.get(slot) == frame) return slot;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The metrics of the streams currently running, by name.
+ * Streams register their {@link StreamMetrics} when they start and remove them when they stop.
+ * A snapshot of every stream can be read in JSON with {@link #toJson()}, or over HTTP with a {@link MetricsServer}.
+ * The last frames traced by the {@link LatencyTracer} of each stream can be dumped with {@link #toChromeTrace()}.
+ */
+public final class MetricsRegistry {
+
+	private static final Map<String, StreamMetrics> sMetrics = new LinkedHashMap<String, StreamMetrics>();
+
+	private MetricsRegistry() {}
+
+	public static synchronized void register(String name, StreamMetrics metrics) {
+		sMetrics.put(name, metrics);
+	}
+
+	public static synchronized void unregister(String name) {
+		sMetrics.remove(name);
+	}
+
+	public static synchronized StreamMetrics get(String name) {
+		return sMetrics.get(name);
+	}
+
+	/** Returns a snapshot of the metrics of every stream, in a JSON object with one member per stream. */
+	public static synchronized String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<String, StreamMetrics> entry : sMetrics.entrySet()) {
+			if (json.length() > 1) json.append(',');
+			json.append('"').append(escape(entry.getKey())).append("\":");
+			entry.getValue().toJson(json);
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Returns the frames traced by every stream in the trace event format of Chrome,
+	 * each stream being a process and each stage a thread.
+	 */
+	public static synchronized String toChromeTrace() {
+		StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+		int pid = 0;
+		for (Map.Entry<String, StreamMetrics> entry : sMetrics.entrySet()) {
+			if (pid++ > 0) json.append(',');
+			json.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid)
+			.append(",\"args\":{\"name\":\"").append(escape(entry.getKey())).append("\"}},");
+			entry.getValue().latency.writeChromeTrace(json, pid);
+		}
+		return json.append("],\"displayTimeUnit\":\"ms\"}").toString();
+	}
+
+	private static String escape(String name) {
+		return name.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.util.Log;
+
+/**
+ * A minimal HTTP server bound to the loopback interface that serves the snapshot of
+ * {@link MetricsRegistry#toJson()} on GET /metrics and the trace of {@link MetricsRegistry#toChromeTrace()}
+ * on GET /trace, e.g. through "adb forward tcp:8086 tcp:8086".
+ * Requests are served one at a time by the thread of the server.
+ */
+public class MetricsServer implements Runnable {
+
+	public final static String TAG = "MetricsServer";
+
+	/** Default port of the server. */
+	public final static int DEFAULT_PORT = 8086;
+
+	private final int mPort;
+	private ServerSocket mServer = null;
+	private Thread mThread = null;
+
+	public MetricsServer() {
+		this(DEFAULT_PORT);
+	}
+
+	public MetricsServer(int port) {
+		mPort = port;
+	}
+
+	public synchronized void start() throws IOException {
+		if (mThread != null) return;
+		mServer = new ServerSocket(mPort, 4, InetAddress.getByName("127.0.0.1"));
+		mThread = new Thread(this, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public synchronized void stop() {
+		if (mThread == null) return;
+		try {
+			mServer.close();
+		} catch (IOException ignore) {}
+		mThread.interrupt();
+		mThread = null;
+		mServer = null;
+	}
+
+	@Override
+	public void run() {
+		ServerSocket server = mServer;
+		while (!Thread.interrupted()) {
+			Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				// The server was stopped
+				break;
+			}
+			try {
+				client.setSoTimeout(2000);
+				serve(client);
+			} catch (IOException e) {
+				Log.e(TAG, "Request failed: "+e.getMessage());
+			} finally {
+				try {
+					client.close();
+				} catch (IOException ignore) {}
+			}
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+		String request = input.readLine(), line, status, body;
+		if (request == null) return;
+		// The headers are ignored
+		while ((line = input.readLine()) != null && line.length() > 0);
+
+		String[] parts = request.split(" ");
+		if (parts.length < 2 || !parts[0].equals("GET")) {
+			status = "405 Method Not Allowed";
+			body = "";
+		} else if (parts[1].equals("/metrics") || parts[1].equals("/")) {
+			status = "200 OK";
+			body = MetricsRegistry.toJson();
+		} else if (parts[1].equals("/trace")) {
+			status = "200 OK";
+			body = MetricsRegistry.toChromeTrace();
+		} else {
+			status = "404 Not Found";
+			body = "";
+		}
+
+		byte[] content = body.getBytes("UTF-8");
+		OutputStream output = client.getOutputStream();
+		output.write(("HTTP/1.0 " + status + "\r\n" +
+				"Content-Type: application/json\r\n" +
+				"Content-Length: " + content.length + "\r\n" +
+				"Cache-Control: no-cache\r\n" +
+				"Connection: close\r\n\r\n").getBytes("US-ASCII"));
+		output.write(content);
+		output.flush();
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+/**
+ * The metrics of an RTP stream, updated by its packetizer and its {@link net.majorkernelpanic.streaming.rtp.RtpSocket}.
+ * They can be read at any time while the stream is running, see {@link MetricsRegistry}.
+ * Durations are in us.
+ */
+public class StreamMetrics {
+
+	/** Packets and bytes sent, including the RTP headers. */
+	public final Counter packetsSent = new Counter(), bytesSent = new Counter();
+
+	/** Packets and frames dropped because the FIFO of the socket was full. */
+	public final Counter packetsDropped = new Counter(), framesDropped = new Counter();
+
+	/** Times the packetizer lost the boundaries of the frames in the stream of the encoder. */
+	public final Counter resyncs = new Counter();
+
+	/** Packets waiting in the FIFO of the socket when a packet is sent. */
+	public final Histogram fifoDepth = new Histogram();
+
+	/** Delay between the output of a frame by the encoder and the sending of each of its packets. */
+	public final Histogram encoderToWire = new Histogram();
+
+	/** Time spent by the packetizer to split a frame in packets, including the waits for a free buffer. */
+	public final Histogram packetizeTime = new Histogram();
+
+	/** Time spent by the frames in each stage of the pipeline, for video streams encoded from buffers. */
+	public final LatencyTracer latency = new LatencyTracer();
+
+	public void reset() {
+		packetsSent.reset();
+		bytesSent.reset();
+		packetsDropped.reset();
+		framesDropped.reset();
+		resyncs.reset();
+		fifoDepth.reset();
+		encoderToWire.reset();
+		packetizeTime.reset();
+		latency.reset();
+	}
+
+	/** Writes a snapshot of the metrics as a JSON object. */
+	public void toJson(StringBuilder json) {
+		json.append("{\"packets_sent\":").append(packetsSent.get())
+		.append(",\"bytes_sent\":").append(bytesSent.get())
+		.append(",\"packets_dropped\":").append(packetsDropped.get())
+		.append(",\"frames_dropped\":").append(framesDropped.get())
+		.append(",\"resyncs\":").append(resyncs.get())
+		.append(",\"fifo_depth\":");
+		fifoDepth.toJson(json);
+		json.append(",\"encoder_to_wire_us\":");
+		encoderToWire.toJson(json);
+		json.append(",\"packetize_time_us\":");
+		packetizeTime.toJson(json);
+		json.append(",\"latency_us\":");
+		latency.toJson(json);
+		json.append('}');
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder json = new StringBuilder();
+		toJson(json);
+		return json.toString();
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * What the receivers of a stream report about it in RTCP receiver reports (RFC 3550)
+ * and extended reports (RFC 3611). It is updated by the {@link SenderReport} of the stream
+ * as reports are received, the getters always return the values of the last report.
+ */
+public class ReceiverStatistics {
+
+	private long mReports = 0, mLastReport = -1;
+	private int mFractionLost = 0, mCumulativeLost = 0;
+	private long mHighestSequence = 0, mJitter = 0, mClock = 0;
+	private long mRoundTripTime = -1;
+
+	/** Number of report blocks received about the stream. */
+	public synchronized long getReports() {
+		return mReports;
+	}
+
+	/** When the last report was received in ms, see SystemClock.elapsedRealtime(). -1 if none was. */
+	public synchronized long getLastReportTime() {
+		return mLastReport;
+	}
+
+	/** Fraction of the packets lost since the previous report, between 0 and 1. */
+	public synchronized float getFractionLost() {
+		return mFractionLost / 256f;
+	}
+
+	/** Number of packets lost since the beginning of the reception, may be negative with duplicates. */
+	public synchronized int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Extended highest sequence number received: the cycles of the sequence number in the 16 high bits. */
+	public synchronized long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Interarrival jitter in units of the RTP clock of the stream. */
+	public synchronized long getJitter() {
+		return mJitter;
+	}
+
+	/** Interarrival jitter in ms, -1 if the clock frequency of the stream is not known. */
+	public synchronized long getJitterMs() {
+		return mClock > 0 ? mJitter * 1000 / mClock : -1;
+	}
+
+	/** Round trip time in ms measured with the last report, -1 if unknown. */
+	public synchronized long getRoundTripTime() {
+		return mRoundTripTime;
+	}
+
+	synchronized void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	/** A report block of an RR or an SR, rtt is -1 if it could not be computed. */
+	synchronized void update(long now, int fractionLost, int cumulativeLost, long highestSequence, long jitter, long rtt) {
+		mReports++;
+		mLastReport = now;
+		mFractionLost = fractionLost;
+		mCumulativeLost = cumulativeLost;
+		mHighestSequence = highestSequence;
+		mJitter = jitter;
+		if (rtt >= 0) mRoundTripTime = rtt;
+	}
+
+	/**
+	 * A Statistics Summary block of an XR, the loss is computed on the range of sequence numbers.
+	 * lost and jitter are -1 if they are not reported.
+	 */
+	synchronized void updateSummary(long now, int lost, int expected, long jitter) {
+		mReports++;
+		mLastReport = now;
+		if (lost >= 0 && expected > 0) mFractionLost = (int) Math.min(255, lost * 256L / expected);
+		if (jitter >= 0) mJitter = jitter;
+	}
+
+	/** A VoIP Metrics block of an XR. */
+	synchronized void updateMetrics(long now, int lossRate, long rtt) {
+		mReports++;
+		mLastReport = now;
+		mFractionLost = lossRate;
+		if (rtt > 0) mRoundTripTime = rtt;
+	}
+
+	synchronized void reset() {
+		mReports = 0;
+		mLastReport = -1;
+		mFractionLost = mCumulativeLost = 0;
+		mHighestSequence = mJitter = 0;
+		mRoundTripTime = -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "lost: "+mFractionLost*100/256+"% ("+mCumulativeLost+"), jitter: "+getJitterMs()+" ms, rtt: "+mRoundTripTime+" ms";
+	}
+
+}
@@ -28,19 +28,81 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.IllegalSelectorException;
+import java.util.Random;
+
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.MediaClock;
 
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * Reports are sent in compound packets with an SDES CNAME, by a thread of their own at the
+ * randomized intervals of the RFC 3550, even when no RTP packet is being sent. Their NTP
+ * timestamp is the time at which they are sent, given by a {@link MediaClock}, and their
+ * RTP timestamp is extrapolated from the last RTP packet.
+ * The receiver reports and extended reports sent back to the socket of the sender reports
+ * are parsed by the same thread, see {@link #getReceiverStatistics()}.
  */
 public class SenderReport {
 
+	public static final String TAG = "SenderReport";
+
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
+
+	/** Size of the UDP and IP headers, counted in the average size of RTCP packets. */
+	private static final int UDP_IP_OVERHEAD = 28;
+
+	/** Fraction of the bandwidth of the session used by RTCP, and the share of the senders. */
+	private static final float RTCP_BANDWIDTH_FRACTION = 0.05f, SENDER_BANDWIDTH_FRACTION = 0.25f;
+
+	/** Compensates the randomization of the interval (RFC 3550, section 6.3.1). */
+	private static final double COMPENSATION = 2.71828 - 1.5;
+
+	/** Maximum number of receivers counted in the members of the session. */
+	private static final int MAX_RECEIVERS = 16;
+
+	/** CNAME used by default by every report, so that receivers know that the streams go together. */
+	private static final String sCname;
+
+	static {
+		// A random identifier, as allowed by the RFC 7022
+		Random random = new Random();
+		StringBuilder cname = new StringBuilder();
+		for (int i=0;i<3;i++) cname.append(String.format("%08x", random.nextInt()));
+		sCname = cname.toString();
+	}
+
+	/** RTCP packet types and XR block types (RFC 3550 and RFC 3611). */
+	private static final int PT_SR = 200, PT_RR = 201, PT_RTPFB = 205, PT_XR = 207;
+	private static final int FMT_GENERIC_NACK = 1;
+	private static final int BT_STATISTICS_SUMMARY = 6, BT_VOIP_METRICS = 7;
+
+	/** Number of sender reports remembered to compute round trip times. */
+	private static final int HISTORY_LENGTH = 8;
+
+	/** Maximum delay for the thread to notice that it was stopped, in ms. */
+	private static final int STOP_DELAY = 500;
+
+	public interface Listener {
+		/** Called by the thread receiving the reports, after the statistics have been updated. */
+		public void onReceiverReport(SenderReport report, ReceiverStatistics statistics);
+	}
+
+	public interface NackListener {
+		/**
+		 * Called by the thread receiving the reports for each entry of a generic NACK (RFC 4585).
+		 * @param pid The sequence number of a lost packet
+		 * @param blp A bit mask of the 16 following packets also lost, the least significant bit is pid+1
+		 */
+		public void onNack(int pid, int blp);
+	}
 	
 	private MulticastSocket usock;
 	private DatagramPacket upack;
@@ -50,9 +112,34 @@ public class SenderReport {
 	private byte[] mBuffer = new byte[MTU];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
-	private long interval, delta, now, oldnow;
+	private long interval;
 	private byte mTcpHeader[];
 
+	private MediaClock mClock = MediaClock.getDefault();
+	private long mClockRate = 0, mLastTimestamp = 0, mLastRtp = 0;
+	private byte[] mCname = sCname.getBytes();
+	private long mBandwidth = 0, mMeasuredBandwidth = 0;
+	private int mLastOctetCount = 0;
+	private long mLastReport = 0;
+	private volatile float mAverageSize = PACKET_LENGTH + UDP_IP_OVERHEAD;
+	private final int[] mReceivers = new int[MAX_RECEIVERS];
+	private int mReceiverCount = 0;
+	private final Random mRandom = new Random();
+
+	private InterleavedWriter mWriter = null;
+	private InterleavedWriter.Frame mFrame;
+	private ByteBuffer mFrameBuffer;
+	private volatile boolean mFramePending = false;
+
+	private final ReceiverStatistics mStatistics = new ReceiverStatistics();
+	private volatile Listener mListener = null;
+	private volatile NackListener mNackListener = null;
+	private volatile Thread mThread = null;
+
+	// Middle 32 bits of the NTP timestamps of the last reports, and when they were sent
+	private final long[] mSentNtp = new long[HISTORY_LENGTH], mSentTime = new long[HISTORY_LENGTH];
+	private int mSentIndex = 0;
+
 	public SenderReport(int ssrc) throws IOException {
 		super();
 		this.mSSRC = ssrc;
@@ -98,12 +185,25 @@ public class SenderReport {
 		
 	}
 
+	/** Stops the thread and closes the socket. */
 	public void close() {
+		stop();
 		usock.close();
 	}
 
 	/**
-	 * Sets the temporal interval between two RTCP Sender Reports.
+	 * Stops sending reports, called when the stream stops. The thread is started again
+	 * by {@link #setDestination(InetAddress, int)} or {@link #setOutputStream(OutputStream, byte)}.
+	 */
+	public synchronized void stop() {
+		// The thread notices it within STOP_DELAY ms
+		if (mThread != null) mThread.interrupt();
+		mThread = null;
+	}
+
+	/**
+	 * Sets the minimum interval between two RTCP Sender Reports, the actual
+	 * interval is randomized and grows with the number of receivers (RFC 3550).
 	 * Default interval is set to 3 seconds.
 	 * Set 0 to disable RTCP.
 	 * @param interval The interval in milliseconds
@@ -112,33 +212,49 @@ public class SenderReport {
 		this.interval = interval;
 	}	
 
+	/**
+	 * Sets the bandwidth of the session in bit per second, 5% of it is used by RTCP.
+	 * By default, the bit rate of the stream measured between two reports is used.
+	 */
+	public void setBandwidth(long bandwidth) {
+		mBandwidth = bandwidth;
+	}
+
+	/**
+	 * Sets the CNAME of the reports. Every stream of a session must have the same CNAME,
+	 * by default a random identifier shared by all the reports is used.
+	 */
+	public synchronized void setCname(String cname) {
+		byte[] bytes = cname.getBytes();
+		if (bytes.length > 255) throw new IllegalArgumentException("The CNAME is too long");
+		mCname = bytes;
+	}
+
+	public String getCname() {
+		return new String(mCname);
+	}
+
+	/** Sets the clock giving the NTP timestamps of the reports, see {@link MediaClock}. */
+	public void setMediaClock(MediaClock clock) {
+		mClock = clock;
+	}
+
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
 	 * @param length The length of the packet 
+	 * @param timestamp
+	 *            The capture time of the packet in ns, see {@link MediaClock}.
 	 * @param rtpts
 	 *            The RTP timestamp.
-	 * @throws IOException 
 	 **/
-	public void update(int length, long rtpts) throws IOException {
+	public synchronized void update(int length, long timestamp, long rtpts) {
 		mPacketCount += 1;
 		mOctetCount += length;
-		setLong(mPacketCount, 20, 24);
-		setLong(mOctetCount, 24, 28);
-
-		now = SystemClock.elapsedRealtime();
-		delta += oldnow != 0 ? now-oldnow : 0;
-		oldnow = now;
-		if (interval>0) {
-			if (delta>=interval) {
-				// We send a Sender Report
-				send(System.nanoTime(), rtpts);
-				delta = 0;
-			}
-		}
-		
+		mLastTimestamp = timestamp;
+		mLastRtp = rtpts;
 	}
 
-	public void setSSRC(int ssrc) {
+	public synchronized void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
 		setLong(ssrc,4,8);
 		mPacketCount = 0;
@@ -152,17 +268,284 @@ public class SenderReport {
 		mPort = dport;
 		upack.setPort(dport);
 		upack.setAddress(dest);
+		start();
+	}
+
+	/** Sets the clock frequency of the stream in Hz, to extrapolate the RTP timestamps and convert the jitter in ms. */
+	public synchronized void setClockFrequency(long clock) {
+		mClockRate = clock;
+		mStatistics.setClockFrequency(clock);
+	}
+
+	/** What the receivers report about the stream, updated as reports are received. */
+	public ReceiverStatistics getReceiverStatistics() {
+		return mStatistics;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Receives the generic NACKs about the stream, see {@link NackListener}. */
+	public void setNackListener(NackListener listener) {
+		mNackListener = listener;
+	}
+
+	/**
+	 * Parses a compound RTCP packet sent by a receiver of the stream.
+	 * Reports received on the UDP socket of the sender reports are parsed automatically,
+	 * this method is used for reports interleaved in an RTSP connection.
+	 * @return false if the packet is not a valid RTCP packet
+	 */
+	public boolean receive(byte[] buffer, int offset, int length) {
+		long now = System.nanoTime();
+		int end = offset + length, pt, count, size;
+		boolean report = false;
+
+		mAverageSize = (length + UDP_IP_OVERHEAD) / 16f + mAverageSize * 15 / 16;
+
+		while (end - offset >= 8) {
+			// Version must be 2
+			if ((buffer[offset] & 0xC0) != 0x80) return false;
+			count = buffer[offset] & 0x1F;
+			pt = buffer[offset+1] & 0xFF;
+			size = ((buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF)) * 4 + 4;
+			if (size > end - offset) return false;
+
+			if (pt == PT_RR || pt == PT_SR) addReceiver(getInt(buffer, offset + 4));
+
+			if (pt == PT_RR) {
+				report |= parseReportBlocks(buffer, offset + 8, count, offset + size, now);
+			} else if (pt == PT_SR) {
+				// Report blocks follow the 20 bytes long sender info
+				report |= parseReportBlocks(buffer, offset + 28, count, offset + size, now);
+			} else if (pt == PT_XR) {
+				report |= parseExtendedReport(buffer, offset + 8, offset + size);
+			} else if (pt == PT_RTPFB && count == FMT_GENERIC_NACK && size >= 12) {
+				parseNack(buffer, offset, offset + size);
+			}
+
+			offset += size;
+		}
+
+		if (report) {
+			Listener listener = mListener;
+			if (listener != null) listener.onReceiverReport(this, mStatistics);
+		}
+		return true;
+	}
+
+	/** Parses the report blocks of an RR or an SR, only the one about our SSRC is used. */
+	private boolean parseReportBlocks(byte[] buffer, int offset, int count, int end, long now) {
+		long lsr, dlsr, rtt;
+		int cumulativeLost;
+		for (int i=0; i<count && offset+24<=end; i++, offset+=24) {
+			if (getInt(buffer, offset) != mSSRC) continue;
+			// 24 bits signed
+			cumulativeLost = (buffer[offset+5] & 0xFF) << 16 | (buffer[offset+6] & 0xFF) << 8 | (buffer[offset+7] & 0xFF);
+			if ((cumulativeLost & 0x800000) != 0) cumulativeLost |= 0xFF000000;
+			lsr = getInt(buffer, offset+16) & 0xFFFFFFFFL;
+			dlsr = getInt(buffer, offset+20) & 0xFFFFFFFFL;
+			rtt = roundTripTime(lsr, dlsr, now);
+			mStatistics.update(SystemClock.elapsedRealtime(),
+					buffer[offset+4] & 0xFF,
+					cumulativeLost,
+					getInt(buffer, offset+8) & 0xFFFFFFFFL,
+					getInt(buffer, offset+12) & 0xFFFFFFFFL,
+					rtt);
+			return true;
+		}
+		return false;
+	}
+
+	/** Parses a generic NACK, the NACKs about other streams are ignored. */
+	private void parseNack(byte[] buffer, int offset, int end) {
+		NackListener listener = mNackListener;
+		// The SSRC of the media source follows the SSRC of the sender of the NACK
+		if (listener == null || getInt(buffer, offset+8) != mSSRC) return;
+		for (offset += 12; offset+4 <= end; offset += 4) {
+			listener.onNack((buffer[offset] & 0xFF) << 8 | (buffer[offset+1] & 0xFF),
+					(buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF));
+		}
+	}
+
+	/** Parses the Statistics Summary and VoIP Metrics blocks of an XR about our SSRC. */
+	private boolean parseExtendedReport(byte[] buffer, int offset, int end) {
+		int bt, size, expected;
+		boolean report = false;
+		while (end - offset >= 4) {
+			bt = buffer[offset] & 0xFF;
+			size = ((buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF)) * 4 + 4;
+			if (size > end - offset) break;
+			if (bt == BT_STATISTICS_SUMMARY && size >= 40 && getInt(buffer, offset+4) == mSSRC) {
+				// The range of sequence numbers is [begin_seq, end_seq[
+				expected = ((buffer[offset+10] & 0xFF) << 8 | (buffer[offset+11] & 0xFF))
+						- ((buffer[offset+8] & 0xFF) << 8 | (buffer[offset+9] & 0xFF));
+				if (expected < 0) expected += 65536;
+				// The flags L (0x80), D (0x40) and J (0x20) tell whether the loss, the duplicates
+				// and the jitter are reported, the mean jitter is the third jitter field
+				mStatistics.updateSummary(SystemClock.elapsedRealtime(),
+						(buffer[offset+1] & 0x80) != 0 ? getInt(buffer, offset+12) : -1, expected,
+						(buffer[offset+1] & 0x20) != 0 ? getInt(buffer, offset+28) & 0xFFFFFFFFL : -1);
+				report = true;
+			} else if (bt == BT_VOIP_METRICS && size >= 36 && getInt(buffer, offset+4) == mSSRC) {
+				// The loss rate is a fraction in 1/256, the round trip delay is in ms
+				mStatistics.updateMetrics(SystemClock.elapsedRealtime(),
+						buffer[offset+8] & 0xFF,
+						(buffer[offset+16] & 0xFF) << 8 | (buffer[offset+17] & 0xFF));
+				report = true;
+			}
+			offset += size;
+		}
+		return report;
+	}
+
+	/**
+	 * The round trip time in ms, computed with when the sender report lsr was sent instead of its
+	 * NTP timestamp, which is the capture time of a packet. -1 if the report is unknown.
+	 * @param dlsr The delay since the last sender report, in 1/65536 s
+	 */
+	private long roundTripTime(long lsr, long dlsr, long now) {
+		if (lsr == 0) return -1;
+		synchronized (mSentTime) {
+			for (int i=0;i<HISTORY_LENGTH;i++) {
+				if (mSentNtp[i] == lsr && mSentTime[i] != 0) {
+					return Math.max(0, (now - mSentTime[i]) / 1000000 - dlsr * 1000 / 65536);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 24 | (buffer[offset+1] & 0xFF) << 16 |
+				(buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF);
+	}
+
+	/** Counts the receivers of the stream, to compute the interval between reports. */
+	private synchronized void addReceiver(int ssrc) {
+		for (int i=0;i<mReceiverCount;i++) {
+			if (mReceivers[i] == ssrc) return;
+		}
+		if (mReceiverCount < MAX_RECEIVERS) mReceivers[mReceiverCount++] = ssrc;
+	}
+
+	/**
+	 * Starts the thread that sends the reports when they are due, and receives the
+	 * reports sent to the UDP socket in the meantime. It stops when the socket is closed, or with {@link #stop()}.
+	 * It is started by {@link #setDestination(InetAddress, int)} and {@link #setOutputStream(OutputStream, byte)}.
+	 */
+	public synchronized void start() {
+		if (mThread != null) return;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[MTU];
+				DatagramPacket packet = new DatagramPacket(buffer, MTU);
+				long next = SystemClock.elapsedRealtime() + nextInterval(true), wait;
+				try {
+					// A thread that was stopped may still be waiting when the next one starts
+					while (!Thread.interrupted() && mThread == Thread.currentThread()) {
+						wait = next - SystemClock.elapsedRealtime();
+						if (wait <= 0) {
+							try {
+								sendReport();
+							} catch (IOException e) {
+								Log.e(TAG, "Sender report not sent: "+e.getMessage());
+							}
+							next = SystemClock.elapsedRealtime() + nextInterval(false);
+							continue;
+						}
+						usock.setSoTimeout((int) Math.min(wait, STOP_DELAY));
+						packet.setLength(MTU);
+						try {
+							usock.receive(packet);
+						} catch (SocketTimeoutException e) {
+							continue;
+						}
+						if (!receive(buffer, 0, packet.getLength())) {
+							Log.e(TAG, "Invalid RTCP packet received");
+						}
+					}
+				} catch (IOException ignore) {
+					// The socket was closed
+				}
+			}
+		}, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Computes the delay before the next report in ms (RFC 3550, section 6.3.1). We are the only
+	 * sender: when the receivers are numerous, the sender gets 25% of the bandwidth of RTCP.
+	 * @param initial Whether it is the first report, the minimum interval is then halved
+	 */
+	synchronized long nextInterval(boolean initial) {
+		double bandwidth, c, n, td;
+		int members = Math.max(2, mReceiverCount + 1);
+		if (interval <= 0) return 1000;
+		bandwidth = (mBandwidth > 0 ? mBandwidth : mMeasuredBandwidth) / 8 * RTCP_BANDWIDTH_FRACTION;
+		if (1 <= members * SENDER_BANDWIDTH_FRACTION) {
+			c = mAverageSize / (bandwidth * SENDER_BANDWIDTH_FRACTION);
+			n = 1;
+		} else {
+			c = mAverageSize / bandwidth;
+			n = members;
+		}
+		td = Math.max(initial ? interval / 2 : interval, bandwidth > 0 ? n * c * 1000 : 0);
+		return (long) (td * (0.5 + mRandom.nextDouble()) / COMPENSATION);
+	}
+
+	/**
+	 * Sends a report, if RTP packets were sent. The RTP timestamp of the last packet is
+	 * extrapolated to the current time.
+	 */
+	private synchronized void sendReport() throws IOException {
+		long now = SystemClock.elapsedRealtime(), time = System.nanoTime(), rtpts = mLastRtp;
+
+		if (mLastReport != 0 && now > mLastReport) {
+			mMeasuredBandwidth = (mOctetCount - mLastOctetCount) * 8000L / (now - mLastReport);
+		}
+		mLastReport = now;
+		mLastOctetCount = mOctetCount;
+
+		if (interval <= 0 || mPacketCount == 0) return;
+		if (mTransport == TRANSPORT_UDP ? mPort < 0 : mOutputStream == null) return;
+
+		if (mClockRate > 0) {
+			// In us so that it does not overflow
+			rtpts = (mLastRtp + (time - mLastTimestamp) / 1000 * mClockRate / 1000000) & 0xFFFFFFFFL;
+		}
+		send(mClock.toNtpTimestamp(time), rtpts);
 	}
 
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
 	 * be specified with this method.
+	 * If it is the control stream of an {@link InterleavedWriter}, the reports are queued
+	 * to the writer.
 	 */ 
 	public void setOutputStream(OutputStream os, byte channelIdentifier) {
 		mTransport = TRANSPORT_TCP;
 		mOutputStream = os;
 		mTcpHeader[1] = channelIdentifier;
+		start();
+		if (os instanceof InterleavedWriter.ControlStream) {
+			mWriter = ((InterleavedWriter.ControlStream) os).getWriter();
+			if (mFrame == null) {
+				mFrameBuffer = ByteBuffer.allocate(MTU);
+				mFrame = new InterleavedWriter.Frame(new InterleavedWriter.Listener() {
+					@Override
+					public void onFrameWritten(InterleavedWriter.Frame frame) {
+						mFramePending = false;
+					}
+				});
+			}
+		} else {
+			mWriter = null;
+		}
 	}	
 	
 	public int getPort() {
@@ -180,12 +563,14 @@ public class SenderReport {
 	/**
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
-	public void reset() {
+	public synchronized void reset() {
 		mPacketCount = 0;
 		mOctetCount = 0;
+		mLastOctetCount = 0;
+		mLastReport = 0;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
-		delta = now = oldnow = 0;
+		mStatistics.reset();
 	}
 	
 	private void setLong(long n, int begin, int end) {
@@ -196,27 +581,66 @@ public class SenderReport {
 	}	
 
 	/**
-	 * Sends the RTCP packet over the network.
+	 * Writes an SDES packet with a CNAME after the sender report.
+	 * @return The length of the compound packet
+	 */
+	private int writeSdes() {
+		int offset = PACKET_LENGTH, length;
+		// The chunk ends with at least one null byte and is padded to a 32 bits boundary
+		length = (8 + 2 + mCname.length + 1 + 3) / 4 * 4;
+		mBuffer[offset] = (byte) 0x81;
+		mBuffer[offset+1] = (byte) 202;
+		setLong(length/4-1, offset+2, offset+4);
+		setLong(mSSRC, offset+4, offset+8);
+		mBuffer[offset+8] = 1;
+		mBuffer[offset+9] = (byte) mCname.length;
+		System.arraycopy(mCname, 0, mBuffer, offset+10, mCname.length);
+		for (int i=offset+10+mCname.length;i<offset+length;i++) mBuffer[i] = 0;
+		return offset + length;
+	}
+
+	/**
+	 * Sends the compound RTCP packet over the network.
 	 * 
 	 * @param ntpts
-	 *            the NTP timestamp.
+	 *            the NTP timestamp (32.32 fixed point).
 	 * @param rtpts
 	 *            the RTP timestamp.
 	 */
 	private void send(long ntpts, long rtpts) throws IOException {
-		long hb = ntpts/1000000000;
-		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-		setLong(hb, 8, 12);
-		setLong(lb, 12, 16);
+		int length;
+		setLong(ntpts >>> 32, 8, 12);
+		setLong(ntpts & 0xFFFFFFFFL, 12, 16);
 		setLong(rtpts, 16, 20);
+		setLong(mPacketCount, 20, 24);
+		setLong(mOctetCount, 24, 28);
+		length = writeSdes();
+		mTcpHeader[2] = (byte) (length >> 8);
+		mTcpHeader[3] = (byte) length;
+		mAverageSize = (length + UDP_IP_OVERHEAD) / 16f + mAverageSize * 15 / 16;
+		synchronized (mSentTime) {
+			mSentNtp[mSentIndex] = (ntpts >>> 16) & 0xFFFFFFFFL;
+			mSentTime[mSentIndex] = System.nanoTime();
+			mSentIndex = (mSentIndex+1) % HISTORY_LENGTH;
+		}
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
+			upack.setLength(length);
 			usock.send(upack);		
+		} else if (mWriter != null) {
+			// If the previous report is still queued, this one is skipped
+			if (!mFramePending) {
+				mFrameBuffer.clear();
+				mFrameBuffer.put(mBuffer, 0, length);
+				mFrameBuffer.flip();
+				mFrame.set(mTcpHeader[1], mFrameBuffer);
+				mFramePending = true;
+				if (!mWriter.offer(mFrame)) mFramePending = false;
+			}
 		} else {
 			synchronized (mOutputStream) {
 				try {
 					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
+					mOutputStream.write(mBuffer, 0, length);
 				} catch (Exception e) {}
 			}
 		}
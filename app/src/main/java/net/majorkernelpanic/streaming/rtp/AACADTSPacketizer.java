@@ -33,15 +33,24 @@ import java.io.IOException;
  * This packetizer must be fed with an InputStream containing ADTS AAC.
  * AAC will basically be rewrapped in an RTP stream and sent over the network.
  * This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- * each packet only carry a single and complete AAC access unit.
+ * each packet only carry a single and complete AAC access unit, unless
+ * {@link #setMaxAggregationDelay(long)} is used: packets then carry several access units.
  */
 public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
     private final static String TAG = "AACADTSPacketizer";
 
+    /** Maximum number of access units in a packet. */
+    private final static int MAX_AGGREGATED = 16;
+
     private Thread t;
     private int samplingRate = 8000;
 
+    // Access units waiting to be sent in the same packet
+    private long maxAggregationDelay = 0;
+    private int maxFrames = 1, aggregated = 0, aggregatedLength = 0;
+    private int[] aggregatedSizes = new int[MAX_AGGREGATED];
+
     public AACADTSPacketizer() {
         super();
     }
@@ -68,6 +77,16 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
         }
     }
 
+    /**
+     * Access units can be sent together in a packet, the first one is then delayed
+     * by at most this delay. The RTP timestamp of a packet is the one of its first access unit.
+     * 0 by default: each packet carries a single access unit.
+     * @param delay The delay in ms
+     */
+    public void setMaxAggregationDelay(long delay) {
+        maxAggregationDelay = delay;
+    }
+
     public void setSamplingRate(int samplingRate) {
         this.samplingRate = samplingRate;
         socket.setClockFrequency(samplingRate);
@@ -85,48 +104,67 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
         // ADTS header fields that we need to parse
         boolean protection;
-        int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
-        long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
-        byte[] header = new byte[8];
+        int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile, offset, payload;
+        long oldtime = SystemClock.elapsedRealtime(), now = oldtime, resyncs = 0;
+        ADTSReader reader = new ADTSReader(is);
+        byte[] header = reader.getBuffer();
+        track.reset();
 
         try {
             while (!Thread.interrupted()) {
 
                 // Synchronisation: ADTS packet starts with 12bits set to 1
-                while (true) {
-                    if ((is.read() & 0xFF) == 0xFF) {
-                        header[1] = (byte) is.read();
-                        if ((header[1] & 0xF0) == 0xF0) break;
-                    }
+                // The reader only returns frames with a valid header (7 or 9 byte long)
+                offset = reader.next();
+                socket.setOutputTime(System.nanoTime());
+                if (reader.getResyncs() != resyncs) {
+                    socket.getMetrics().resyncs.add(reader.getResyncs() - resyncs);
+                    resyncs = reader.getResyncs();
                 }
 
-                // Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-                fill(header, 2, 5);
-
                 // The protection bit indicates whether or not the header contains the two extra bytes
-                protection = (header[1] & 0x01) > 0 ? true : false;
-                frameLength = (header[3] & 0x03) << 11 |
-                        (header[4] & 0xFF) << 3 |
-                        (header[5] & 0xFF) >> 5;
-                frameLength -= (protection ? 7 : 9);
+                protection = (header[offset + 1] & 0x01) > 0 ? true : false;
+                frameLength = reader.getFrameLength() - (protection ? 7 : 9);
 
                 // Number of AAC frames in the ADTS frame
-                nbau = (header[6] & 0x03) + 1;
+                nbau = (header[offset + 6] & 0x03) + 1;
 
                 // The number of RTP packets that will be sent for this ADTS frame
                 nbpk = frameLength / MAXPACKETSIZE + 1;
 
-                // Read CRS if any
-                if (!protection) is.read(header, 0, 2);
+                // Skips the CRC if any
+                payload = offset + (protection ? 7 : 9);
 
-                samplingRate = UVCAACStream.AUDIO_SAMPLING_RATES[(header[2] & 0x3C) >> 2];
-                profile = ((header[2] & 0xC0) >> 6) + 1;
+                samplingRate = UVCAACStream.AUDIO_SAMPLING_RATES[(header[offset + 2] & 0x3C) >> 2];
+                profile = ((header[offset + 2] & 0xC0) >> 6) + 1;
 
-                // We update the RTP timestamp
-                ts += 1024L * 1000000000L / samplingRate; //stats.average();
+                // We update the RTP timestamp, each AAC frame is 1024 samples long
+                ts = track.next(1024L * nbau * 1000000000L / samplingRate);
 
                 //Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+                if (aggregated > 0 && aggregatedLength + frameLength > MAXPACKETSIZE - rtphl - 2 - 2 * maxFrames) {
+                    sendAggregate();
+                }
+
+                if (aggregated == 0) {
+                    // Number of access units that fit in the delay, 1024 samples each
+                    maxFrames = (int) Math.min(MAX_AGGREGATED, 1 + maxAggregationDelay * samplingRate / 1024000);
+                }
+
+                if (maxFrames > 1 && frameLength <= MAXPACKETSIZE - rtphl - 2 - 2 * maxFrames) {
+                    if (aggregated == 0) {
+                        buffer = socket.requestBuffer();
+                        socket.updateTimestamp(ts);
+                    }
+                    // The access units are copied after the room left for maxFrames AU-headers
+                    System.arraycopy(header, payload, buffer, rtphl + 2 + 2 * maxFrames + aggregatedLength, frameLength);
+                    aggregatedSizes[aggregated++] = frameLength;
+                    aggregatedLength += frameLength;
+                    if (aggregated == maxFrames) sendAggregate();
+                    continue;
+                }
+
                 sum = 0;
                 while (sum < frameLength) {
 
@@ -140,8 +178,8 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
                         length = frameLength - sum;
                         socket.markNextPacket();
                     }
+                    System.arraycopy(header, payload + sum, buffer, rtphl + 4, length);
                     sum += length;
-                    fill(buffer, rtphl + 4, length);
 
                     // AU-headers-length field: contains the size in bits of a AU-header
                     // 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta
@@ -174,15 +212,29 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
     }
 
-    private int fill(byte[] buffer, int offset, int length) throws IOException {
-        int sum = 0, len;
-        while (sum < length) {
-            len = is.read(buffer, offset + sum, length - sum);
-            if (len < 0) {
-                throw new IOException("End of stream");
-            } else sum += len;
+    /** Sends the access units waiting in the buffer of the socket with one AU-header each. */
+    private void sendAggregate() throws IOException {
+
+        // AU-headers-length field: the size in bits of the AU-headers
+        buffer[rtphl] = (byte) ((aggregated * 16) >> 8);
+        buffer[rtphl + 1] = (byte) (aggregated * 16);
+
+        for (int i = 0; i < aggregated; i++) {
+            // AU-size, AU-Index and AU-Index-delta are 0: the access units are consecutive
+            buffer[rtphl + 2 + 2 * i] = (byte) (aggregatedSizes[i] >> 5);
+            buffer[rtphl + 3 + 2 * i] = (byte) ((aggregatedSizes[i] << 3) & 0xF8);
         }
-        return sum;
+
+        if (aggregated < maxFrames) {
+            System.arraycopy(buffer, rtphl + 2 + 2 * maxFrames, buffer, rtphl + 2 + 2 * aggregated, aggregatedLength);
+        }
+
+        socket.markNextPacket();
+        send(rtphl + 2 + 2 * aggregated + aggregatedLength);
+
+        aggregated = 0;
+        aggregatedLength = 0;
+
     }
 
 }
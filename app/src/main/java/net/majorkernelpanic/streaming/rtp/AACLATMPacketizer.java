@@ -21,10 +21,12 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * RFC 3640.  
@@ -33,27 +35,55 @@ import java.io.IOException;
  * This packetizer is used by the AACStream class in conjunction with the 
  * MediaCodec API introduced in Android 4.1 (API Level 16).       
  * 
+ * It is either fed with a {@link MediaCodecInputStream}, or directly with the output buffers
+ * of the codec, see {@link #setMediaCodec(MediaCodec)}.
+ * 
  */
 @SuppressLint("NewApi")
-public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
+public class AACLATMPacketizer extends AbstractPacketizer implements Runnable, MediaCodecOutput.Listener {
 
 	private final static String TAG = "AACLATMPacketizer";
 
 	private Thread t;
+	private MediaCodecOutput output = null;
+	private long dropped = 0, reordered = 0;
 
 	public AACLATMPacketizer() {
 		super();
 		socket.setCacheSize(0);
 	}
 
+	/**
+	 * The output buffers of the codec will be handed to {@link #onOutputBuffer(ByteBuffer, BufferInfo)}
+	 * by a {@link MediaCodecOutput}, the InputStream is then not used.
+	 */
+	public void setMediaCodec(MediaCodec mediaCodec) {
+		output = new MediaCodecOutput(mediaCodec, this);
+	}
+
+	/** Returns the number of frames that were not sent, including the reordered ones. */
+	public long getDroppedFrames() {
+		return dropped;
+	}
+
+	/** Returns the number of frames dropped because their timestamp was older than the one of the previous frame. */
+	public long getReorderedFrames() {
+		return reordered;
+	}
+
 	public void start() {
-		if (t==null) {
+		if (output != null) {
+			output.start();
+		} else if (t==null) {
 			t = new Thread(this);
 			t.start();
 		}
 	}
 
 	public void stop() {
+		if (output != null) {
+			output.stop();
+		}
 		if (t != null) {
 			try {
 				is.close();
@@ -93,6 +123,8 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 					
 					// Seems to happen sometimes
 					if (oldts>ts) {
+						reordered++;
+						dropped++;
 						socket.commitBuffer();
 						continue;
 					}
@@ -131,4 +163,50 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/**
+	 * Builds the packets of an access unit directly from the output buffer of the codec.
+	 * Access units too big for a packet are fragmented.
+	 */
+	@Override
+	public void onOutputBuffer(ByteBuffer au, BufferInfo info) throws IOException, InterruptedException {
+		int length = au.remaining(), sum = 0, len;
+		long timestamp = info.presentationTimeUs*1000;
+
+		// The AudioSpecificConfig is already in the SDP
+		if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+
+		if (length == 0) {
+			dropped++;
+			return;
+		}
+
+		// Seems to happen sometimes
+		if (ts>timestamp) {
+			reordered++;
+			dropped++;
+			return;
+		}
+		ts = timestamp;
+
+		while (sum < length) {
+			len = length-sum > MAXPACKETSIZE-rtphl-4 ? MAXPACKETSIZE-rtphl-4 : length-sum;
+
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			if (sum+len == length) socket.markNextPacket();
+
+			// AU-headers-length field: a single 16 bits long AU-header
+			buffer[rtphl] = 0;
+			buffer[rtphl+1] = 0x10;
+
+			// AU-size of the whole access unit, AU-Index is 0
+			buffer[rtphl+2] = (byte) (length>>5);
+			buffer[rtphl+3] = (byte) ((length<<3) & 0xF8);
+
+			au.get(buffer, rtphl+4, len);
+			send(rtphl+4+len);
+			sum += len;
+		}
+	}
+
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads ADTS frames from an InputStream in large chunks and finds the sync words in memory.
+ * A frame is only returned if its header is valid. After a loss of synchronisation, it
+ * must also be followed by another valid header. Once synchronized, the next header is
+ * checked whenever it has already been read, so that frames are not delayed.
+ */
+final class ADTSReader {
+
+    private final static String TAG = "ADTSReader";
+
+    /** Length of an ADTS header without CRC. */
+    private final static int HEADER_LENGTH = 7;
+
+    private final InputStream mInputStream;
+
+    // Big enough for the largest frame (13 bits) and the header of the next one
+    private final byte[] mBuffer = new byte[16 * 1024];
+    private int mStart = 0, mEnd = 0, mFrameLength = 0;
+    private boolean mSynchronized = false;
+    private long mSkipped = 0, mResyncs = 0;
+
+    public ADTSReader(InputStream is) {
+        mInputStream = is;
+    }
+
+    /** The buffer in which the frames are returned. */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** Number of times the reader lost the sync words and found them again. */
+    public long getResyncs() {
+        return mResyncs;
+    }
+
+    /** Length of the last frame returned, header included. */
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Reads the next frame, the previous one is dropped.
+     * @return The offset of the frame in {@link #getBuffer()}
+     */
+    public int next() throws IOException {
+        int length;
+
+        mStart += mFrameLength;
+        mFrameLength = 0;
+
+        while (true) {
+
+            fill(HEADER_LENGTH);
+            length = parseHeader(mStart);
+
+            if (length < 0) {
+                skip();
+                continue;
+            }
+
+            if (mSynchronized) {
+                fill(length);
+                // The next header is only checked if it was read with this frame
+                if (mEnd - mStart >= length + 2 && !isSyncWord(mStart + length)) {
+                    skip();
+                    continue;
+                }
+            } else {
+                fill(length + 2);
+                if (!isSyncWord(mStart + length)) {
+                    skip();
+                    continue;
+                }
+                if (mSkipped > 0) {
+                    Log.e(TAG, "Resynchronized, " + mSkipped + " bytes skipped");
+                    mResyncs++;
+                }
+                mSynchronized = true;
+                mSkipped = 0;
+            }
+
+            mFrameLength = length;
+            return mStart;
+
+        }
+    }
+
+    /** Goes to the next sync word in the buffer, or to the end of the buffer. */
+    private void skip() {
+        int i = mStart + 1;
+        if (mSynchronized) Log.e(TAG, "ADTS stream out of sync !");
+        mSynchronized = false;
+        while (i < mEnd && (mBuffer[i] != (byte) 0xFF || (i + 1 < mEnd && (mBuffer[i + 1] & 0xF6) != 0xF0))) i++;
+        mSkipped += i - mStart;
+        mStart = i;
+    }
+
+    private boolean isSyncWord(int offset) {
+        // 12 bits set to 1 and the layer set to 0
+        return mBuffer[offset] == (byte) 0xFF && (mBuffer[offset + 1] & 0xF6) == 0xF0;
+    }
+
+    /** Returns the length of the frame starting at offset, or -1 if its header is not valid. */
+    private int parseHeader(int offset) {
+        int length, headerLength;
+        if (!isSyncWord(offset)) return -1;
+        // Sampling frequency index
+        if (((mBuffer[offset + 2] & 0x3C) >> 2) > 12) return -1;
+        // The protection bit indicates whether or not the header contains the two extra bytes
+        headerLength = (mBuffer[offset + 1] & 0x01) > 0 ? HEADER_LENGTH : HEADER_LENGTH + 2;
+        length = (mBuffer[offset + 3] & 0x03) << 11 |
+                (mBuffer[offset + 4] & 0xFF) << 3 |
+                (mBuffer[offset + 5] & 0xFF) >> 5;
+        return length > headerLength ? length : -1;
+    }
+
+    /** Reads the stream until at least length bytes follow the current position. */
+    private void fill(int length) throws IOException {
+        int len;
+        while (mEnd - mStart < length) {
+            if (mStart + length > mBuffer.length) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            }
+            len = mInputStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (len < 0) throw new IOException("End of stream");
+            mEnd += len;
+        }
+    }
+
+}
@@ -33,6 +33,9 @@ import java.io.IOException;
  *   Must be fed with an InputStream containing raw AMR NB
  *   Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
  *   
+ *   Packets use the octet-aligned mode of RFC 4867 and can carry several frames, see
+ *   {@link #setPtime(int)} and {@link #setRedundancy(int)}.
+ *   
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
@@ -43,6 +46,16 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
 	private int samplingRate = 8000;
 
+	private final static int MAX_FRAMES_PER_PACKET = 10;
+	private final static int MAX_REDUNDANCY = 10;
+	private final static int HISTORY_LENGTH = MAX_FRAMES_PER_PACKET+MAX_REDUNDANCY;
+	private int framesPerPacket = 1, redundancy = 0;
+
+	// The last frames read, with their header
+	private final byte[][] frames = new byte[HISTORY_LENGTH][AMR_FRAME_HEADER_LENGTH+32];
+	private final int[] lengths = new int[HISTORY_LENGTH];
+	private final long[] timestamps = new long[HISTORY_LENGTH];
+
 	private Thread t;
 
 	public AMRNBPacketizer() {
@@ -70,11 +83,37 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Sets the duration of audio carried by a packet, frames are 20 ms long.
+	 * 20 ms by default: one frame per packet.
+	 * @param ptime The duration in ms, a multiple of 20
+	 */
+	public void setPtime(int ptime) {
+		framesPerPacket = Math.max(1, Math.min(MAX_FRAMES_PER_PACKET, ptime/20));
+	}
+
+	public int getPtime() {
+		return framesPerPacket*20;
+	}
+
+	/**
+	 * Each packet also carries the given number of frames already sent in the
+	 * previous packets (RFC 4867, section 4.5). 0 by default.
+	 */
+	public void setRedundancy(int frames) {
+		redundancy = Math.max(0, Math.min(MAX_REDUNDANCY, frames));
+	}
+
+	public int getRedundancy() {
+		return redundancy;
+	}
+
 	public void run() {
 
-		int frameLength, frameType;
-		long now = System.nanoTime(), oldtime = now;
+		int frameLength, frameType, count = 0, index = HISTORY_LENGTH-1, n;
+		long read = 0;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
+		track.reset();
 
 		try {
 
@@ -88,31 +127,34 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 			while (!Thread.interrupted()) {
 
-				buffer = socket.requestBuffer();
-				buffer[rtphl] = (byte) 0xF0;
-				
+				index = (index+1) % HISTORY_LENGTH;
+
 				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
+				fill(frames[index], 0, AMR_FRAME_HEADER_LENGTH);
 
 				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+				frameType = (frames[index][0] >> 3) & 0x0f;
+				frameLength = getFrameLength(frameType);
 
 				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+				fill(frames[index], AMR_FRAME_HEADER_LENGTH, frameLength);
+				lengths[index] = frameLength;
 
 				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
 
 				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
 				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
-				socket.updateTimestamp(ts);
-				socket.markNextPacket();
-
-				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
-				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
-				
+				ts = track.next(160L*1000000000L/samplingRate);
+				timestamps[index] = ts;
+				read++;
+
+				if (++count >= framesPerPacket) {
+					// The new frames, preceded by the redundant ones
+					n = (int) Math.min(count + redundancy, read);
+					sendFrames((index - n + 1 + HISTORY_LENGTH) % HISTORY_LENGTH, n);
+					count = 0;
+				}
+
 			}
 
 		} catch (IOException e) { 
@@ -122,6 +164,41 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/**
+	 * Sends n consecutive frames of the history in one packet (octet-aligned mode).
+	 * The timestamp of the packet is the one of its first frame.
+	 */
+	private void sendFrames(int first, int n) throws IOException, InterruptedException {
+		int pos = rtphl+1+n, i;
+
+		buffer = socket.requestBuffer();
+
+		// CMR: no mode request
+		buffer[rtphl] = (byte) 0xF0;
+
+		for (int k=0;k<n;k++) {
+			i = (first+k) % HISTORY_LENGTH;
+			// ToC entry: the frame header with the F bit set if another frame follows
+			buffer[rtphl+1+k] = (byte) ((frames[i][0] & 0x7C) | (k<n-1 ? 0x80 : 0));
+			System.arraycopy(frames[i], AMR_FRAME_HEADER_LENGTH, buffer, pos, lengths[i]);
+			pos += lengths[i];
+		}
+
+		socket.updateTimestamp(timestamps[first]);
+		socket.markNextPacket();
+
+		//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
+
+		send(pos);
+	}
+
+	/** Returns the length in bytes of a frame of the given type, without its header. */
+	private static int getFrameLength(int frameType) {
+		if (frameType < sFrameBits.length) return (sFrameBits[frameType]+7)/8;
+		// Comfort noise, reserved types and NO_DATA
+		return frameType == 8 ? 5 : 0;
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0, len;
 		while (sum<length) {
@@ -23,6 +23,7 @@ package net.majorkernelpanic.streaming.rtp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -41,13 +42,17 @@ abstract public class AbstractPacketizer {
 	protected InputStream is = null;
 	protected byte[] buffer;
 	
+	/** Capture time of the packets in ns, see {@link MediaClock}. */
 	protected long ts = 0;
 
+	/** Gives capture times to the frames of streams that don't carry them. */
+	protected MediaClock.Track track;
+
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
-		ts = new Random().nextInt();
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
+		track = socket.getMediaClock().createTrack();
 	}
 
 	public RtpSocket getRtpSocket() {
@@ -62,6 +67,12 @@ abstract public class AbstractPacketizer {
 		return socket.getSSRC();
 	}
 
+	/** Every packetizer of a session must use the same clock, see {@link RtpSocket#setMediaClock(MediaClock)}. */
+	public void setMediaClock(MediaClock clock) {
+		socket.setMediaClock(clock);
+		track = clock.createTrack();
+	}
+
 	public void setInputStream(InputStream is) {
 		this.is = is;
 	}
@@ -91,6 +102,14 @@ abstract public class AbstractPacketizer {
 		socket.commitBuffer(length);
 	}
 
+	/**
+	 * Sends a packet made of the first length bytes of the buffer followed by a slice of a ByteBuffer,
+	 * see {@link RtpSocket#commitBuffer(int, ByteBuffer, int, int)}.
+	 */
+	protected void send(int length, ByteBuffer payload, int offset, int count) throws IOException {
+		socket.commitBuffer(length, payload, offset, count);
+	}
+
 	/** For debugging purposes. */
 	protected static String printBuffer(byte[] buffer, int start,int end) {
 		String str = "";
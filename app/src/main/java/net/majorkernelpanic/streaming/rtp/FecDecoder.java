@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Rebuilds the RTP packets lost in a stream protected by XOR parity packets (RFC 5109, a single
+ * protection level), like the ones of an {@link RtpSocket} with {@link RtpSocket#setFec(int, int)}.
+ * A packet can be rebuilt when it is the only one missing among the packets protected by a
+ * parity packet. The last media packets received are kept to compute the missing ones.
+ */
+public class FecDecoder {
+
+	private final RetransmissionHistory mPackets;
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+	private int mSsrc = 0;
+	private boolean mSsrcKnown = false;
+	private long mRecovered = 0, mUnrecoverable = 0;
+
+	/** @param capacity The number of media packets kept */
+	public FecDecoder(int capacity) {
+		mPackets = new RetransmissionHistory(capacity);
+	}
+
+	/** Returns the number of packets rebuilt so far. */
+	public long getRecoveredPackets() {
+		return mRecovered;
+	}
+
+	/** Returns the number of parity packets received while more than one of their packets was missing. */
+	public long getUnrecoverableGroups() {
+		return mUnrecoverable;
+	}
+
+	/** Called for each media packet received, the packets rebuilt are already kept. */
+	public void addMediaPacket(byte[] packet, int offset, int length) {
+		if (length < RtpSocket.RTP_HEADER_LENGTH || length > RtpSocket.MTU) return;
+		System.arraycopy(packet, offset, mBuffer, 0, length);
+		mSsrc = getInt(mBuffer, 8);
+		mSsrcKnown = true;
+		mPackets.store(getShort(mBuffer, 2), mBuffer, length, null, 0);
+	}
+
+	/**
+	 * Called for each parity packet received.
+	 * @param out The rebuilt packet is written at the beginning of this buffer, it must be MTU bytes long
+	 * @return The length of the packet rebuilt, or -1 if no packet was missing or if more than one was,
+	 * or if no media packet was received yet: the SSRC of the stream is not in the parity packets
+	 */
+	public int addFecPacket(byte[] packet, int offset, int length, byte[] out) {
+		int fec = offset + RtpSocket.RTP_HEADER_LENGTH, ulp, data;
+		int base, maskBits, missing = -1, count = 0, len, i, j, seq;
+		long mask;
+
+		if (!mSsrcKnown || length < RtpSocket.RTP_HEADER_LENGTH + FecEncoder.FEC_HEADER_LENGTH + FecEncoder.ULP_HEADER_LENGTH) return -1;
+		base = getShort(packet, fec + 2);
+		ulp = fec + FecEncoder.FEC_HEADER_LENGTH;
+		// The L bit tells whether the mask is 16 or 48 bits long
+		if ((packet[fec] & 0x40) != 0) {
+			maskBits = 48;
+			mask = (getInt(packet, ulp + 2) & 0xFFFFFFFFL) << 16 | getShort(packet, ulp + 6);
+			data = ulp + 8;
+		} else {
+			maskBits = 16;
+			mask = getShort(packet, ulp + 2);
+			data = ulp + 4;
+		}
+		len = Math.min(getShort(packet, ulp), offset + length - data);
+
+		for (i=0;i<maskBits;i++) {
+			if ((mask & (1L << (maskBits-1-i))) == 0) continue;
+			if (mPackets.get((base + i) & 0xFFFF, Long.MAX_VALUE, 0, mBuffer, 0) < 0) {
+				if (missing >= 0) {
+					mUnrecoverable++;
+					return -1;
+				}
+				missing = i;
+			}
+		}
+		if (missing < 0) return -1;
+
+		// The recovery fields and the protected data of the parity packet
+		for (i=0;i<RtpSocket.MTU;i++) out[i] = 0;
+		out[0] = packet[fec];
+		out[1] = packet[fec+1];
+		for (i=0;i<4;i++) out[4+i] = packet[fec+4+i];
+		out[2] = packet[fec+8];
+		out[3] = packet[fec+9];
+		System.arraycopy(packet, data, out, RtpSocket.RTP_HEADER_LENGTH, Math.min(len, RtpSocket.MTU - RtpSocket.RTP_HEADER_LENGTH));
+
+		for (i=0;i<maskBits;i++) {
+			if (i == missing || (mask & (1L << (maskBits-1-i))) == 0) continue;
+			count = mPackets.get((base + i) & 0xFFFF, Long.MAX_VALUE, 0, mBuffer, 0);
+			out[0] ^= mBuffer[0];
+			out[1] ^= mBuffer[1];
+			for (j=4;j<8;j++) out[j] ^= mBuffer[j];
+			out[2] ^= (count - RtpSocket.RTP_HEADER_LENGTH) >> 8;
+			out[3] ^= count - RtpSocket.RTP_HEADER_LENGTH;
+			for (j=RtpSocket.RTP_HEADER_LENGTH;j<count;j++) out[j] ^= mBuffer[j];
+		}
+
+		// The length recovery field was kept in the place of the sequence number
+		count = getShort(out, 2) + RtpSocket.RTP_HEADER_LENGTH;
+		if (count > RtpSocket.MTU) return -1;
+		seq = (base + missing) & 0xFFFF;
+		out[0] = (byte) (0x80 | (out[0] & 0x3F));
+		out[2] = (byte) (seq >> 8);
+		out[3] = (byte) seq;
+		out[8] = (byte) (mSsrc >> 24);
+		out[9] = (byte) (mSsrc >> 16);
+		out[10] = (byte) (mSsrc >> 8);
+		out[11] = (byte) mSsrc;
+
+		mPackets.store(seq, out, count, null, 0);
+		mRecovered++;
+		return count;
+	}
+
+	private static int getShort(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 8 | (buffer[offset+1] & 0xFF);
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 24 | (buffer[offset+1] & 0xFF) << 16 |
+				(buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes XOR parity packets over groups of consecutive RTP packets, in the format of the
+ * RFC 5109 (ULPFEC, a single protection level with a 16 bits mask). A receiver can rebuild
+ * one lost packet per group, see {@link FecDecoder}.
+ *
+ * The parity packets are sent in their own RTP stream: they have their own payload type,
+ * SSRC and sequence numbers.
+ */
+final class FecEncoder {
+
+	/** Length of the FEC header and of the ULP level header with a 16 bits mask. */
+	static final int FEC_HEADER_LENGTH = 10, ULP_HEADER_LENGTH = 4;
+
+	/** Offset of the protected data in a parity packet. */
+	static final int PAYLOAD_OFFSET = RtpSocket.RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + ULP_HEADER_LENGTH;
+
+	/** Maximum number of packets in a group, the size of the mask. */
+	static final int MAX_GROUP_SIZE = 16;
+
+	private final byte[] mPacket = new byte[PAYLOAD_OFFSET + RtpSocket.MTU];
+	private final ByteBuffer mHeader = ByteBuffer.wrap(mPacket);
+	private final int mPayloadType, mSsrc;
+
+	private int mGroupSize = 10, mSeq = 0;
+	private int mCount = 0, mBase, mMask, mMaxLength = 0;
+
+	/**
+	 * @param payloadType The payload type of the parity packets
+	 * @param ssrc The SSRC of the parity packets
+	 */
+	public FecEncoder(int payloadType, int ssrc) {
+		mPayloadType = payloadType;
+		mSsrc = ssrc;
+	}
+
+	/** The number of media packets protected by a parity packet, the overhead is 1/size. */
+	public void setGroupSize(int size) {
+		mGroupSize = Math.max(1, Math.min(MAX_GROUP_SIZE, size));
+	}
+
+	public int getGroupSize() {
+		return mGroupSize;
+	}
+
+	/** The parity packet returned by {@link #add(byte[], int, ByteBuffer, boolean)}. */
+	public byte[] getPacket() {
+		return mPacket;
+	}
+
+	/**
+	 * Adds a media packet to the current group. The packet is made of the first length bytes
+	 * of header, followed by the bytes between the position and the limit of slice if it is not null.
+	 * @param endOfFrame Whether the packet is the last of a frame, a large enough group is then closed
+	 * @return The length of the parity packet completed by this packet, 0 if the group is not complete
+	 */
+	public int add(byte[] header, int length, ByteBuffer slice, boolean endOfFrame) {
+		int seq = (header[2] & 0xFF) << 8 | (header[3] & 0xFF), offset, payload, i;
+		int position = slice != null ? slice.position() : 0;
+		int total = length + (slice != null ? slice.remaining() : 0);
+
+		if (mCount > 0 && ((seq - mBase) & 0xFFFF) >= MAX_GROUP_SIZE) {
+			// The group can't be described by the mask, it is dropped
+			mCount = 0;
+		}
+		if (mCount == 0) start(seq);
+
+		// P, X, CC, M and PT recovery fields
+		mPacket[12] ^= header[0] & 0x3F;
+		mPacket[13] ^= header[1];
+		// TS recovery
+		for (i=4;i<8;i++) mPacket[i+12] ^= header[i];
+		// Length recovery
+		payload = total - RtpSocket.RTP_HEADER_LENGTH;
+		mPacket[20] ^= payload >> 8;
+		mPacket[21] ^= payload;
+
+		if (payload > mMaxLength) {
+			for (i=PAYLOAD_OFFSET+mMaxLength;i<PAYLOAD_OFFSET+payload;i++) mPacket[i] = 0;
+			mMaxLength = payload;
+		}
+		offset = PAYLOAD_OFFSET - RtpSocket.RTP_HEADER_LENGTH;
+		for (i=RtpSocket.RTP_HEADER_LENGTH;i<length;i++) mPacket[offset+i] ^= header[i];
+		for (i=length;i<total;i++) mPacket[offset+i] ^= slice.get(position+i-length);
+
+		mMask |= 0x8000 >>> ((seq - mBase) & 0xFFFF);
+		// The timestamp of the parity packet is the one of the last packet protected
+		mHeader.putInt(4, (header[4] & 0xFF) << 24 | (header[5] & 0xFF) << 16 | (header[6] & 0xFF) << 8 | (header[7] & 0xFF));
+
+		if (++mCount >= mGroupSize || (endOfFrame && mCount >= (mGroupSize+1)/2)) {
+			return finish();
+		}
+		return 0;
+	}
+
+	private void start(int seq) {
+		mBase = seq;
+		mMask = 0;
+		for (int i=12;i<PAYLOAD_OFFSET+mMaxLength;i++) mPacket[i] = 0;
+		mMaxLength = 0;
+	}
+
+	private int finish() {
+		mPacket[0] = (byte) 0x80;
+		mPacket[1] = (byte) mPayloadType;
+		mHeader.putShort(2, (short) ++mSeq);
+		mHeader.putInt(8, mSsrc);
+		// E = 0, L = 0: a 16 bits mask
+		mPacket[12] &= 0x3F;
+		mHeader.putShort(14, (short) mBase);
+		mHeader.putShort(22, (short) mMaxLength);
+		mHeader.putShort(24, (short) mMask);
+		mCount = 0;
+		return PAYLOAD_OFFSET + mMaxLength;
+	}
+
+}
@@ -23,6 +23,7 @@ package net.majorkernelpanic.streaming.rtp;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  *   RFC 4629.
@@ -36,8 +37,13 @@ import java.io.IOException;
 public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H263Packetizer";
+	private final static int MAX_PAYLOAD = MAXPACKETSIZE-rtphl-2;
 	private Statistics stats = new Statistics();
 
+	// The stream is read in this buffer and the packets are sent from it, without any other copy
+	private final byte[] carry = new byte[64*1024];
+	private final ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+
 	private Thread t;
 
 	public H263Packetizer() {
@@ -67,61 +73,60 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public void run() {
 		long time, duration = 0;
-		int i = 0, j = 0, tr;
+		int start = 0, end = 0, scan = 0, psc, len;
 		boolean firstFragment = true;
-		byte[] nextBuffer;
 		stats.reset();
+		track.reset();
 
 		try { 
 			while (!Thread.interrupted()) {
-				
-				if (j==0) buffer = socket.requestBuffer();
-				socket.updateTimestamp(ts);
-				
-				// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
-				buffer[rtphl] = 0;
-				buffer[rtphl+1] = 0;
-				
-				time = System.nanoTime();
-				if (fill(rtphl+j+2,MAXPACKETSIZE-rtphl-j-2)<0) return;
-				duration += System.nanoTime() - time;
-				j = 0;
+
 				// Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
 				// Here we search where the next frame begins in the bit stream
-				for (i=rtphl+2;i<MAXPACKETSIZE-1;i++) {
-					if (buffer[i]==0 && buffer[i+1]==0 && (buffer[i+2]&0xFC)==0x80) {
-						j=i;
-						break;
+				psc = findPictureStartCode(carry, scan, end);
+
+				if (psc >= 0) {
+					if (psc > start) {
+						// We have found the end of the frame
+						// The last fragment of a frame has to be marked
+						sendFragments(start, psc, firstFragment);
+						stats.push(duration);
+						duration = 0;
+						//Log.d(TAG,"End of frame ! duration: "+stats.average());
 					}
+					// A frame begins, its fragments are sent with its capture time as soon as they are read
+					time = stats.average();
+					ts = track.next(time);
+					// The two zero bytes of the start code are not sent (see the P bit of the header)
+					start = scan = psc+2;
+					firstFragment = true;
+					continue;
 				}
-				// Parse temporal reference
-				tr = (buffer[i+2]&0x03)<<6 | (buffer[i+3]&0xFF)>>2;
-				//Log.d(TAG,"j: "+j+" buffer: "+printBuffer(rtphl, rtphl+5)+" tr: "+tr);
-				if (firstFragment) {
-					// This is the first fragment of the frame -> header is set to 0x0400
-					buffer[rtphl] = 4;
+
+				// We have not found the beginning of another frame
+				// Full packets before the last two bytes are fragments of the frame
+				scan = Math.max(start, end-2);
+				while (scan-start >= MAX_PAYLOAD) {
+					sendFragment(start, MAX_PAYLOAD, firstFragment, false);
+					start += MAX_PAYLOAD;
 					firstFragment = false;
-				} else {
-					buffer[rtphl] = 0;
 				}
-				if (j>0) {
-					// We have found the end of the frame
-					stats.push(duration);
-					ts+= stats.average(); duration = 0;
-					//Log.d(TAG,"End of frame ! duration: "+stats.average());
-					// The last fragment of a frame has to be marked
-					socket.markNextPacket();
-					send(j);
-					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
-					buffer = nextBuffer;
-					j = MAXPACKETSIZE-j-2;
-					firstFragment = true;
-				} else {
-					// We have not found the beginning of another frame
-					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
+
+				if (end == carry.length) {
+					// The socket must be done with the buffer before what is left is moved to its beginning
+					socket.awaitSent();
+					System.arraycopy(carry, start, carry, 0, end-start);
+					scan -= start;
+					end -= start;
+					start = 0;
 				}
+
+				time = System.nanoTime();
+				len = is.read(carry, end, carry.length-end);
+				if (len<0) throw new IOException("End of stream");
+				duration += System.nanoTime() - time;
+				end += len;
+
 			}
 		} catch (IOException e) { 
 		} catch (InterruptedException e) {}
@@ -130,20 +135,50 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	}
 
-	private int fill(int offset,int length) throws IOException {
+	/** Sends the end of a frame, the last fragment is marked. */
+	private void sendFragments(int start, int end, boolean firstFragment) throws IOException, InterruptedException {
+		int len;
+		while (start < end) {
+			len = end-start > MAX_PAYLOAD ? MAX_PAYLOAD : end-start;
+			sendFragment(start, len, firstFragment, start+len == end);
+			start += len;
+			firstFragment = false;
+		}
+	}
 
-		int sum = 0, len;
+	/** Sends a fragment of the carry-over buffer, it is not copied in the buffer of the socket. */
+	private void sendFragment(int offset, int length, boolean firstFragment, boolean last) throws IOException, InterruptedException {
+		buffer = socket.requestBuffer();
+		socket.updateTimestamp(ts);
 
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
+		// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
+		// The first fragment of the frame has its header set to 0x0400
+		buffer[rtphl] = (byte) (firstFragment ? 4 : 0);
+		buffer[rtphl+1] = 0;
 
-		return sum;
+		if (last) socket.markNextPacket();
+		send(rtphl+2, carryBuffer, offset, length);
+	}
 
+	/**
+	 * Returns the index of the next picture start code between start and end, or -1.
+	 * The byte that would end a start code is tested first, so that most of the time
+	 * two or three bytes are skipped at once.
+	 */
+	static int findPictureStartCode(byte[] buffer, int start, int end) {
+		int i = start;
+		while (i+2 < end) {
+			if (buffer[i+2] != 0 && (buffer[i+2]&0xFC) != 0x80) {
+				i += 3;
+			} else if (buffer[i+1] != 0) {
+				i += 2;
+			} else if (buffer[i] != 0 || (buffer[i+2]&0xFC) != 0x80) {
+				i += 1;
+			} else {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 }
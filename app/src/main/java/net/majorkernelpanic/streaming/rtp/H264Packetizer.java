@@ -21,9 +21,16 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.majorkernelpanic.streaming.metrics.LatencyTracer;
 
 /**
  * 
@@ -34,6 +41,10 @@ import java.io.IOException;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   When fed with a {@link MediaCodecInputStream}, the output buffers of the codec are packetized
+ *   without being copied: each packet is an RTP header followed by a slice of the buffer.
+ *   A buffer may hold several NAL units separated by start codes, small ones are sent in STAP-A packets.
+ *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
@@ -48,10 +59,50 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private int count = 0;
 	private int streamType = 1;
 
+	// Small NAL units waiting to be aggregated in a STAP-A packet
+	private final static int MAX_AGGREGATED = 32;
+	private final int[] aggregatedOffsets = new int[MAX_AGGREGATED], aggregatedLengths = new int[MAX_AGGREGATED];
+	private int aggregated = 0, aggregatedSize = 1;
+	private ByteBuffer aggregatedBuffer = null;
+
+	// STAP-A packet kept open in a buffer of the socket, waiting for more NAL units with the same timestamp
+	private boolean stapaOpen = false, stapaDiscardable = false;
+	private int stapaCount = 0, stapaPos = 0, stapaNri = 0, stapaF = 0;
+	private byte[] stapaBuffer = null;
+	private long maxAggregationDelay = 0;
+
+	// Last packet of an output buffer kept in a buffer of the socket, until the next output buffer
+	// of the MediaCodec tells whether the access unit is complete, see endBuffer()
+	private boolean pending = false;
+	private int pendingLength = 0, pendingOffset = 0, pendingCount = 0, pendingSlot = -1;
+	private ByteBuffer pendingPayload = null;
+
+	// The access unit whose last packet is pending or whose STAP-A is open
+	private long openTs = 0, openTime = 0;
+	private boolean openPartial = false;
+
+	// MediaCodec.BUFFER_FLAG_PARTIAL_FRAME, set from Android 8.0 on the buffers that don't end an access unit
+	private final static int BUFFER_FLAG_PARTIAL_FRAME = 8;
+
+	// Output buffers of the MediaCodec held until their packets are sent, see sendAccessUnit()
+	private final static int MAX_HELD_BUFFERS = 4;
+	private final AtomicIntegerArray held = new AtomicIntegerArray(MAX_HELD_BUFFERS);
+	private final int[] heldIndices = new int[MAX_HELD_BUFFERS];
+	private int heldSlot = -1;
+
+	// Delays given to the socket to send the slices of the held buffers when the packetizer stops, in ms
+	private final static long DRAIN_TIMEOUT = 500, DROP_TIMEOUT = 2000;
+
 
 	public H264Packetizer() {
 		super();
 		socket.setClockFrequency(90000);
+		socket.setPayloadListener(new RtpSocket.PayloadListener() {
+			@Override
+			public void onPayloadReleased(int tag) {
+				releaseSlot(tag);
+			}
+		});
 	}
 
 	public void start() {
@@ -71,9 +122,45 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				t.join();
 			} catch (InterruptedException e) {}
 			t = null;
+			// The codec is released once the packetizer is stopped, the socket must be done with its buffers
+			if (!awaitReleased(DRAIN_TIMEOUT)) {
+				socket.dropQueued();
+				if (!awaitReleased(DROP_TIMEOUT)) Log.e(TAG, "Output buffers of the codec are still used by the socket");
+			}
 		}
 	}
 
+	/** Waits until every held output buffer of the codec has been given back, returns false after the timeout. */
+	private boolean awaitReleased(long timeout) {
+		long deadline = System.nanoTime() + timeout*1000000L;
+		for (int i=0;i<MAX_HELD_BUFFERS;) {
+			if (held.get(i) == 0) {
+				i++;
+				continue;
+			}
+			if (System.nanoTime() - deadline > 0) return false;
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Small NAL units of an output buffer of the MediaCodec can wait up to this delay to be sent
+	 * in the same STAP-A packet as the NAL units of the next buffers with the same timestamp.
+	 * Before Android 8.0, it is also how long the last packet of a buffer waits for the next buffer,
+	 * to know whether the access unit is complete. 0 by default: only a buffer already output
+	 * by the codec is waited for.
+	 * @param delay The delay in ms
+	 */
+	public void setMaxAggregationDelay(long delay) {
+		maxAggregationDelay = delay;
+	}
+
 	public void setStreamParameters(byte[] pps, byte[] sps) {
 		this.pps = pps;
 		this.sps = sps;
@@ -104,6 +191,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
 		stats.reset();
+		track.reset();
 		count = 0;
 
 		if (is instanceof MediaCodecInputStream) {
@@ -119,7 +207,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
-				send();
+				if (streamType == 0) {
+					send();
+				} else {
+					sendAccessUnit();
+				}
 				// We measure how long it took to receive NAL units from the phone
 				duration = System.nanoTime() - oldtime;
 
@@ -132,6 +224,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		} catch (IOException e) {
 		} catch (InterruptedException e) {}
 
+		discardPending();
+		stapaOpen = false;
 		Log.d(TAG,"H264 packetizer stopped !");
 
 	}
@@ -140,61 +234,22 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
 		int sum = 1, len = 0, type;
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-		}
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		long time = System.nanoTime();
+		socket.setOutputTime(time);
+		// This NAL unit starts where the previous one ends
+		ts = track.next(delay) + delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
 
-
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
-		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
-			count++;
-			if (count>4) {
-				sps = null;
-				pps = null;
-			}
-		}
-
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
-		}
+		sendParameterSets(type);
 
 		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
@@ -236,6 +291,409 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
 			}
 		}
+		socket.getMetrics().packetizeTime.record((System.nanoTime() - time) / 1000);
+	}
+
+	/**
+	 * Reads an output buffer of the MediaCodec and sends it without copying it.
+	 * The buffer is given back to the codec by the socket once all its packets have been sent,
+	 * so the packetizer does not wait for the network. When the FIFO of the socket is half full,
+	 * or when too many buffers are held, the payloads are copied and the buffer is given back at once.
+	 */
+	@SuppressLint("NewApi")
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		MediaCodecInputStream input = (MediaCodecInputStream) is;
+		ByteBuffer au;
+
+		if (stapaOpen || pending) {
+			long left = openTime + maxAggregationDelay*1000000L - System.nanoTime();
+			// When the codec flagged the buffer as a partial frame, the rest of the access unit will come
+			au = openPartial ? input.readBuffer() : input.readBuffer(left > 0 ? left/1000 : 0);
+			if (au == null) {
+				// Nothing came in time, the access unit is complete
+				closeFrame(true);
+				return;
+			}
+		} else {
+			au = input.readBuffer();
+		}
+
+		BufferInfo info = input.getLastBufferInfo();
+		long time = System.nanoTime();
+		int slot = socket.getQueueLength() > socket.getFifoCapacity()/2 ? -1 : acquireSlot();
+		socket.setOutputTime(time);
+		if (slot >= 0) {
+			// The packetizer holds a reference until the whole access unit is committed
+			heldIndices[slot] = input.detachBuffer();
+			held.set(slot, 1);
+		}
+		heldSlot = slot;
+		socket.setPayloadTag(slot);
+		try {
+			send(au, info);
+			socket.getMetrics().packetizeTime.record((System.nanoTime() - time) / 1000);
+			socket.getMetrics().latency.mark(info.presentationTimeUs, LatencyTracer.STAGE_PACKETIZED);
+		} finally {
+			heldSlot = -1;
+			socket.setPayloadTag(-1);
+			if (slot >= 0) {
+				releaseSlot(slot);
+			} else {
+				input.releaseBuffer();
+			}
+		}
+	}
+
+	/** Returns a slot to hold an output buffer of the codec, or -1 if they are all used. */
+	private int acquireSlot() {
+		for (int i=0;i<MAX_HELD_BUFFERS;i++) {
+			if (held.get(i) == 0) return i;
+		}
+		return -1;
+	}
+
+	/** Drops a reference to a held buffer, the last one gives the buffer back to the codec. */
+	private void releaseSlot(int slot) {
+		// The slot can be reused as soon as the count drops to 0
+		int index = heldIndices[slot];
+		if (held.decrementAndGet(slot) == 0) {
+			((MediaCodecInputStream) is).releaseBuffer(index);
+		}
+	}
+
+	/**
+	 * Sends a packet made of the first length bytes of the buffer of the socket, followed by
+	 * a slice of the access unit. The slice is copied when the access unit is not held.
+	 */
+	private void sendSlice(int length, ByteBuffer au, int offset, int count) throws IOException {
+		if (heldSlot < 0) {
+			au.position(offset);
+			au.get(buffer, length, count);
+			super.send(length+count);
+		} else {
+			held.incrementAndGet(heldSlot);
+			super.send(length, au, offset, count);
+		}
+	}
+
+	/**
+	 * Sends the NAL units of an output buffer, from the position to the limit of the buffer.
+	 * The NAL units are separated by Annex B start codes, the first one may have no start code.
+	 * Small NAL units are aggregated in STAP-A packets, the marker bit is only set on the last
+	 * packet of the access unit, see {@link #endBuffer(int)}.
+	 */
+	private void send(ByteBuffer au, BufferInfo info) throws IOException, InterruptedException {
+		int start = au.position(), end = au.limit(), next, last;
+		boolean open = stapaOpen || pending;
+
+		ts = info.presentationTimeUs*1000L;
+
+		if (open && ts != openTs) {
+			// The previous access unit is complete
+			closeFrame(true);
+			open = false;
+		} else if (open) {
+			// The access unit goes on in this buffer, an open STAP-A stays open
+			commitPending(false);
+		}
+		if (!open) openTime = System.nanoTime();
+
+		while (start < end) {
+			next = findStartCode(au, start, end);
+			if (next == start) {
+				// Skips the start code
+				start += 3;
+				continue;
+			}
+			// Trailing zeros belong to the next start code
+			last = next;
+			while (last > start && au.get(last-1) == 0) last--;
+			if (last > start) sendNalUnit(au, start, last-start, next == end);
+			start = next;
+		}
+
+		endBuffer(info.flags);
+	}
+
+	/**
+	 * Called once the NAL units of an output buffer are sent, but its last packet is not committed yet.
+	 * An encoder may split an access unit over several buffers with the same timestamp, so the marker
+	 * bit can't be set on the last packet of every buffer. From Android 8.0 the codec flags the buffers
+	 * that don't end an access unit with BUFFER_FLAG_PARTIAL_FRAME. Before that, the last packet is kept
+	 * until the next buffer, which ends the access unit if it has another timestamp. It waits up to the
+	 * maximum aggregation delay, the next buffer is often already there when the access unit was split.
+	 */
+	private void endBuffer(int flags) throws IOException, InterruptedException {
+		boolean config = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+		boolean partial = (flags & BUFFER_FLAG_PARTIAL_FRAME) != 0;
+
+		if (config || (!partial && Build.VERSION.SDK_INT >= 26)) {
+			// The codec tells whether the access unit is complete, the SPS and the PPS are not one
+			closeFrame(!config);
+			return;
+		}
+
+		if (!stapaOpen && aggregated == 1) {
+			// A lone NAL unit is kept as a Single NAL unit packet, without being copied
+			socket.setDiscardable(isDiscardable(aggregatedBuffer.get(aggregatedOffsets[0])&0x1F));
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			deferSlice(rtphl, aggregatedBuffer, aggregatedOffsets[0], aggregatedLengths[0]);
+			aggregated = 0;
+			aggregatedSize = 1;
+			aggregatedBuffer = null;
+		} else {
+			holdAggregate();
+		}
+		openTs = ts;
+		openPartial = partial;
+	}
+
+	/** Commits the last packet of the access unit, kept in the socket until now. */
+	private void closeFrame(boolean mark) throws IOException, InterruptedException {
+		flushAggregate(mark);
+		commitPending(mark);
+	}
+
+	/**
+	 * Keeps a packet made of the first length bytes of the buffer of the socket and a slice of the
+	 * access unit, instead of committing it like {@link #sendSlice(int, ByteBuffer, int, int)}.
+	 * No other buffer can be requested from the socket until {@link #commitPending(boolean)} is called.
+	 */
+	private void deferSlice(int length, ByteBuffer au, int offset, int count) {
+		if (heldSlot < 0) {
+			au.position(offset);
+			au.get(buffer, length, count);
+			pendingLength = length+count;
+			pendingPayload = null;
+		} else {
+			held.incrementAndGet(heldSlot);
+			pendingLength = length;
+			pendingPayload = au;
+			pendingOffset = offset;
+			pendingCount = count;
+		}
+		pendingSlot = heldSlot;
+		pending = true;
+	}
+
+	/** Commits the packet kept by {@link #deferSlice(int, ByteBuffer, int, int)}, if any. */
+	private void commitPending(boolean mark) throws IOException {
+		if (!pending) return;
+		pending = false;
+		if (mark) socket.markNextPacket();
+		if (pendingPayload == null) {
+			super.send(pendingLength);
+		} else {
+			socket.setPayloadTag(pendingSlot);
+			super.send(pendingLength, pendingPayload, pendingOffset, pendingCount);
+			socket.setPayloadTag(heldSlot);
+			pendingPayload = null;
+		}
+	}
+
+	/** Forgets the packet kept by {@link #deferSlice(int, ByteBuffer, int, int)}, its output buffer is given back. */
+	private void discardPending() {
+		if (!pending) return;
+		pending = false;
+		pendingPayload = null;
+		if (pendingSlot >= 0) releaseSlot(pendingSlot);
+	}
+
+	/**
+	 * Returns the index of the next 0x000001 start code in the buffer, or end if there is none.
+	 * Four bytes are tested at once: a start code can't begin in a word that has no zero byte.
+	 */
+	static int findStartCode(ByteBuffer buffer, int start, int end) {
+		int i = start, word;
+		while (i+5 < end) {
+			word = buffer.getInt(i);
+			if (((word - 0x01010101) & ~word & 0x80808080) == 0) {
+				i += 4;
+				continue;
+			}
+			for (int j=i; j<i+4; j++) {
+				if (buffer.get(j) == 0 && buffer.get(j+1) == 0 && buffer.get(j+2) == 1) return j;
+			}
+			i += 4;
+		}
+		for (; i+2 < end; i++) {
+			if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) return i;
+		}
+		return end;
+	}
+
+	/**
+	 * Sends a NAL unit: small NAL units are kept to be aggregated with the following ones,
+	 * large NAL units are split in FU-A units.
+	 * Only the RTP header and the FU-A header are written in the buffers of the socket.
+	 * @param last Whether it is the last NAL unit of the buffer, its last packet is then kept by {@link #deferSlice(int, ByteBuffer, int, int)}
+	 */
+	private void sendNalUnit(ByteBuffer au, int offset, int length, boolean last) throws IOException, InterruptedException {
+		int sum = 1, len;
+		byte nal = au.get(offset);
+
+		sendParameterSets(nal&0x1F);
+
+		// Small NAL unit => STAP-A or Single NAL unit
+		if (length+2 <= MAXPACKETSIZE-rtphl-1) {
+			if (aggregated == MAX_AGGREGATED || aggregatedSize+length+2 > MAXPACKETSIZE-rtphl
+					|| (stapaOpen && stapaDiscardable && !isDiscardable(nal&0x1F))) {
+				flushAggregate(false);
+			}
+			aggregatedBuffer = au;
+			aggregatedOffsets[aggregated] = offset;
+			aggregatedLengths[aggregated] = length;
+			aggregatedSize += length+2;
+			aggregated++;
+			return;
+		}
+
+		flushAggregate(false);
+
+		// Large NAL unit => Split nal unit
+		header[0] = (byte) ((nal & 0x60) + 28); // FU indicator NRI
+		header[1] = (byte) ((nal & 0x1F) + 0x80); // FU header type, start bit
+		socket.setDiscardable(isDiscardable(nal&0x1F));
+
+		while (sum < length) {
+			len = length-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : length-sum;
+			buffer = socket.requestBuffer();
+			buffer[rtphl] = header[0];
+			buffer[rtphl+1] = header[1];
+			socket.updateTimestamp(ts);
+			// Last packet before next NAL
+			if (sum+len >= length) {
+				// End bit on
+				buffer[rtphl+1] += 0x40;
+			}
+			if (last && sum+len >= length) {
+				// The marker bit is decided with the next buffer
+				deferSlice(rtphl+2, au, offset+sum, len);
+			} else {
+				sendSlice(rtphl+2, au, offset+sum, len);
+			}
+			sum += len;
+			// Switch start bit
+			header[1] = (byte) (header[1] & 0x7F);
+		}
+	}
+
+	/**
+	 * Sends the NAL units waiting to be aggregated. A lone NAL unit is sent as a Single NAL unit
+	 * packet without being copied, several NAL units are copied in a STAP-A packet.
+	 * @param mark Whether the packet is the last one of the access unit
+	 */
+	private void flushAggregate(boolean mark) throws IOException, InterruptedException {
+		if (!stapaOpen && aggregated == 0) return;
+
+		if (!stapaOpen && aggregated == 1) {
+			socket.setDiscardable(isDiscardable(aggregatedBuffer.get(aggregatedOffsets[0])&0x1F));
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			if (mark) socket.markNextPacket();
+			sendSlice(rtphl, aggregatedBuffer, aggregatedOffsets[0], aggregatedLengths[0]);
+			aggregated = 0;
+			aggregatedSize = 1;
+			aggregatedBuffer = null;
+			return;
+		}
+
+		holdAggregate();
+		buffer = stapaBuffer;
+		if (mark) socket.markNextPacket();
+
+		if (stapaCount == 1) {
+			// Single NAL unit after all, the STAP-A header and the size are removed
+			System.arraycopy(buffer, rtphl+3, buffer, rtphl, stapaPos-rtphl-3);
+			super.send(stapaPos-3);
+		} else {
+			// STAP-A NAL header is 24
+			buffer[rtphl] = (byte) (stapaF | stapaNri | 24);
+			super.send(stapaPos);
+		}
+
+		stapaOpen = false;
+		stapaBuffer = null;
+		aggregatedSize = 1;
+	}
+
+	/**
+	 * Copies the NAL units waiting to be aggregated in a buffer of the socket,
+	 * so that the output buffer of the MediaCodec can be given back before they are sent.
+	 */
+	private void holdAggregate() throws InterruptedException {
+		int offset, length;
+
+		if (aggregated == 0) return;
+
+		if (!stapaOpen) {
+			stapaDiscardable = true;
+			for (int i=0;i<aggregated;i++) {
+				stapaDiscardable &= isDiscardable(aggregatedBuffer.get(aggregatedOffsets[i])&0x1F);
+			}
+			socket.setDiscardable(stapaDiscardable);
+			stapaBuffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			stapaOpen = true;
+			stapaCount = 0;
+			stapaPos = rtphl+1;
+			stapaNri = 0;
+			stapaF = 0;
+		}
+
+		for (int i=0;i<aggregated;i++) {
+			offset = aggregatedOffsets[i];
+			length = aggregatedLengths[i];
+			stapaNri = Math.max(stapaNri, aggregatedBuffer.get(offset) & 0x60);
+			stapaF |= aggregatedBuffer.get(offset) & 0x80;
+			stapaBuffer[stapaPos++] = (byte) (length >> 8);
+			stapaBuffer[stapaPos++] = (byte) (length & 0xFF);
+			aggregatedBuffer.position(offset);
+			aggregatedBuffer.get(stapaBuffer, stapaPos, length);
+			stapaPos += length;
+			stapaCount++;
+		}
+
+		aggregated = 0;
+		aggregatedBuffer = null;
+	}
+
+	/** Only the packets of slices that are not IDR slices may be dropped by the RtpSocket. */
+	private static boolean isDiscardable(int type) {
+		return type != 5 && type != 7 && type != 8;
+	}
+
+	/**
+	 * Called before a NAL unit is sent, sends the SPS and the PPS in front of IDR slices
+	 * if the stream does not contain them.
+	 */
+	private void sendParameterSets(int type) throws IOException, InterruptedException {
+
+		socket.setDiscardable(isDiscardable(type));
+
+		// The stream already contains NAL unit type 7 or 8, we don't need 
+		// to add them to the stream ourselves
+		if (type == 7 || type == 8) {
+			Log.v(TAG,"SPS or PPS present in the stream.");
+			count++;
+			if (count>4) {
+				sps = null;
+				pps = null;
+			}
+		}
+
+		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+		if (type == 5 && sps != null && pps != null) {
+			flushAggregate(false);
+			socket.setDiscardable(false);
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
+			super.send(rtphl+stapa.length);
+		}
+
 	}
 
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
@@ -254,6 +712,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		int type;
 
 		Log.e(TAG,"Packetizer out of sync ! Let's try to fix that...(NAL length: "+naluLength+")");
+		socket.getMetrics().resyncs.increment();
 
 		while (true) {
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * RFC 2326, section 10.12.
+ * Owns the TCP connection of an RTSP session and writes RTSP requests and interleaved
+ * RTP/RTCP packets of all the tracks on it. Frames are queued by their producers and
+ * written by a single thread with gathering writes: the 4 bytes long '$' header and
+ * the payload of every queued frame go to the socket in one call.
+ */
+public class InterleavedWriter implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	/** Maximum number of frames written in one gathering write. */
+	private final static int MAX_BATCH = 64;
+
+	private final SocketChannel mChannel;
+	private final ArrayBlockingQueue<Frame> mQueue = new ArrayBlockingQueue<Frame>(1024);
+	private final ArrayList<Frame> mBatch = new ArrayList<Frame>(MAX_BATCH);
+	private final ByteBuffer[] mVector = new ByteBuffer[3*MAX_BATCH];
+	private final ControlStream mControlStream = new ControlStream();
+	private volatile boolean mClosed = false;
+	private Thread mThread;
+
+	/**
+	 * Called by the thread of the writer once the frame has been written,
+	 * or dropped because the connection was lost.
+	 */
+	public interface Listener {
+		public void onFrameWritten(Frame frame);
+	}
+
+	/** A frame that can be queued again once it has been written. */
+	public static class Frame {
+
+		private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+		private final ByteBuffer mHeader = ByteBuffer.allocate(4);
+		private final Listener mListener;
+		private final int mId;
+		private ByteBuffer mRtpHeader = EMPTY;
+		private ByteBuffer mPayload;
+
+		public Frame(Listener listener) {
+			this(listener, 0);
+		}
+
+		/** @param id Identifies the frame in the listener, for example the index of a buffer */
+		public Frame(Listener listener, int id) {
+			mListener = listener;
+			mId = id;
+		}
+
+		public int getId() {
+			return mId;
+		}
+
+		/**
+		 * Sets the payload of the frame, from its position to its limit.
+		 * @param channel The channel identifier or -1 to write the payload without the '$' header
+		 **/
+		public void set(int channel, ByteBuffer payload) {
+			set(channel, null, payload);
+		}
+
+		/**
+		 * Sets the payload of the frame, written after a separate RTP header.
+		 * @param channel The channel identifier or -1 to write the payload without the '$' header
+		 * @param rtpHeader Written before the payload, can be null
+		 **/
+		public void set(int channel, ByteBuffer rtpHeader, ByteBuffer payload) {
+			mRtpHeader = rtpHeader != null ? rtpHeader : EMPTY;
+			mPayload = payload;
+			mHeader.clear();
+			if (channel >= 0) {
+				mHeader.put((byte) '$');
+				mHeader.put((byte) channel);
+				mHeader.putShort((short) (mRtpHeader.remaining()+payload.remaining()));
+			}
+			mHeader.flip();
+		}
+
+	}
+
+	/**
+	 * @param channel A connected channel, the writer will use it in blocking mode
+	 */
+	public InterleavedWriter(SocketChannel channel) throws IOException {
+		mChannel = channel;
+		mChannel.configureBlocking(true);
+	}
+
+	public void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/** Closes the connection, frames that were not written yet are dropped. */
+	public void close() {
+		mClosed = true;
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+		if (mThread != null) {
+			mThread.interrupt();
+			try {
+				mThread.join();
+			} catch (InterruptedException ignore) {}
+			mThread = null;
+		}
+		dropBatch();
+		dropQueue();
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * The stream used by the {@link net.majorkernelpanic.streaming.rtsp.RtspClient} to send its
+	 * requests. It can be passed to {@link RtpSocket#setOutputStream(java.io.OutputStream, byte)},
+	 * the RTP packets will then be written by this writer.
+	 */
+	public ControlStream getControlStream() {
+		return mControlStream;
+	}
+
+	/**
+	 * Queues a frame, blocks if too many frames are waiting.
+	 * If the connection is closed the frame is dropped immediately.
+	 **/
+	public void put(Frame frame) throws InterruptedException {
+		if (mClosed) {
+			frame.mListener.onFrameWritten(frame);
+		} else {
+			mQueue.put(frame);
+			// The connection may have been lost in the meantime
+			if (mClosed) dropQueue();
+		}
+	}
+
+	/**
+	 * Takes back a frame that is still waiting in the queue, its listener is not called.
+	 * @return false if the frame is not queued, it may be being written
+	 **/
+	public boolean remove(Frame frame) {
+		return mQueue.remove(frame);
+	}
+
+	/**
+	 * Queues a frame if it can be done without blocking.
+	 * @return false if the frame was not queued
+	 **/
+	public boolean offer(Frame frame) {
+		return !mClosed && mQueue.offer(frame);
+	}
+
+	@Override
+	public void run() {
+		Frame frame;
+		int n;
+		long remaining;
+		try {
+			while (!mClosed) {
+				mBatch.add(mQueue.take());
+				mQueue.drainTo(mBatch, MAX_BATCH-1);
+				n = mBatch.size();
+				remaining = 0;
+				for (int i=0;i<n;i++) {
+					frame = mBatch.get(i);
+					mVector[3*i] = frame.mHeader;
+					mVector[3*i+1] = frame.mRtpHeader;
+					mVector[3*i+2] = frame.mPayload;
+					remaining += frame.mHeader.remaining() + frame.mRtpHeader.remaining() + frame.mPayload.remaining();
+				}
+				// A single flush per batch, until every buffer of the vector is written
+				while (remaining > 0) {
+					remaining -= mChannel.write(mVector, 0, 3*n);
+				}
+				for (int i=0;i<n;i++) {
+					mBatch.get(i).mListener.onFrameWritten(mBatch.get(i));
+					mVector[3*i+1] = null;
+					mVector[3*i+2] = null;
+				}
+				mBatch.clear();
+			}
+		} catch (InterruptedException ignore) {
+		} catch (IOException e) {
+			Log.e(TAG, "Connection lost: "+e.getMessage());
+		}
+		mClosed = true;
+		dropBatch();
+		dropQueue();
+	}
+
+	/** Gives back the frames of the current batch, only the thread of the writer touches it. */
+	private void dropBatch() {
+		for (int i=0;i<mBatch.size();i++) {
+			mBatch.get(i).mListener.onFrameWritten(mBatch.get(i));
+		}
+		mBatch.clear();
+	}
+
+	/** Gives back the frames that will never be written. */
+	private void dropQueue() {
+		Frame frame;
+		while ((frame = mQueue.poll()) != null) {
+			frame.mListener.onFrameWritten(frame);
+		}
+	}
+
+	/**
+	 * Buffers a request until {@link #flush()} is called, the request is then written
+	 * between two interleaved packets and {@link #flush()} returns once it is on the wire.
+	 */
+	public class ControlStream extends ByteArrayOutputStream {
+
+		public InterleavedWriter getWriter() {
+			return InterleavedWriter.this;
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (count == 0) return;
+			final CountDownLatch written = new CountDownLatch(1);
+			Frame frame = new Frame(new Listener() {
+				@Override
+				public void onFrameWritten(Frame frame) {
+					written.countDown();
+				}
+			});
+			frame.set(-1, ByteBuffer.wrap(toByteArray()));
+			reset();
+			try {
+				put(frame);
+				written.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (mClosed) throw new IOException("Connection lost");
+		}
+
+		@Override
+		public void close() {
+			InterleavedWriter.this.close();
+		}
+
+	}
+
+}
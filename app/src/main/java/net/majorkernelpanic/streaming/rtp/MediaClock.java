@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+/**
+ * Clock shared by the tracks of a session.
+ *
+ * The packetizers give the {@link RtpSocket} capture times in ns, on the timebase of
+ * System.nanoTime() which is also the one of the presentation times given to the MediaCodec.
+ * The RTP timestamp of a packet is derived from its capture time only, and the clock maps
+ * capture times to the wall clock: the NTP and RTP timestamps of the sender reports of every
+ * track then refer to the same instants and receivers can synchronize the tracks.
+ *
+ * The wall clock is read once, NTP timestamps are then extrapolated with System.nanoTime()
+ * so that they never go backward when the time of the phone is adjusted.
+ *
+ * Streams without capture times (read from a MediaRecorder) use a {@link Track}.
+ */
+public class MediaClock {
+
+	public final static String TAG = "MediaClock";
+
+	/** Seconds between 1900 (NTP epoch) and 1970 (Unix epoch). */
+	private final static long NTP_OFFSET = 2208988800L;
+
+	private final static MediaClock sDefault = new MediaClock();
+
+	private final long mAnchorNanos;
+	private final long mAnchorWall;
+
+	public MediaClock() {
+		mAnchorWall = System.currentTimeMillis()*1000000L;
+		mAnchorNanos = System.nanoTime();
+	}
+
+	/** The clock used by default by the packetizers. */
+	public static MediaClock getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * Returns the 64 bits NTP timestamp (32.32 fixed point) of a capture time.
+	 * @param ns A capture time in ns, on the timebase of System.nanoTime()
+	 */
+	public long toNtpTimestamp(long ns) {
+		long wall = mAnchorWall + (ns - mAnchorNanos);
+		long seconds = wall / 1000000000L;
+		long fraction = ((wall - seconds*1000000000L) << 32) / 1000000000L;
+		return ((seconds + NTP_OFFSET) << 32) | fraction;
+	}
+
+	/** Creates a track for a stream without capture times. */
+	public Track createTrack() {
+		return new Track();
+	}
+
+	/**
+	 * Gives capture times to the frames of a stream that only knows their durations,
+	 * like audio read from a MediaRecorder. Summing durations alone drifts away from the wall
+	 * clock, because the clock of the audio hardware is never exactly the one of the phone.
+	 *
+	 * The track measures how late each frame is read compared to its capture time. The
+	 * smallest delay of each period is compared to the one of the first period, it does
+	 * not depend on the bursts in which the MediaRecorder writes its output. The difference
+	 * is then slewed away by at most 0.5% of the duration of each frame, so that timestamps
+	 * always increase and the audio is not distorted. A difference larger than
+	 * {@link #MAX_DRIFT} (a stall of the stream) is corrected at once.
+	 */
+	public static class Track {
+
+		/** Duration of a measurement period in ns. */
+		private final static long PERIOD = 2000000000L;
+
+		/** Drift corrected at once, in ns. */
+		public final static long MAX_DRIFT = 500000000L;
+
+		private long mTime, mReference, mMinimum, mPeriodStart, mSlew;
+		private int mFrames, mPeriodFrames;
+		private boolean mStarted = false, mCalibrated = false;
+
+		private Track() {}
+
+		/** Called when the stream is started again. */
+		public void reset() {
+			mStarted = false;
+			mCalibrated = false;
+			mSlew = 0;
+		}
+
+		/**
+		 * Returns the capture time of a frame that has just been read, in ns on the timebase of
+		 * System.nanoTime(). Must be called once for every frame of the stream, in order.
+		 * @param duration The duration of the frame in ns
+		 */
+		public long next(long duration) {
+			long now = System.nanoTime(), time, delay;
+
+			if (!mStarted) {
+				mStarted = true;
+				mTime = now - duration;
+				mPeriodStart = now;
+				mMinimum = Long.MAX_VALUE;
+				mFrames = 0;
+				mPeriodFrames = 0;
+			}
+
+			time = mTime;
+			mTime += duration + Math.max(-duration/200, Math.min(duration/200, mSlew));
+			mFrames++;
+
+			// The frame ends at mTime, it can't be read before
+			delay = now - mTime;
+			if (delay < mMinimum) mMinimum = delay;
+
+			if (now - mPeriodStart >= PERIOD) {
+				mPeriodFrames = mFrames;
+				if (!mCalibrated) {
+					mCalibrated = true;
+					mReference = mMinimum;
+				} else {
+					drift(mMinimum - mReference);
+				}
+				mPeriodStart = now;
+				mMinimum = Long.MAX_VALUE;
+				mFrames = 0;
+			}
+
+			return time;
+		}
+
+		/** The capture time of the frames is late by drift ns. */
+		private void drift(long drift) {
+			if (Math.abs(drift) > MAX_DRIFT) {
+				Log.w(TAG, "Track resynchronized, drift: "+drift/1000000+" ms");
+				mTime += drift;
+				mSlew = 0;
+			} else {
+				// Half of the drift is corrected during the next period
+				mSlew = drift / 2 / Math.max(1, mPeriodFrames);
+			}
+		}
+
+	}
+
+}
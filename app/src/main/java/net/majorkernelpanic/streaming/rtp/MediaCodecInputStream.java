@@ -28,8 +28,11 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 
+import net.majorkernelpanic.streaming.metrics.LatencyTracer;
+
 /**
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
@@ -46,12 +49,18 @@ public class MediaCodecInputStream extends InputStream {
     private ByteBuffer mBuffer = null;
     private int mIndex = -1;
     private boolean mClosed = false;
+    private LatencyTracer mTracer = null;
 
     public MediaCodecInputStream(MediaCodec mediaCodec) {
         mMediaCodec = mediaCodec;
         mBuffers = mMediaCodec.getOutputBuffers();
     }
 
+    /** The frames output by the codec are marked in the tracer, by their presentation time. */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mTracer = tracer;
+    }
+
     @Override
     public void close() {
         mClosed = true;
@@ -67,42 +76,7 @@ public class MediaCodecInputStream extends InputStream {
         int min = 0;
         try {
             if (mBuffer == null) {
-                while (!Thread.interrupted() && !mClosed) {
-                    //the original is 500000
-                    mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, -1);
-                   // Log.d(TAG, "" + mIndex);
-                    if (mIndex >= 0) {
-                     //   Log.d(TAG, "Index: " + mIndex + " Time: " + mBufferInfo.presentationTimeUs + " size: " + mBufferInfo.size);
-                        mBuffer = mBuffers[mIndex];
-                        mBuffer.position(0);
-                        break;
-                    } else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                        Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
-                        // this shoud not come when encoding
-                        mBuffers = mMediaCodec.getOutputBuffers();
-                    } else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        // this status indicate the output format of codec is changed
-                        // this should come only once before actual encoded data
-                        // but this status never come on Android4.3 or less
-                        // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                        mMediaFormat = mMediaCodec.getOutputFormat(); //API>=16
-                        Log.i(TAG, "format changed! new format:" + mMediaFormat.toString());
-                        // get output format from codec and pass them to muxer
-                        // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-                      
-                       //mTrackIndex used in  	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                        //which eaual to    mBuffer.get(buffer, offset, min);
-                      //  mTrackIndex = muxer.addTrack(mMediaFormat);
-
-
-                    } else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.v(TAG, "No buffer available...");
-                        //return 0;
-                    } else {
-                        Log.e(TAG, "Message: " + mIndex);
-                        //return 0;
-                    }
-                }
+                dequeue(-1);
             }
 
             if (mClosed) throw new IOException("This InputStream was closed");
@@ -123,6 +97,111 @@ public class MediaCodecInputStream extends InputStream {
         return min;
     }
 
+    /**
+     * Returns the next output buffer of the codec without copying it, from
+     * {@link BufferInfo#offset} to {@link BufferInfo#offset}+{@link BufferInfo#size}.
+     * The codec can't reuse it until {@link #releaseBuffer()} is called, which must be
+     * done before the codec is released.
+     */
+    public ByteBuffer readBuffer() throws IOException {
+        return readBuffer(-1);
+    }
+
+    /**
+     * Same as {@link #readBuffer()} but gives up after the timeout.
+     * @param timeoutUs The timeout in us, or -1 to wait indefinitely
+     * @return The buffer or null if the codec did not output anything before the timeout
+     */
+    public ByteBuffer readBuffer(long timeoutUs) throws IOException {
+        if (mBuffer == null) {
+            dequeue(timeoutUs);
+        }
+        if (mClosed) throw new IOException("This InputStream was closed");
+        if (mBuffer == null) {
+            if (timeoutUs >= 0 && mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) return null;
+            throw new InterruptedIOException("Interrupted");
+        }
+        mBuffer.clear();
+        mBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+        mBuffer.position(mBufferInfo.offset);
+        return mBuffer;
+    }
+
+    /** Gives the buffer returned by {@link #readBuffer()} back to the codec. */
+    public void releaseBuffer() {
+        if (mBuffer != null) {
+            try {
+                mMediaCodec.releaseOutputBuffer(mIndex, false);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Forgets the buffer returned by {@link #readBuffer()} without giving it back to the codec,
+     * the next call to {@link #readBuffer()} returns the next output buffer.
+     * @return The index of the buffer, to be given to {@link #releaseBuffer(int)}, or -1 if there is none
+     */
+    public int detachBuffer() {
+        if (mBuffer == null) return -1;
+        mBuffer = null;
+        return mIndex;
+    }
+
+    /** Gives a buffer returned by {@link #detachBuffer()} back to the codec, it can be called from any thread. */
+    public void releaseBuffer(int index) {
+        try {
+            mMediaCodec.releaseOutputBuffer(index, false);
+        } catch (RuntimeException e) {
+            // The codec may have been stopped
+            e.printStackTrace();
+        }
+    }
+
+    private void dequeue(long timeoutUs) {
+        while (!Thread.interrupted() && !mClosed) {
+            //the original is 500000
+            mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+           // Log.d(TAG, "" + mIndex);
+            if (mIndex >= 0) {
+             //   Log.d(TAG, "Index: " + mIndex + " Time: " + mBufferInfo.presentationTimeUs + " size: " + mBufferInfo.size);
+                mBuffer = mBuffers[mIndex];
+                mBuffer.position(0);
+                if (mTracer != null && (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mTracer.mark(mBufferInfo.presentationTimeUs, LatencyTracer.STAGE_ENCODED);
+                }
+                break;
+            } else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                Log.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
+                // this shoud not come when encoding
+                mBuffers = mMediaCodec.getOutputBuffers();
+            } else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // this status indicate the output format of codec is changed
+                // this should come only once before actual encoded data
+                // but this status never come on Android4.3 or less
+                // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
+                mMediaFormat = mMediaCodec.getOutputFormat(); //API>=16
+                Log.i(TAG, "format changed! new format:" + mMediaFormat.toString());
+                // get output format from codec and pass them to muxer
+                // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
+
+               //mTrackIndex used in  	muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                //which eaual to    mBuffer.get(buffer, offset, min);
+              //  mTrackIndex = muxer.addTrack(mMediaFormat);
+
+
+            } else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                Log.v(TAG, "No buffer available...");
+                if (timeoutUs >= 0) break;
+            } else {
+                Log.e(TAG, "Message: " + mIndex);
+                //return 0;
+            }
+        }
+    }
+
     public int available() {
         if (mBuffer != null)
             return mBufferInfo.size - mBuffer.position();
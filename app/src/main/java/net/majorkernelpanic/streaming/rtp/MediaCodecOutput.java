@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Drains the output buffers of a MediaCodec in its own thread and hands them to a
+ * {@link Listener} as they are, without going through an InputStream.
+ */
+@SuppressLint("NewApi")
+public class MediaCodecOutput implements Runnable {
+
+    public final static String TAG = "MediaCodecOutput";
+
+    /** Timeout of dequeueOutputBuffer, so that the thread can be stopped. */
+    private final static long TIMEOUT_US = 100000;
+
+    public interface Listener {
+        /**
+         * Called by the thread of the {@link MediaCodecOutput} for each output buffer of the codec,
+         * from its position to its limit. The buffer is given back to the codec when this method returns.
+         */
+        public void onOutputBuffer(ByteBuffer buffer, BufferInfo info) throws IOException, InterruptedException;
+    }
+
+    private final MediaCodec mMediaCodec;
+    private final Listener mListener;
+    private final BufferInfo mBufferInfo = new BufferInfo();
+    private Thread mThread = null;
+
+    public MediaCodecOutput(MediaCodec mediaCodec, Listener listener) {
+        mMediaCodec = mediaCodec;
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        }
+    }
+
+    /** Waits for the thread to stop, the codec can then be released. */
+    public void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException ignore) {}
+            mThread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer[] buffers = mMediaCodec.getOutputBuffers();
+        ByteBuffer buffer;
+        int index;
+
+        try {
+            while (!Thread.interrupted()) {
+                index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
+                if (index >= 0) {
+                    buffer = buffers[index];
+                    buffer.clear();
+                    buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                    buffer.position(mBufferInfo.offset);
+                    try {
+                        mListener.onOutputBuffer(buffer, mBufferInfo);
+                    } finally {
+                        mMediaCodec.releaseOutputBuffer(index, false);
+                    }
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    buffers = mMediaCodec.getOutputBuffers();
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    Log.i(TAG, "Format changed: " + mMediaCodec.getOutputFormat());
+                }
+            }
+        } catch (InterruptedException ignore) {
+        } catch (IOException e) {
+            Log.e(TAG, "The listener failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // The codec may have been released
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the packets sent by an {@link RtpSocket}.
+ * The packets of a frame are spread evenly over the interval between two frames,
+ * and if a target bit rate is set, a token bucket keeps the output under it.
+ * Waiting is done with {@link LockSupport#parkNanos(long)}, with a ns granularity.
+ */
+final class Pacer {
+
+	/** Part of the frame interval over which the packets of a frame are spread. */
+	private final static int SPREAD_PERCENT = 90;
+
+	/** Longer gaps between two frames are not taken into account (pauses). */
+	private final static long MAX_FRAME_INTERVAL = 1000000000L;
+
+	// Set by any thread, used by the sender thread from the next packet
+	private volatile long mNewBitrate = 0;
+	private volatile int mNewBurst = 0;
+	private volatile boolean mChanged = false;
+
+	// Only used by the sender thread
+	private long mBitrate = 0;
+	private long mBurst = 0;
+	private double mTokens = 0;
+	private long mRefill = 0;
+
+	private long mFrameTimestamp = 0, mFrameInterval = 0, mFrameEnd = 0;
+	private long mNextSend = 0;
+	private int mRemaining = 0;
+
+	/**
+	 * Can be called by any thread, the new values are used from the next packet.
+	 * @param bitrate The target bit rate in bit/s, 0 to disable the token bucket
+	 * @param burst The size of the bucket in bytes
+	 */
+	public void setBitrate(long bitrate, int burst) {
+		mNewBitrate = bitrate;
+		mNewBurst = burst;
+		mChanged = true;
+	}
+
+	public long getBitrate() {
+		return mNewBitrate;
+	}
+
+	public void reset() {
+		update();
+		mTokens = mBurst;
+		mRefill = 0;
+		mFrameTimestamp = 0;
+		mFrameInterval = 0;
+		mFrameEnd = 0;
+		mNextSend = 0;
+		mRemaining = 0;
+	}
+
+	/**
+	 * Called with the first packet of a frame.
+	 * @param timestamp The timestamp of the frame in ns
+	 * @param packets The number of packets of the frame known so far
+	 */
+	public void startFrame(long timestamp, int packets) {
+		long delta = timestamp - mFrameTimestamp;
+		if (mFrameTimestamp != 0 && delta > 0 && delta < MAX_FRAME_INTERVAL) {
+			// Smoothed interval between two frames
+			mFrameInterval = mFrameInterval == 0 ? delta : (7*mFrameInterval + delta)/8;
+		}
+		mFrameTimestamp = timestamp;
+		mFrameEnd = System.nanoTime() + mFrameInterval*SPREAD_PERCENT/100;
+		mRemaining = packets;
+		mNextSend = 0;
+	}
+
+	/** Called when more packets of the current frame were committed. */
+	public void extendFrame(int packets) {
+		mRemaining += packets;
+	}
+
+	/**
+	 * Waits until the packet can be sent.
+	 * @param length The length of the packet in bytes
+	 */
+	public void pace(int length) throws InterruptedException {
+		update();
+		long now = System.nanoTime();
+		long deadline = mNextSend != 0 ? mNextSend : now;
+
+		if (mBitrate > 0) {
+			refill(now);
+			if (mTokens < length) {
+				long t = now + (long) ((length - mTokens) * 8000000000d / mBitrate);
+				if (t > deadline) deadline = t;
+			}
+		}
+
+		while (deadline - now > 0) {
+			LockSupport.parkNanos(this, deadline - now);
+			if (Thread.interrupted()) throw new InterruptedException();
+			now = System.nanoTime();
+		}
+
+		if (mBitrate > 0) {
+			refill(now);
+			mTokens -= length;
+		}
+
+		// The remaining packets of the frame are spread until the end of the interval
+		if (--mRemaining > 0 && mFrameEnd - now > 0) {
+			mNextSend = now + (mFrameEnd - now)/(mRemaining+1);
+		} else {
+			mNextSend = 0;
+		}
+	}
+
+	/** Takes the values passed to {@link #setBitrate(long, int)}, the bucket is filled again. */
+	private void update() {
+		if (!mChanged) return;
+		mChanged = false;
+		mBitrate = mNewBitrate;
+		mBurst = mNewBurst;
+		mTokens = mBurst;
+	}
+
+	private void refill(long now) {
+		if (mRefill != 0) {
+			mTokens += (now - mRefill) * mBitrate / 8000000000d;
+			if (mTokens > mBurst) mTokens = mBurst;
+		}
+		mRefill = now;
+	}
+
+}
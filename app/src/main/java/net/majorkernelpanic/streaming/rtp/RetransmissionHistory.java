@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies of the last packets sent by an {@link RtpSocket}, so that they can be sent again
+ * when a receiver reports them lost. The packets are stored in a single preallocated array,
+ * in the slot given by the low bits of their sequence number: a packet is forgotten when
+ * another one takes its slot, or when it gets too old.
+ */
+final class RetransmissionHistory {
+
+	private final byte[] mBuffer;
+	private final int[] mSequences, mLengths;
+	private final long[] mTimes;
+	private final int mMask;
+
+	/** @param capacity The number of packets kept, rounded up to a power of 2 */
+	public RetransmissionHistory(int capacity) {
+		int n = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		mMask = n - 1;
+		mBuffer = new byte[n * RtpSocket.MTU];
+		mSequences = new int[n];
+		mLengths = new int[n];
+		mTimes = new long[n];
+		clear();
+	}
+
+	public int capacity() {
+		return mMask + 1;
+	}
+
+	public synchronized void clear() {
+		for (int i=0;i<=mMask;i++) mSequences[i] = -1;
+	}
+
+	/**
+	 * Stores a packet made of the first length bytes of header, followed by the payload
+	 * between the position and the limit of slice if it is not null. slice is not modified.
+	 * @param seq The sequence number of the packet
+	 * @param now The time in ms
+	 */
+	public synchronized void store(int seq, byte[] header, int length, ByteBuffer slice, long now) {
+		int slot = seq & mMask, offset = slot * RtpSocket.MTU, position;
+		int payload = slice != null ? slice.remaining() : 0;
+		if (length + payload > RtpSocket.MTU) {
+			mSequences[slot] = -1;
+			return;
+		}
+		System.arraycopy(header, 0, mBuffer, offset, length);
+		if (payload > 0) {
+			position = slice.position();
+			slice.get(mBuffer, offset + length, payload);
+			slice.position(position);
+		}
+		mSequences[slot] = seq;
+		mLengths[slot] = length + payload;
+		mTimes[slot] = now;
+	}
+
+	/**
+	 * Copies a packet in out if it is still known.
+	 * @param seq The sequence number of the packet
+	 * @param maxAge The maximum age of the packet in ms
+	 * @param now The time in ms
+	 * @return The length of the packet, or -1 if it is not known anymore
+	 */
+	public synchronized int get(int seq, long maxAge, long now, byte[] out, int offset) {
+		int slot = seq & mMask;
+		if (mSequences[slot] != seq || now - mTimes[slot] > maxAge) return -1;
+		System.arraycopy(mBuffer, slot * RtpSocket.MTU, out, offset, mLengths[slot]);
+		return mLengths[slot];
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer/single-consumer ring of slot indices.
+ * The producer (a packetizer) claims a slot, fills it and publishes it, the consumer
+ * (the thread of the {@link RtpSocket}) polls it, sends it and releases it.
+ * Both sides spin for a short while before parking, so that a steady stream of
+ * packets never goes through the scheduler.
+ */
+final class RingBuffer {
+
+	/** Number of busy iterations before yielding. */
+	private static final int SPIN_TRIES = 200;
+
+	/** Number of yields before parking. */
+	private static final int YIELD_TRIES = 10;
+
+	/** Upper bound of a single park, in ns. */
+	private static final long MAX_PARK = 1000000L;
+
+	private final int mCapacity;
+
+	/** Number of slots published by the producer. */
+	private final Sequence mHead = new Sequence();
+
+	/** Number of slots released by the consumer. */
+	private final Sequence mTail = new Sequence();
+
+	// Only touched by the producer
+	private long mCachedTail = 0;
+
+	// Only touched by the consumer
+	private long mRead = 0, mCachedHead = 0;
+
+	private volatile Thread mWaitingProducer, mWaitingConsumer;
+
+	public RingBuffer(int capacity) {
+		mCapacity = capacity;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/** Rewinds the ring, anything that was not released is lost. */
+	public void reset() {
+		mHead.value = 0;
+		mTail.value = 0;
+		mCachedTail = 0;
+		mRead = 0;
+		mCachedHead = 0;
+		unpark(mWaitingProducer);
+		unpark(mWaitingConsumer);
+	}
+
+	/**
+	 * Producer side. Waits for a free slot and returns its index.
+	 * Calling it twice without {@link #publish()} returns the same slot.
+	 **/
+	public int claim() throws InterruptedException {
+		long head = mHead.value;
+		if (head - mCachedTail >= mCapacity) {
+			mCachedTail = mTail.value;
+			for (int i=0; head - mCachedTail >= mCapacity; i++) {
+				if (i<SPIN_TRIES) {
+					// Busy wait
+				} else if (i<SPIN_TRIES+YIELD_TRIES) {
+					Thread.yield();
+				} else {
+					mWaitingProducer = Thread.currentThread();
+					if (head - mTail.value >= mCapacity) LockSupport.parkNanos(this, MAX_PARK);
+					mWaitingProducer = null;
+					if (Thread.interrupted()) throw new InterruptedException();
+				}
+				mCachedTail = mTail.value;
+			}
+		}
+		return (int) (head % mCapacity);
+	}
+
+	/** Producer side. Hands the slot returned by {@link #claim()} to the consumer. */
+	public void publish() {
+		mHead.value = mHead.value + 1;
+		unpark(mWaitingConsumer);
+	}
+
+	/** Producer side. Returns true if {@link #claim()} would have to wait. */
+	public boolean isFull() {
+		return mHead.value - mTail.value >= mCapacity;
+	}
+
+	/** Producer side. Waits until every published slot has been released. */
+	public void awaitEmpty() throws InterruptedException {
+		// The head only moves with the producer, or with reset()
+		for (int i=0; mTail.value < mHead.value; i++) {
+			if (i<SPIN_TRIES) {
+				// Busy wait
+			} else if (i<SPIN_TRIES+YIELD_TRIES) {
+				Thread.yield();
+			} else {
+				mWaitingProducer = Thread.currentThread();
+				if (mTail.value < mHead.value) LockSupport.parkNanos(this, MAX_PARK);
+				mWaitingProducer = null;
+				if (Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+	}
+
+	/** Producer side. Returns the number of slots published since the last {@link #reset()}. */
+	public long published() {
+		return mHead.value;
+	}
+
+	/** Producer side. Returns the number of slots published but not released yet. */
+	public int size() {
+		return (int) (mHead.value - mTail.value);
+	}
+
+	/**
+	 * Consumer side. Waits until a slot is published and returns its index.
+	 * @return The index of the slot or -1 if nothing was published before the timeout elapsed
+	 */
+	public int poll(long timeout, TimeUnit unit) throws InterruptedException {
+		if (mRead >= mCachedHead) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			mCachedHead = mHead.value;
+			for (int i=0; mRead >= mCachedHead; i++) {
+				if (i<SPIN_TRIES) {
+					// Busy wait
+				} else if (i<SPIN_TRIES+YIELD_TRIES) {
+					Thread.yield();
+				} else {
+					long left = deadline - System.nanoTime();
+					if (left <= 0) return -1;
+					mWaitingConsumer = Thread.currentThread();
+					if (mRead >= mHead.value) LockSupport.parkNanos(this, Math.min(left, MAX_PARK));
+					mWaitingConsumer = null;
+					if (Thread.interrupted()) throw new InterruptedException();
+				}
+				mCachedHead = mHead.value;
+			}
+		}
+		return (int) (mRead++ % mCapacity);
+	}
+
+	/** Consumer side. Returns the number of slots that can be polled without waiting. */
+	public int available() {
+		mCachedHead = mHead.value;
+		return (int) (mCachedHead - mRead);
+	}
+
+	/** Consumer side. Returns the number of slots polled since the last {@link #reset()}. */
+	public long polled() {
+		return mRead;
+	}
+
+	/** Consumer side. Returns the number of slots polled but not released yet. */
+	public int outstanding() {
+		return (int) (mRead - mTail.value);
+	}
+
+	/** Consumer side. Returns the index of the n-th slot that can be polled, n must be less than {@link #available()}. */
+	public int peek(int n) {
+		return (int) ((mRead + n) % mCapacity);
+	}
+
+	/** Consumer side. Gives the oldest polled slot back to the producer. */
+	public void release() {
+		mTail.value = mTail.value + 1;
+		unpark(mWaitingProducer);
+	}
+
+	private static void unpark(Thread thread) {
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/** Keeps the head and the tail on their own cache lines. */
+	static class LhsPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LhsPadding {
+		protected volatile long value;
+	}
+
+	static final class Sequence extends Value {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+}
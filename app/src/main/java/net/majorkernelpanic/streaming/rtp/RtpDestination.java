@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * An additional destination of the packets of an {@link RtpSocket}, see {@link RtpSocket#addDestination(RtpDestination)}.
+ * The packets are sent from the buffers of the FIFO of the socket, the payload is never copied.
+ * A destination can use its own SSRC and sequence numbers, only the 12 bytes of the
+ * RTP header are then rewritten. Each destination has its own {@link SenderReport}.
+ */
+public class RtpDestination {
+
+	public final static String TAG = "RtpDestination";
+
+	private final SenderReport mReport = new SenderReport();
+	private final int mTransport;
+
+	private DatagramChannel mChannel = null;
+	private InterleavedWriter mWriter = null;
+	private byte mChannelIdentifier;
+
+	private boolean mRewrite = false;
+	private int mSsrc, mSeq = 0;
+
+	private final ByteBuffer mHeader = ByteBuffer.allocate(RtpSocket.RTP_HEADER_LENGTH);
+	private final ByteBuffer[] mVector = new ByteBuffer[2];
+	private ByteBuffer[] mHeaders, mPayloads;
+	private InterleavedWriter.Frame[] mFrames;
+
+	/**
+	 * The packets will be sent over UDP.
+	 * @param dest The destination address
+	 * @param rtpPort The destination port of the RTP packets
+	 * @param rtcpPort The destination port of the sender reports
+	 */
+	public RtpDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+		mTransport = RtpSocket.TRANSPORT_UDP;
+		mChannel = DatagramChannel.open();
+		try {
+			mChannel.socket().bind(null);
+			mChannel.connect(new InetSocketAddress(dest, rtpPort));
+		} catch (IOException e) {
+			mChannel.close();
+			throw e;
+		}
+		mReport.setDestination(dest, rtcpPort);
+	}
+
+	/**
+	 * The packets will be interleaved in an RTSP connection.
+	 * @param outputStream The control stream of an {@link InterleavedWriter}
+	 * @param channelIdentifier The channel of the RTP packets, sender reports use the next one
+	 */
+	public RtpDestination(OutputStream outputStream, byte channelIdentifier) {
+		if (!(outputStream instanceof InterleavedWriter.ControlStream)) {
+			throw new IllegalArgumentException("The output stream must be the control stream of an InterleavedWriter");
+		}
+		mTransport = RtpSocket.TRANSPORT_TCP;
+		mWriter = ((InterleavedWriter.ControlStream) outputStream).getWriter();
+		mChannelIdentifier = channelIdentifier;
+		mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+	}
+
+	/** Returns {@link RtpSocket#TRANSPORT_UDP} or {@link RtpSocket#TRANSPORT_TCP}. */
+	public int getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Packets sent to this destination will carry this SSRC and their own sequence numbers.
+	 * By default the header written by the packetizer is sent as is.
+	 */
+	public void setSSRC(int ssrc) {
+		mRewrite = true;
+		mSsrc = ssrc;
+		mReport.setSSRC(ssrc);
+	}
+
+	public SenderReport getSenderReport() {
+		return mReport;
+	}
+
+	public void close() {
+		mReport.close();
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/** Called by the socket, when not rewritten the SSRC is the one of the socket. */
+	void setDefaultSSRC(int ssrc) {
+		if (!mRewrite) mReport.setSSRC(ssrc);
+	}
+
+	/** Returns true if the socket must wait for the listener before giving the buffer back. */
+	boolean isInterleaved() {
+		return mWriter != null;
+	}
+
+	/**
+	 * Creates views on the buffers of the FIFO of the socket.
+	 * @param listener Gives the buffer back once an interleaved packet is written
+	 */
+	void attach(ByteBuffer[] buffers, InterleavedWriter.Listener listener) {
+		mPayloads = new ByteBuffer[buffers.length];
+		mHeaders = new ByteBuffer[buffers.length];
+		mFrames = new InterleavedWriter.Frame[buffers.length];
+		for (int i=0;i<buffers.length;i++) {
+			mPayloads[i] = buffers[i].duplicate();
+			if (mWriter != null) {
+				mHeaders[i] = ByteBuffer.allocate(RtpSocket.RTP_HEADER_LENGTH);
+				mFrames[i] = new InterleavedWriter.Frame(listener, i);
+			}
+		}
+	}
+
+	/**
+	 * Sends a packet of the FIFO of the socket, called by the thread of the socket.
+	 * Interleaved packets are queued to the writer.
+	 * @param index The index of the buffer in the FIFO
+	 * @param packet The content of the buffer
+	 * @param length The length of the packet
+	 * @param timestamp The capture time of the packet in ns
+	 * @param rtpts The RTP timestamp of the packet
+	 */
+	void send(int index, byte[] packet, int length, long timestamp, long rtpts) throws InterruptedException {
+		ByteBuffer payload = mPayloads[index], header = null;
+		payload.limit(length);
+		payload.position(mRewrite ? RtpSocket.RTP_HEADER_LENGTH : 0);
+
+		if (mRewrite) {
+			// Interleaved headers are written later by the writer, they can't be shared
+			header = mWriter != null ? mHeaders[index] : mHeader;
+			header.clear();
+			header.put(packet, 0, RtpSocket.RTP_HEADER_LENGTH);
+			header.putShort(2, (short) ++mSeq);
+			header.putInt(8, mSsrc);
+			header.flip();
+		}
+
+		if (mWriter != null) {
+			mFrames[index].set(mChannelIdentifier, header, payload);
+			mWriter.put(mFrames[index]);
+		} else {
+			try {
+				if (header != null) {
+					mVector[0] = header;
+					mVector[1] = payload;
+					mChannel.write(mVector);
+				} else {
+					mChannel.write(payload);
+				}
+			} catch (PortUnreachableException ignore) {
+			} catch (IOException e) {
+				Log.e(TAG, "Packet not sent: "+e.getMessage());
+			}
+		}
+
+		mReport.update(length, timestamp, rtpts);
+	}
+
+}
@@ -23,21 +23,32 @@ package net.majorkernelpanic.streaming.rtp;
 import android.os.SystemClock;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.metrics.LatencyTracer;
+import net.majorkernelpanic.streaming.metrics.StreamMetrics;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStatistics;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * A basic implementation of an RTP socket.
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The packets can also be sent to additional destinations, see {@link #addDestination(RtpDestination)}.
  */
 public class RtpSocket implements Runnable {
 
@@ -52,27 +63,115 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
+	/** Delay after which the buffers that were not given back by a writer are reclaimed, in ms. */
+	private static final long RELEASE_TIMEOUT = 10000;
+
+	/** Default number of packets the FIFO can hold. */
+	public static final int DEFAULT_FIFO_CAPACITY = 300;
+
+	/** When the FIFO is full, the packetizer waits until a packet is sent. */
+	public final static int OVERFLOW_BLOCK = 0x00;
+
+	/**
+	 * When the FIFO is full, the oldest queued frames that are not key frames are discarded
+	 * by the sender until the FIFO is half empty. The packetizer only waits for the sender to skip them.
+	 */
+	public final static int OVERFLOW_DROP_NON_REFERENCE = 0x01;
+
+	/**
+	 * When the FIFO is full, the packetizer discards everything it sends until the next key frame.
+	 */
+	public final static int OVERFLOW_DROP_UNTIL_KEY_FRAME = 0x02;
+
+	public interface PayloadListener {
+		/**
+		 * Called once the packets committed with a payload tag, and every packet committed before,
+		 * have been sent or dropped: the payload can be reused. It is called by the thread of the
+		 * socket or by the thread of an {@link InterleavedWriter}.
+		 * @param tag The tag given to {@link #setPayloadTag(int)}
+		 */
+		public void onPayloadReleased(int tag);
+	}
+
 	private MulticastSocket mSocket;
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
-	private long[] mTimestamps;
+
+	private DatagramChannel mChannel = null;
+	private Selector mSelector = null;
+	private ByteBuffer[] mByteBuffers;
+	private boolean mSharedBuffers = true;
+	private InetSocketAddress mDestination = null;
+	private final ByteBuffer[] mVector = new ByteBuffer[2];
+
+	// Payloads committed with commitBuffer(int, ByteBuffer, int, int)
+	private ByteBuffer[] mSources, mSlices, mSliceSources;
+	private int[] mSliceOffsets, mSliceLengths, mTags;
+	private int mPayloadTag = -1;
+	// Packets published up to this count are dropped by the sender, see dropQueued()
+	private volatile long mDropUntil = 0;
+	private volatile PayloadListener mPayloadListener = null;
+
+	private InterleavedWriter mWriter = null;
+	private InterleavedWriter.Frame[] mFrames;
+	private long[] mTimestamps, mOutputTimes;
+	private long mNextOutputTime = 0;
+
+	private volatile RtpDestination[] mDestinations = new RtpDestination[0];
+	private AtomicIntegerArray mPending;
+	private boolean[] mReleased;
+	private int mReleaseIndex;
+	private final Object mReleaseLock = new Object();
 
 	private SenderReport mReport;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
+	private RingBuffer mFifo;
 	private Thread mThread;
 
 	private int mTransport;
 	private long mCacheSize;
-	private long mClock = 0;
+	private HeaderEncoder mHeaderEncoder = new HeaderEncoder();
+	private MediaClock mClock = MediaClock.getDefault();
+	private ByteBuffer[] mHeaders;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
 	private int mBufferCount, mBufferIn, mBufferOut;
 	private int mCount = 0;
+
+	private int mOverflowPolicy = OVERFLOW_BLOCK;
+	private boolean[] mDiscardable;
+	private boolean mNextDiscardable = false, mDropping = false;
+	private volatile boolean mShedding = false;
+	private boolean mSheddingFrame = false, mFrameStart = true;
+	private long[] mDroppedPackets = new long[3], mDroppedFrames = new long[3];
 	private byte mTcpHeader[];
 	protected OutputStream mOutputStream = null;
 	
-	private AverageBitrate mAverageBitrate;
+	private AverageBitrate mAverageBitrate, mSentBitrate;
+	private volatile long mCommittedBytes = 0, mReleasedBytes = 0;
+	private Pacer mPacer = new Pacer();
+	private long mPacedTimestamp = 0;
+	private int mPacedLeft = 0;
+
+	// Packets sent again when a receiver reports them lost, see setRetransmission(int, long)
+	private volatile RetransmissionHistory mHistory = null;
+	private long mMaxRetransmissionAge = 0;
+	private int mRtxPayloadType = -1, mRtxSsrc = 0, mRtxSeq = 0;
+	private final byte[] mRetransmitBuffer = new byte[MTU+2];
+	private final ByteBuffer mRetransmitByteBuffer = ByteBuffer.wrap(mRetransmitBuffer);
+	private final DatagramPacket mRetransmitPacket = new DatagramPacket(mRetransmitBuffer, 1);
+	private long mRetransmitted = 0;
+
+	// Parity packets, see setFec(int, int)
+	private volatile FecEncoder mFec = null;
+	private final DatagramPacket mFecPacket = new DatagramPacket(new byte[1], 1);
+	private ByteBuffer mFecByteBuffer;
+	private boolean mFecAdaptive = true;
+	private long mFecReports = 0;
+	private float mFecLoss = 0;
+	private long mFecPackets = 0;
+
+	private final StreamMetrics mMetrics = new StreamMetrics();
 
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
@@ -81,20 +180,60 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
+		mSentBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
 		mTcpHeader = new byte[] {'$',0,0,0};
+
+		allocateBuffers(DEFAULT_FIFO_CAPACITY);
+
+		try {
+		mSocket = new MulticastSocket();
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage());
+		}
 		
+	}
+
+	/**
+	 * Allocates the buffers of the FIFO. One more buffer than the capacity of the FIFO is
+	 * allocated: packets dropped by {@link #OVERFLOW_DROP_UNTIL_KEY_FRAME} are written in it.
+	 */
+	private void allocateBuffers(int count) {
+
+		mBufferCount = count;
+		mBuffers = new byte[mBufferCount+1][];
+		mPackets = new DatagramPacket[mBufferCount+1];
+		mByteBuffers = new ByteBuffer[mBufferCount+1];
+		mHeaders = new ByteBuffer[mBufferCount+1];
+		mFrames = new InterleavedWriter.Frame[mBufferCount+1];
+		mDiscardable = new boolean[mBufferCount+1];
+		mSources = new ByteBuffer[mBufferCount+1];
+		mSlices = new ByteBuffer[mBufferCount+1];
+		mSliceSources = new ByteBuffer[mBufferCount+1];
+		mSliceOffsets = new int[mBufferCount+1];
+		mSliceLengths = new int[mBufferCount+1];
+		mTags = new int[mBufferCount+1];
+		mFifo = new RingBuffer(mBufferCount);
+		mSharedBuffers = true;
+
 		resetFifo();
 
-		for (int i=0; i<mBufferCount; i++) {
+		for (int i=0; i<=mBufferCount; i++) {
 
-			mBuffers[i] = new byte[MTU];
+			// When the direct buffer exposes its backing array, the packetizers write
+			// straight into it and the DatagramChannel sends it without any copy
+			mByteBuffers[i] = ByteBuffer.allocateDirect(MTU);
+			if (mByteBuffers[i].hasArray() && mByteBuffers[i].arrayOffset() == 0) {
+				mBuffers[i] = mByteBuffers[i].array();
+			} else {
+				mBuffers[i] = new byte[MTU];
+				mSharedBuffers = false;
+			}
 			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+			mHeaders[i] = ByteBuffer.wrap(mBuffers[i]);
+			mFrames[i] = new InterleavedWriter.Frame(mFrameListener, i);
 
 			/*							     Version(2)  Padding(0)					 					*/
 			/*									 ^		  ^			Extension(0)						*/
@@ -111,40 +250,357 @@ public class RtpSocket implements Runnable {
 			/* Byte 2,3        ->  Sequence Number                   */
 			/* Byte 4,5,6,7    ->  Timestamp                         */
 			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+			mHeaderEncoder.setSSRC(mHeaders[i], mSsrc);
+
+			if (mDestination != null) {
+				mPackets[i].setPort(mDestination.getPort());
+				mPackets[i].setAddress(mDestination.getAddress());
+			}
 
 		}
 
-		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].attach(mByteBuffers, mFrameListener);
 		}
-		
+
 	}
 
 	private void resetFifo() {
 		mCount = 0;
 		mBufferIn = 0;
 		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
+		mTimestamps = new long[mBufferCount+1];
+		mOutputTimes = new long[mBufferCount+1];
+		mPending = new AtomicIntegerArray(mBufferCount);
+		mReleased = new boolean[mBufferCount];
+		mDropping = false;
+		mShedding = false;
+		mSheddingFrame = false;
+		mFrameStart = true;
+		// The payloads of the packets that were never sent are given back
+		for (int i=0, n=mFifo.size(); i<n; i++) {
+			releasePayload((mReleaseIndex+i) % mBufferCount);
+		}
+		mReleaseIndex = 0;
+		mDropUntil = 0;
+		mFifo.reset();
 		mReport.reset();
 		mAverageBitrate.reset();
+		mSentBitrate.reset();
+		mPacer.reset();
+		mPacedTimestamp = 0;
+		mPacedLeft = 0;
 	}
 	
-	/** Closes the underlying socket. */
+	/** Closes the underlying socket, the sender reports and the destinations. */
 	public void close() {
 		mSocket.close();
+		mReport.close();
+		closeChannel();
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].close();
+		}
+	}
+
+	/**
+	 * Stops sending sender reports, called when the stream stops. They are sent again once
+	 * the destination or the output stream is set, with the reports of the destinations.
+	 * The FIFO thread stops by itself once idle.
+	 */
+	public void stopReports() {
+		mReport.stop();
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].getSenderReport().stop();
+		}
+	}
+
+	/**
+	 * Sends the packets to an additional destination, it can be called while streaming.
+	 * The packets are sent from the same buffers, the destination is closed with the socket.
+	 */
+	public synchronized void addDestination(RtpDestination destination) {
+		RtpDestination[] destinations = mDestinations;
+		RtpDestination[] copy = new RtpDestination[destinations.length+1];
+		System.arraycopy(destinations, 0, copy, 0, destinations.length);
+		copy[destinations.length] = destination;
+		destination.attach(mByteBuffers, mFrameListener);
+		destination.setDefaultSSRC(mSsrc);
+		destination.getSenderReport().setClockFrequency(mHeaderEncoder.getClockFrequency());
+		destination.getSenderReport().setMediaClock(mClock);
+		mDestinations = copy;
+	}
+
+	/** Stops sending the packets to the destination, it is not closed. */
+	public synchronized void removeDestination(RtpDestination destination) {
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			if (destinations[i] == destination) {
+				RtpDestination[] copy = new RtpDestination[destinations.length-1];
+				System.arraycopy(destinations, 0, copy, 0, i);
+				System.arraycopy(destinations, i+1, copy, i, destinations.length-i-1);
+				mDestinations = copy;
+				return;
+			}
+		}
+	}
+
+	private void startDestinationReports() {
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].getSenderReport().start();
+		}
+	}
+
+	public RtpDestination[] getDestinations() {
+		return mDestinations.clone();
+	}
+
+	/**
+	 * Sends the UDP packets through a non-blocking {@link DatagramChannel} instead of the
+	 * {@link MulticastSocket}. Packets already committed in the FIFO are then sent in bursts.
+	 * Must be called before the stream is started. The TTL is not applied to the channel.
+	 */
+	public void setNioEnabled(boolean enabled) throws IOException {
+		if (!enabled) {
+			closeChannel();
+		} else if (mChannel == null) {
+			try {
+				mChannel = DatagramChannel.open();
+				mChannel.configureBlocking(false);
+				mChannel.socket().bind(null);
+				mSelector = Selector.open();
+				mChannel.register(mSelector, SelectionKey.OP_WRITE);
+				if (mDestination != null) mChannel.connect(mDestination);
+			} catch (IOException e) {
+				closeChannel();
+				throw e;
+			}
+		}
+	}
+
+	public boolean isNioEnabled() {
+		return mChannel != null;
+	}
+
+	/**
+	 * Sets the number of packets the FIFO can hold, {@link #DEFAULT_FIFO_CAPACITY} by default.
+	 * Can't be called while streaming.
+	 */
+	public void setFifoCapacity(int capacity) {
+		if (mThread != null) throw new IllegalStateException("Can't be called while streaming.");
+		if (capacity<1) throw new IllegalArgumentException("Invalid capacity: "+capacity);
+		if (capacity != mBufferCount) allocateBuffers(capacity);
+	}
+
+	public int getFifoCapacity() {
+		return mBufferCount;
+	}
+
+	/**
+	 * Keeps copies of the packets sent over UDP, and sends them again when a receiver reports
+	 * them lost with a generic NACK (RFC 4585). The receiver must be told that NACKs are
+	 * supported with an "a=rtcp-fb:pt nack" attribute in the SDP, on a media line with the
+	 * RTP/AVPF profile: receivers using the RTP/AVP profile don't send any feedback.
+	 * Nothing is allocated while streaming.
+	 * @param capacity The number of packets kept, rounded up to a power of 2. 0 disables retransmissions
+	 * @param maxAge Packets older than this delay in ms are not sent again
+	 */
+	public synchronized void setRetransmission(int capacity, long maxAge) {
+		mMaxRetransmissionAge = maxAge;
+		if (capacity <= 0) {
+			mHistory = null;
+			mReport.setNackListener(null);
+		} else {
+			if (mHistory == null || mHistory.capacity() < capacity) mHistory = new RetransmissionHistory(capacity);
+			mReport.setNackListener(mNackListener);
+		}
+	}
+
+	public boolean isRetransmissionEnabled() {
+		return mHistory != null;
+	}
+
+	/** Returns the age in ms beyond which packets are not sent again, see {@link #setRetransmission(int, long)}. */
+	public long getMaxRetransmissionAge() {
+		return mMaxRetransmissionAge;
+	}
+
+	/**
+	 * Packets are sent again in an RTX stream (RFC 4588) instead of being sent as they were,
+	 * it must be negotiated in the SDP, see {@link #getRtxPayloadType()}.
+	 * @param payloadType The payload type of the RTX stream, -1 to disable RTX
+	 * @param ssrc The SSRC of the RTX stream
+	 */
+	public synchronized void setRtx(int payloadType, int ssrc) {
+		mRtxPayloadType = payloadType;
+		mRtxSsrc = ssrc;
+	}
+
+	/** Returns the payload type of the RTX stream, or -1 if RTX is not used. */
+	public int getRtxPayloadType() {
+		return mRtxPayloadType;
+	}
+
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/** Returns the number of packets sent again so far. */
+	public long getRetransmittedPackets() {
+		return mRetransmitted;
+	}
+
+	/**
+	 * Sends XOR parity packets (RFC 5109) over groups of packets sent over UDP, in their own RTP
+	 * stream. A receiver can then rebuild one lost packet per group, without asking for it again.
+	 * The size of the groups adapts to the losses reported by the receivers, see {@link #setFecGroupSize(int)}.
+	 * The payload type must be announced in the SDP with the encoding name "ulpfec".
+	 * @param payloadType The payload type of the parity packets, -1 to disable them
+	 * @param ssrc The SSRC of the parity packets
+	 */
+	public synchronized void setFec(int payloadType, int ssrc) {
+		FecEncoder fec = null;
+		if (payloadType >= 0) {
+			fec = new FecEncoder(payloadType, ssrc);
+			mFecPacket.setData(fec.getPacket());
+			mFecByteBuffer = ByteBuffer.wrap(fec.getPacket());
+			if (mFec != null) fec.setGroupSize(mFec.getGroupSize());
+		}
+		mFec = fec;
+	}
+
+	/** Returns the payload type of the parity packets, or -1 if they are not sent. */
+	public int getFecPayloadType() {
+		FecEncoder fec = mFec;
+		return fec != null ? fec.getPacket()[1] & 0x7F : -1;
+	}
+
+	/**
+	 * Sets the number of packets protected by a parity packet, between 1 and 16.
+	 * @param size The size of the groups, 0 to adapt it to the losses reported by the receivers (the default)
+	 */
+	public synchronized void setFecGroupSize(int size) {
+		mFecAdaptive = size <= 0;
+		if (mFec != null && size > 0) mFec.setGroupSize(size);
+	}
+
+	/** Returns the number of parity packets sent so far. */
+	public long getFecPackets() {
+		return mFecPackets;
+	}
+
+	/** Returns the counters and histograms of the stream, updated by the socket and the packetizer. */
+	public StreamMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Sets the time at which the encoder output the frame of the next packets, to measure
+	 * the delay until they are sent, see {@link StreamMetrics#encoderToWire}.
+	 * @param time The time in ns on the timebase of System.nanoTime(), 0 if it is unknown
+	 */
+	public void setOutputTime(long time) {
+		mNextOutputTime = time;
+	}
+
+	/** Returns the number of packets waiting in the FIFO or being sent, an approximation if called while streaming. */
+	public int getQueueLength() {
+		return mFifo.size();
+	}
+
+	/**
+	 * Sets what happens when the packetizer is faster than the network and the FIFO is full:
+	 * {@link #OVERFLOW_BLOCK} (the default), {@link #OVERFLOW_DROP_NON_REFERENCE} or
+	 * {@link #OVERFLOW_DROP_UNTIL_KEY_FRAME}.
+	 * Only packets marked with {@link #setDiscardable(boolean)} can be dropped.
+	 */
+	public void setOverflowPolicy(int policy) {
+		if (policy<OVERFLOW_BLOCK || policy>OVERFLOW_DROP_UNTIL_KEY_FRAME) throw new IllegalArgumentException("Invalid policy: "+policy);
+		mOverflowPolicy = policy;
+	}
+
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/**
+	 * Called by the packetizer before requesting the buffers of a frame.
+	 * Packets of key frames, parameter sets or audio must not be discardable,
+	 * which is the default.
+	 */
+	public void setDiscardable(boolean discardable) {
+		mNextDiscardable = discardable;
+	}
+
+	/**
+	 * The listener is told when the payloads passed to {@link #commitBuffer(int, ByteBuffer, int, int)}
+	 * can be reused, so that the packetizer doesn't have to wait in {@link #awaitSent()}.
+	 */
+	public void setPayloadListener(PayloadListener listener) {
+		mPayloadListener = listener;
+	}
+
+	/**
+	 * Called by the packetizer before committing payloads with {@link #commitBuffer(int, ByteBuffer, int, int)},
+	 * the {@link PayloadListener} is called with the tag once each of them is sent.
+	 * @param tag A positive tag, -1 if the listener must not be called
+	 */
+	public void setPayloadTag(int tag) {
+		mPayloadTag = tag;
+	}
+
+	/** Returns the number of bytes committed so far by the packetizer, RTP headers included. */
+	public long getCommittedBytes() {
+		return mCommittedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes that left the FIFO so far: sent, written by the
+	 * {@link InterleavedWriter}, or dropped by {@link #OVERFLOW_DROP_NON_REFERENCE}.
+	 * When the network can't keep up, it grows slower than {@link #getCommittedBytes()}.
+	 */
+	public long getReleasedBytes() {
+		return mReleasedBytes;
+	}
+
+	/** Returns the number of packets discarded so far by the given overflow policy. */
+	public long getDroppedPackets(int policy) {
+		return mDroppedPackets[policy];
+	}
+
+	/**
+	 * Returns the number of frames discarded so far by the given overflow policy.
+	 * Frames are delimited by the marker bit.
+	 */
+	public long getDroppedFrames(int policy) {
+		return mDroppedFrames[policy];
+	}
+
+	private void closeChannel() {
+		try {
+			if (mSelector != null) mSelector.close();
+		} catch (IOException ignore) {}
+		try {
+			if (mChannel != null) mChannel.close();
+		} catch (IOException ignore) {}
+		mSelector = null;
+		mChannel = null;
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+		for (int i=0;i<=mBufferCount;i++) {
+			mHeaderEncoder.setSSRC(mHeaders[i], ssrc);
 		}
 		mReport.setSSRC(mSsrc);
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].setDefaultSSRC(ssrc);
+		}
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -154,13 +610,66 @@ public class RtpSocket implements Runnable {
 
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
+		mHeaderEncoder.setClockFrequency(clock);
+		mReport.setClockFrequency(clock);
+		RtpDestination[] destinations = mDestinations;
+		for (int i=0;i<destinations.length;i++) {
+			destinations[i].getSenderReport().setClockFrequency(clock);
+		}
+	}
+
+	/** The sender reports of the stream, and the receiver reports sent back to its RTCP port. */
+	public SenderReport getSenderReport() {
+		return mReport;
+	}
+
+	/**
+	 * What the receivers report about the stream, see {@link SenderReport#getReceiverStatistics()}.
+	 * Each {@link RtpDestination} has its own statistics.
+	 */
+	public ReceiverStatistics getReceiverStatistics() {
+		return mReport.getReceiverStatistics();
+	}
+
+	/**
+	 * Sets the clock that maps the timestamps of the packets to the NTP timestamps of the
+	 * sender reports. Every track of a session must use the same clock, {@link MediaClock#getDefault()}
+	 * by default.
+	 */
+	public synchronized void setMediaClock(MediaClock clock) {
 		mClock = clock;
+		mReport.setMediaClock(clock);
+		for (RtpDestination destination : mDestinations) {
+			destination.getSenderReport().setMediaClock(clock);
+		}
+	}
+
+	public MediaClock getMediaClock() {
+		return mClock;
 	}
 
-	/** Sets the size of the FIFO in ms. */
+	/**
+	 * Sets the size of the FIFO in ms.
+	 * If it is not 0, the packets of each frame are spread over the interval between two frames.
+	 **/
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
 	}
+
+	/**
+	 * Paces the output with a token bucket, the packets of each frame are also spread
+	 * over the interval between two frames. Can be called while streaming,
+	 * the new values are used from the next packet sent.
+	 * @param bitrate The target bit rate in bit/s, 0 to disable the token bucket
+	 * @param burst The maximum number of bytes that can be sent in a burst
+	 */
+	public void setPacing(long bitrate, int burst) {
+		mPacer.setBitrate(bitrate, Math.max(burst, MTU));
+	}
+
+	private boolean isPaced() {
+		return mCacheSize>0 || mPacer.getBitrate()>0;
+	}
 	
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
@@ -172,11 +681,25 @@ public class RtpSocket implements Runnable {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
+			mDestination = new InetSocketAddress(dest, dport);
+			for (int i=0;i<=mBufferCount;i++) {
 				mPackets[i].setPort(dport);
 				mPackets[i].setAddress(dest);
 			}
+			mRetransmitPacket.setPort(dport);
+			mRetransmitPacket.setAddress(dest);
+			mFecPacket.setPort(dport);
+			mFecPacket.setAddress(dest);
+			if (mChannel != null) {
+				try {
+					if (mChannel.isConnected()) mChannel.disconnect();
+					mChannel.connect(mDestination);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not connect the channel: "+e.getMessage());
+				}
+			}
 			mReport.setDestination(dest, rtcpPort);
+			startDestinationReports();
 		}
 	}
 	
@@ -184,13 +707,18 @@ public class RtpSocket implements Runnable {
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
 	 * be specified with this method.
+	 * If it is the control stream of an {@link InterleavedWriter}, the packets are queued
+	 * to the writer instead of being written by the thread of this socket.
 	 */ 
 	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
 		if (outputStream != null) {
 			mTransport = TRANSPORT_TCP;
 			mOutputStream = outputStream;
+			mWriter = outputStream instanceof InterleavedWriter.ControlStream ?
+					((InterleavedWriter.ControlStream) outputStream).getWriter() : null;
 			mTcpHeader[1] = channelIdentifier;
 			mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+			startDestinationReports();
 		}
 	}
 
@@ -200,7 +728,7 @@ public class RtpSocket implements Runnable {
 
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel != null ? mChannel.socket().getLocalPort() : mSocket.getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -212,33 +740,61 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
+		if (!mNextDiscardable) {
+			// A key frame ends the drop
+			mDropping = false;
+		} else if (mOverflowPolicy == OVERFLOW_DROP_UNTIL_KEY_FRAME) {
+			if (!mDropping && mFifo.isFull()) {
+				Log.w(TAG, "FIFO full, packets are dropped until the next key frame");
+				mDropping = true;
+			}
+		} else if (mOverflowPolicy == OVERFLOW_DROP_NON_REFERENCE) {
+			// The sender will skip the oldest frames that can be discarded
+			if (mFifo.isFull()) mShedding = true;
+		}
+		mBufferIn = mDropping ? mBufferCount : mFifo.claim();
 		mBuffers[mBufferIn][1] &= 0x7F;
+		mDiscardable[mBufferIn] = mNextDiscardable;
+		mOutputTimes[mBufferIn] = mNextOutputTime;
+		mSources[mBufferIn] = null;
+		mTags[mBufferIn] = -1;
 		return mBuffers[mBufferIn];
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
 
+		if (mBufferIn == mBufferCount) return;
+
 		if (mThread == null) {
 			mThread = new Thread(this);
 			mThread.start();
 		}
 		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
+		if (mBufferIn == mBufferCount) {
+			// The packet was written in the spare buffer, it is dropped
+			mDroppedPackets[OVERFLOW_DROP_UNTIL_KEY_FRAME]++;
+			mMetrics.packetsDropped.increment();
+			if ((mBuffers[mBufferIn][1] & 0x80) != 0) {
+				mDroppedFrames[OVERFLOW_DROP_UNTIL_KEY_FRAME]++;
+				mMetrics.framesDropped.increment();
+			}
+			return;
+		}
+
 		updateSequence();
 		mPackets[mBufferIn].setLength(length);
 
 		mAverageBitrate.push(length);
+		mCommittedBytes += length;
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
 		if (mThread == null) {
 			mThread = new Thread(this);
@@ -247,23 +803,77 @@ public class RtpSocket implements Runnable {
 		
 	}
 
-	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
+	/**
+	 * Sends an RTP packet made of the first bytes of the buffer, followed by a payload
+	 * that is not copied in the buffer. The payload must not be modified until
+	 * {@link #awaitSent()} returns, or until the {@link PayloadListener} is called with
+	 * the tag set by {@link #setPayloadTag(int)}.
+	 * It is sent with a gathering write by the {@link DatagramChannel} or the {@link InterleavedWriter},
+	 * in the other cases it is copied in the buffer by the thread of the socket.
+	 * @param length The number of bytes written in the buffer, including the RTP header
+	 * @param payload The payload, its position and limit are not modified
+	 * @param offset The offset of the payload in the ByteBuffer
+	 * @param count The length of the payload
+	 */
+	public void commitBuffer(int length, ByteBuffer payload, int offset, int count) throws IOException {
+		if (mBufferIn != mBufferCount) {
+			mSources[mBufferIn] = payload;
+			mSliceOffsets[mBufferIn] = offset;
+			mSliceLengths[mBufferIn] = count;
+			mTags[mBufferIn] = mPayloadTag;
+		} else if (mPayloadTag >= 0 && mPayloadListener != null) {
+			// The packet is dropped, the payload is not used
+			mPayloadListener.onPayloadReleased(mPayloadTag);
+		}
+		commitBuffer(length+count);
+	}
+
+	/**
+	 * Drops the packets committed so far that were not sent yet, without waiting for the network.
+	 * Their payloads are given back to the {@link PayloadListener} by the thread of the socket.
+	 * Packets queued in an {@link InterleavedWriter} are taken back unless it is writing them.
+	 * Called by the packetizer once it is stopped, when its payloads must be reused.
+	 */
+	public void dropQueued() {
+		mDropUntil = mFifo.published();
+		InterleavedWriter writer = mWriter;
+		InterleavedWriter.Frame[] frames = mFrames;
+		if (writer != null && frames != null) {
+			for (int i=0;i<mBufferCount;i++) {
+				if (writer.remove(frames[i])) release(i);
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every packet committed so far has been sent,
+	 * payloads passed to {@link #commitBuffer(int, ByteBuffer, int, int)} can then be reused.
+	 */
+	public void awaitSent() throws InterruptedException {
+		mFifo.awaitEmpty();
+	}
+
+	/**
+	 * Returns an approximation of the bitrate of the RTP stream in bits per second.
+	 * When the output is paced, it is the bit rate actually achieved by the pacer.
+	 **/
 	public long getBitrate() {
-		return mAverageBitrate.average();
+		return isPaced() ? mSentBitrate.average() : mAverageBitrate.average();
 	}
 
 	/** Increments the sequence number. */
 	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+		mHeaderEncoder.setSequence(mHeaders[mBufferIn], ++mSeq);
 	}
 
 	/** 
 	 * Overwrites the timestamp in the packet.
-	 * @param timestamp The new timestamp in ns.
+	 * @param timestamp The capture time of the packet in ns, on the timebase of System.nanoTime(),
+	 * see {@link MediaClock}.
 	 **/
 	public void updateTimestamp(long timestamp) {
 		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		mHeaderEncoder.setTimestamp(mHeaders[mBufferIn], timestamp);
 	}
 
 	/** Sets the marker in the RTP packet. */
@@ -274,49 +884,355 @@ public class RtpSocket implements Runnable {
 	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
+			while (true) {
+				if ((mBufferOut = mFifo.poll(4,TimeUnit.SECONDS)) < 0) {
+					// Buffers still queued by a writer can't be reused, the thread waits for them
+					if (mFifo.outstanding() == 0) break;
+					continue;
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
+				if (drop() || shed()) continue;
+				if (mOldTimestamp != 0 && mTimestamps[mBufferOut]<mOldTimestamp) {
+					Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+				}
+				if (isPaced()) pace();
+				send();
+				if (mChannel != null && mTransport == TRANSPORT_UDP && !isPaced()) {
+					// Every packet already committed in the FIFO is sent in the same burst
+					for (int n = mFifo.available(); n>0; n--) {
+						mBufferOut = mFifo.poll(0, TimeUnit.NANOSECONDS);
+						if (!drop() && !shed()) send();
 					}
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		awaitReleased();
 		mThread = null;
 		resetFifo();
 	}
 
+	/**
+	 * Waits until the writers and the destinations gave back the buffers polled,
+	 * they are all given back when the writers are closed.
+	 */
+	private void awaitReleased() {
+		long deadline = SystemClock.elapsedRealtime() + RELEASE_TIMEOUT;
+		boolean interrupted = false;
+		while (mFifo.outstanding() > 0) {
+			if (SystemClock.elapsedRealtime() > deadline) {
+				Log.e(TAG, mFifo.outstanding()+" buffers were not given back");
+				break;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Skips the packet at the output of the FIFO if it was committed before {@link #dropQueued()}.
+	 * @return true if the packet was dropped
+	 */
+	private boolean drop() {
+		if (mFifo.polled() > mDropUntil) return false;
+		mPending.set(mBufferOut, 1);
+		release(mBufferOut);
+		return true;
+	}
+
+	/**
+	 * Skips the packet at the output of the FIFO if it belongs to a frame dropped
+	 * by {@link #OVERFLOW_DROP_NON_REFERENCE}.
+	 * @return true if the packet was dropped
+	 */
+	private boolean shed() {
+		boolean marker = (mBuffers[mBufferOut][1] & 0x80) != 0;
+		if (mFrameStart && mShedding) {
+			if (mFifo.available() < mBufferCount/2) {
+				mShedding = false;
+			} else if (mDiscardable[mBufferOut]) {
+				mSheddingFrame = true;
+			}
+		}
+		mFrameStart = marker;
+		if (!mSheddingFrame) return false;
+		mDroppedPackets[OVERFLOW_DROP_NON_REFERENCE]++;
+		mMetrics.packetsDropped.increment();
+		if (marker) {
+			mDroppedFrames[OVERFLOW_DROP_NON_REFERENCE]++;
+			mMetrics.framesDropped.increment();
+			mSheddingFrame = false;
+		}
+		mPending.set(mBufferOut, 1);
+		release(mBufferOut);
+		return true;
+	}
+
+	/** Waits until the packet at the output of the FIFO can be sent. */
+	private void pace() throws InterruptedException {
+		long timestamp = mTimestamps[mBufferOut];
+		if (timestamp != mPacedTimestamp) {
+			mPacedTimestamp = timestamp;
+			mPacedLeft = countPackets(timestamp);
+			mPacer.startFrame(timestamp, mPacedLeft+1);
+		} else if (mPacedLeft == 0) {
+			// The packetizer committed more packets of the frame in the meantime
+			mPacedLeft = countPackets(timestamp);
+			mPacer.extendFrame(mPacedLeft+1);
+		} else {
+			mPacedLeft--;
+		}
+		mPacer.pace(mPackets[mBufferOut].getLength());
+	}
+
+	/** Counts the packets with the given timestamp waiting in the FIFO. */
+	private int countPackets(long timestamp) {
+		int n = 0, available = mFifo.available();
+		while (n<available && mTimestamps[mFifo.peek(n)] == timestamp) n++;
+		return n;
+	}
+
+	/**
+	 * Sends the packet at the output of the FIFO to every destination and gives its buffer back.
+	 * The buffer may still be used by an {@link InterleavedWriter} when this method returns.
+	 */
+	private void send() throws IOException, InterruptedException {
+		int len = mPackets[mBufferOut].getLength(), hl = len;
+		long rtpts = mHeaderEncoder.getTimestamp(mHeaders[mBufferOut]);
+		RtpDestination[] destinations = mDestinations;
+		ByteBuffer slice = null;
+		long timestamp = mTimestamps[mBufferOut];
+		mReport.update(len, timestamp, rtpts);
+		mOldTimestamp = mTimestamps[mBufferOut];
+		mSentBitrate.push(len);
+		mMetrics.packetsSent.increment();
+		mMetrics.bytesSent.add(len);
+		mMetrics.fifoDepth.record(mFifo.available());
+		if (mOutputTimes[mBufferOut] != 0) {
+			mMetrics.encoderToWire.record((System.nanoTime() - mOutputTimes[mBufferOut]) / 1000);
+		}
+		if ((mBuffers[mBufferOut][1] & 0x80) != 0) {
+			// The last packet of a frame, identified by its capture time in us
+			mMetrics.latency.mark(timestamp / 1000, LatencyTracer.STAGE_SENT);
+		}
+		mPending.set(mBufferOut, 1);
+		if (mSources[mBufferOut] != null) {
+			slice = slice();
+			if (destinations.length == 0 && (mTransport == TRANSPORT_TCP ? mWriter != null : mChannel != null)) {
+				hl = len - slice.remaining();
+			} else {
+				// The payload must be in the buffer
+				slice.get(mBuffers[mBufferOut], len - slice.remaining(), slice.remaining());
+				slice = null;
+			}
+		}
+		if (!mSharedBuffers && (mChannel != null || mWriter != null || destinations.length>0)) {
+			mByteBuffers[mBufferOut].clear();
+			mByteBuffers[mBufferOut].put(mBuffers[mBufferOut], 0, hl);
+		}
+		if (mCount++>30) {
+			if (mTransport == TRANSPORT_TCP && mWriter != null) {
+				// The writer gives the buffer back once the packet is written
+				mPending.incrementAndGet(mBufferOut);
+				if (slice != null) {
+					mFrames[mBufferOut].set(mTcpHeader[1], prepareByteBuffer(hl), slice);
+				} else {
+					mFrames[mBufferOut].set(mTcpHeader[1], prepareByteBuffer(hl));
+				}
+				mWriter.put(mFrames[mBufferOut]);
+			} else if (mTransport == TRANSPORT_TCP) {
+				sendTCP();
+			} else if (mChannel != null) {
+				sendNIO(prepareByteBuffer(hl), slice);
+			} else {
+				mSocket.send(mPackets[mBufferOut]);
+			}
+		}
+		for (int i=0;i<destinations.length;i++) {
+			if (destinations[i].isInterleaved()) mPending.incrementAndGet(mBufferOut);
+			destinations[i].send(mBufferOut, mBuffers[mBufferOut], len, timestamp, rtpts);
+		}
+		RetransmissionHistory history = mHistory;
+		if (history != null && mTransport == TRANSPORT_UDP) {
+			history.store(mHeaders[mBufferOut].getShort(2) & 0xFFFF, mBuffers[mBufferOut], hl, slice, SystemClock.elapsedRealtime());
+		}
+		FecEncoder fec = mFec;
+		if (fec != null && mTransport == TRANSPORT_UDP && mCount>31) {
+			int length = fec.add(mBuffers[mBufferOut], hl, slice, (mBuffers[mBufferOut][1] & 0x80) != 0);
+			if (length > 0) {
+				sendParity(length);
+				if (mFecAdaptive) adaptFec(fec);
+			}
+		}
+		release(mBufferOut);
+	}
+
+	private void sendParity(int length) {
+		try {
+			if (mChannel != null) {
+				mFecByteBuffer.clear();
+				mFecByteBuffer.limit(length);
+				mChannel.write(mFecByteBuffer);
+			} else {
+				mFecPacket.setLength(length);
+				mSocket.send(mFecPacket);
+			}
+			mFecPackets++;
+		} catch (PortUnreachableException ignore) {
+		} catch (IOException e) {
+			Log.e(TAG, "Parity packet not sent: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Sizes the groups of packets protected by a parity packet after the losses reported.
+	 * A group should not lose more than one packet, so it gets smaller as losses grow.
+	 */
+	private void adaptFec(FecEncoder fec) {
+		ReceiverStatistics statistics = mReport.getReceiverStatistics();
+		long reports = statistics.getReports();
+		if (reports == mFecReports) return;
+		mFecReports = reports;
+		mFecLoss = mFecLoss*0.7f + statistics.getFractionLost()*0.3f;
+		if (mFecLoss < 0.01f) fec.setGroupSize(16);
+		else if (mFecLoss < 0.03f) fec.setGroupSize(10);
+		else if (mFecLoss < 0.06f) fec.setGroupSize(6);
+		else if (mFecLoss < 0.12f) fec.setGroupSize(4);
+		else fec.setGroupSize(2);
+	}
+
+	private final SenderReport.NackListener mNackListener = new SenderReport.NackListener() {
+		@Override
+		public void onNack(int pid, int blp) {
+			retransmit(pid);
+			for (int i=0;i<16;i++) {
+				if ((blp & (1<<i)) != 0) retransmit((pid+i+1) & 0xFFFF);
+			}
+		}
+	};
+
+	/** Sends a packet of the history again, called by the thread receiving the RTCP packets. */
+	private synchronized void retransmit(int seq) {
+		RetransmissionHistory history = mHistory;
+		int len, offset = mRtxPayloadType >= 0 ? 2 : 0;
+		if (history == null) return;
+		len = history.get(seq, mMaxRetransmissionAge, SystemClock.elapsedRealtime(), mRetransmitBuffer, offset);
+		if (len < 0) return;
+
+		if (mRtxPayloadType >= 0) {
+			// The original sequence number is inserted before the payload (RFC 4588)
+			System.arraycopy(mRetransmitBuffer, 2, mRetransmitBuffer, 0, RTP_HEADER_LENGTH);
+			mRetransmitBuffer[1] = (byte) ((mRetransmitBuffer[1] & 0x80) | mRtxPayloadType);
+			mRetransmitByteBuffer.putShort(2, (short) ++mRtxSeq);
+			mRetransmitByteBuffer.putInt(8, mRtxSsrc);
+			mRetransmitByteBuffer.putShort(RTP_HEADER_LENGTH, (short) seq);
+			len += 2;
+		}
+
+		try {
+			if (mChannel != null) {
+				mRetransmitByteBuffer.clear();
+				mRetransmitByteBuffer.limit(len);
+				// The channel does not block, the packet is lost if its send buffer is full
+				mChannel.write(mRetransmitByteBuffer);
+			} else {
+				mRetransmitPacket.setData(mRetransmitBuffer, 0, len);
+				mSocket.send(mRetransmitPacket);
+			}
+			mRetransmitted++;
+		} catch (PortUnreachableException ignore) {
+		} catch (IOException e) {
+			Log.e(TAG, "Packet not sent again: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Called once a destination is done with a buffer. When no destination uses it anymore,
+	 * the buffer is given back to the FIFO, in the order in which the buffers were polled.
+	 */
+	private void release(int index) {
+		int pending = mPending.decrementAndGet(index);
+		if (pending < 0) {
+			// A writer gave back a buffer after the FIFO was reset, the slot was not polled since
+			mPending.incrementAndGet(index);
+			return;
+		}
+		if (pending > 0) return;
+		synchronized (mReleaseLock) {
+			mReleased[index] = true;
+			while (mReleased[mReleaseIndex]) {
+				mReleased[mReleaseIndex] = false;
+				releasePayload(mReleaseIndex);
+				mReleasedBytes += mPackets[mReleaseIndex].getLength();
+				mReleaseIndex = (mReleaseIndex+1) % mBufferCount;
+				mFifo.release();
+			}
+		}
+	}
+
+	/** Tells the listener that the payload of a buffer given back to the FIFO can be reused. */
+	private void releasePayload(int index) {
+		PayloadListener listener = mPayloadListener;
+		int tag = mTags[index];
+		if (tag < 0) return;
+		mTags[index] = -1;
+		if (listener != null) listener.onPayloadReleased(tag);
+	}
+
+	/** Returns the ByteBuffer of the packet at the output of the FIFO, ready to write length bytes. */
+	private ByteBuffer prepareByteBuffer(int length) {
+		ByteBuffer buffer = mByteBuffers[mBufferOut];
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+
+	/**
+	 * Returns a view on the payload of the packet at the output of the FIFO.
+	 * Views are kept with the buffers, a new one is created only when the payload comes from another ByteBuffer.
+	 */
+	private ByteBuffer slice() {
+		int i = mBufferOut;
+		if (mSliceSources[i] != mSources[i]) {
+			mSliceSources[i] = mSources[i];
+			mSlices[i] = mSources[i].duplicate();
+		}
+		mSlices[i].limit(mSliceOffsets[i]+mSliceLengths[i]);
+		mSlices[i].position(mSliceOffsets[i]);
+		return mSlices[i];
+	}
+
+	private InterleavedWriter.Listener mFrameListener = new InterleavedWriter.Listener() {
+		@Override
+		public void onFrameWritten(InterleavedWriter.Frame frame) {
+			release(frame.getId());
+		}
+	};
+
+	private void sendNIO(ByteBuffer buffer, ByteBuffer slice) throws IOException {
+		mVector[0] = buffer;
+		mVector[1] = slice;
+		try {
+			while ((slice != null ? mChannel.write(mVector) : mChannel.write(buffer)) == 0) {
+				// The send buffer of the socket is full, we wait a bit or drop the packet
+				if (mSelector.select(100) == 0) {
+					Log.e(TAG, "Send buffer full, packet dropped");
+					break;
+				}
+				mSelector.selectedKeys().clear();
+			}
+		} catch (PortUnreachableException e) {
+			// Nobody listens yet on the other side, like with the MulticastSocket we ignore it
+		}
+	}
+
 	private void sendTCP() {
 		synchronized (mOutputStream) {
 			int len = mPackets[mBufferOut].getLength();
@@ -330,11 +1246,59 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
-	private void setLong(byte[] buffer, long n, int begin, int end) {
-		for (end--; end >= begin; end--) {
-			buffer[end] = (byte) (n % 256);
-			n >>= 8;
+	/**
+	 * Writes the fields of the RTP header that change from one packet to another.
+	 * The conversion of timestamps from ns to the clock of the stream is done with a
+	 * fixed-point factor computed once in {@link #setClockFrequency(long)}.
+	 * A random offset is added to the timestamps, as recommended by the RFC 3550.
+	 */
+	protected static class HeaderEncoder {
+
+		private final static int SHIFT = 40;
+
+		private long mClock = 0;
+		private long mFactor = 0;
+		private final int mOffset = new Random().nextInt();
+
+		/** Sets the clock frequency of the stream in Hz. */
+		public void setClockFrequency(long clock) {
+			mClock = clock;
+			// Number of ticks of the clock per ns, in 24.40 fixed point
+			mFactor = (clock << SHIFT) / 1000000000L;
+		}
+
+		public long getClockFrequency() {
+			return mClock;
+		}
+
+		/**
+		 * Converts a timestamp in ns to the clock of the stream.
+		 * The timestamp is split in two so that the product never overflows.
+		 **/
+		public long toRtpTimestamp(long ns) {
+			long hi = (ns >> 30) * mFactor;
+			long lo = (ns & 0x3FFFFFFFL) * mFactor;
+			return (hi >> (SHIFT-30)) + ((((hi & 0x3FF) << 30) + lo) >> SHIFT);
+		}
+
+		public void setSequence(ByteBuffer header, int seq) {
+			header.putShort(2, (short) seq);
+		}
+
+		/** @param timestamp The timestamp in ns */
+		public void setTimestamp(ByteBuffer header, long timestamp) {
+			header.putInt(4, (int) toRtpTimestamp(timestamp) + mOffset);
+		}
+
+		/** Returns the RTP timestamp written in the header. */
+		public long getTimestamp(ByteBuffer header) {
+			return header.getInt(4) & 0xFFFFFFFFL;
+		}
+
+		public void setSSRC(ByteBuffer header, int ssrc) {
+			header.putInt(8, ssrc);
 		}
+
 	}
 
 	/** 
@@ -399,54 +1363,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An incremental parser of the messages sent by an RTSP server on a connection: responses with
+ * their body (Content-Length), and interleaved RTP/RTCP packets ('$', channel, length, packet).
+ *
+ * The bytes received are appended to a buffer reused for the whole connection, they can come in
+ * any number of reads. The lines of a response are only scanned once, and the headers are kept
+ * as offsets in the buffer in a reused {@link RtspClient.Response}: no object is allocated by a
+ * response unless the value of a header is asked as a String.
+ */
+final class ResponseParser {
+
+	/** Returned by {@link #next()} when the buffer does not hold a complete message. */
+	static final int NEED_MORE = 0;
+	/** Returned by {@link #next()} when a response was parsed, see {@link #getResponse()}. */
+	static final int RESPONSE = 1;
+	/** Returned by {@link #next()} when an interleaved packet was skipped, see {@link #getChannel()}. */
+	static final int INTERLEAVED = 2;
+
+	/** Maximum size of a message, the buffer doesn't grow beyond. */
+	static final int MAX_MESSAGE_SIZE = 128 * 1024;
+
+	/** Maximum size of the body of a response. */
+	static final int MAX_BODY_SIZE = 64 * 1024;
+
+	private byte[] mBuffer;
+	private ByteBuffer mByteBuffer;
+	private int mStart = 0, mEnd = 0;
+
+	// State of the response being parsed
+	private final RtspClient.Response mResponse = new RtspClient.Response();
+	private int mScan = -1, mHeaderEnd = -1, mContentLength = 0;
+
+	// Last interleaved packet
+	private int mChannel, mPacketOffset, mPacketLength;
+
+	public ResponseParser() {
+		this(4096);
+	}
+
+	public ResponseParser(int capacity) {
+		mBuffer = new byte[capacity];
+		mByteBuffer = ByteBuffer.wrap(mBuffer);
+	}
+
+	/** Appends bytes received to the buffer. */
+	public void feed(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = Math.min(length, prepare());
+			System.arraycopy(data, offset, mBuffer, mEnd, n);
+			mEnd += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Reads what the channel has to offer in the buffer.
+	 * @return The number of bytes read, -1 at the end of the stream
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		int n;
+		prepare();
+		mByteBuffer.limit(mBuffer.length);
+		mByteBuffer.position(mEnd);
+		n = channel.read(mByteBuffer);
+		if (n > 0) mEnd += n;
+		return n;
+	}
+
+	/**
+	 * Parses the next message of the buffer. The response returned and the offsets of the packet
+	 * stay valid until the next call to {@link #feed(byte[], int, int)} or {@link #read(ReadableByteChannel)}.
+	 * @return {@link #RESPONSE}, {@link #INTERLEAVED} or {@link #NEED_MORE}
+	 * @throws IOException If the message is not a valid RTSP response, or is too large
+	 */
+	public int next() throws IOException {
+		if (mHeaderEnd < 0) {
+			if (mScan < 0) {
+				// Empty lines between two messages are ignored, an interleaved packet may follow them
+				while (mStart < mEnd && (mBuffer[mStart] == '\r' || mBuffer[mStart] == '\n')) mStart++;
+				if (mStart == mEnd) return NEED_MORE;
+				if (mBuffer[mStart] == '$') return nextPacket();
+			}
+			if (!parseHeaders()) return NEED_MORE;
+		}
+
+		if (mEnd - mHeaderEnd < mContentLength) return NEED_MORE;
+		mResponse.bodyOffset = mHeaderEnd;
+		mResponse.bodyLength = mContentLength;
+		mStart = mHeaderEnd + mContentLength;
+		mScan = mHeaderEnd = -1;
+		return RESPONSE;
+	}
+
+	public RtspClient.Response getResponse() {
+		return mResponse;
+	}
+
+	/** The channel of the last interleaved packet. */
+	public int getChannel() {
+		return mChannel;
+	}
+
+	/** The offset of the last interleaved packet in {@link #getBuffer()}. */
+	public int getPacketOffset() {
+		return mPacketOffset;
+	}
+
+	public int getPacketLength() {
+		return mPacketLength;
+	}
+
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/** Forgets the data buffered, when the connection is reopened. */
+	public void reset() {
+		mStart = mEnd = 0;
+		mScan = mHeaderEnd = -1;
+	}
+
+	private int nextPacket() {
+		if (mEnd - mStart < 4) return NEED_MORE;
+		mPacketLength = (mBuffer[mStart+2] & 0xFF) << 8 | (mBuffer[mStart+3] & 0xFF);
+		if (mEnd - mStart < 4 + mPacketLength) return NEED_MORE;
+		mChannel = mBuffer[mStart+1] & 0xFF;
+		mPacketOffset = mStart + 4;
+		mStart += 4 + mPacketLength;
+		return INTERLEAVED;
+	}
+
+	/**
+	 * Parses the complete lines of the response from where the previous call stopped.
+	 * @return Whether the empty line that ends the headers was found
+	 */
+	private boolean parseHeaders() throws IOException {
+		int line, end;
+		if (mScan < 0) {
+			mScan = mStart;
+			mResponse.reset(mBuffer);
+			mContentLength = 0;
+		}
+		while (true) {
+			line = mScan;
+			end = line;
+			while (end < mEnd && mBuffer[end] != '\n') end++;
+			if (end == mEnd) return false;
+			mScan = end + 1;
+			// The CR is optional
+			if (end > line && mBuffer[end-1] == '\r') end--;
+			if (line == mStart) {
+				parseStatusLine(line, end);
+			} else if (end == line) {
+				mHeaderEnd = mScan;
+				return true;
+			} else {
+				parseHeader(line, end);
+			}
+		}
+	}
+
+	/** RTSP/1.0 200 OK */
+	private void parseStatusLine(int start, int end) throws IOException {
+		int i = start + 5, status = 0, digits = 0;
+		if (end - start < 12 || mBuffer[start] != 'R' || mBuffer[start+1] != 'T' || mBuffer[start+2] != 'S'
+				|| mBuffer[start+3] != 'P' || mBuffer[start+4] != '/') {
+			throw new IOException("Invalid status line");
+		}
+		while (i < end && mBuffer[i] != ' ') i++;
+		while (i < end && mBuffer[i] == ' ') i++;
+		while (i < end && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+			status = status * 10 + mBuffer[i++] - '0';
+			digits++;
+		}
+		if (digits != 3) throw new IOException("Invalid status line");
+		mResponse.status = status;
+	}
+
+	/** Name: value, the value of a line that starts with a space or a tab continues the previous one. */
+	private void parseHeader(int start, int end) throws IOException {
+		int colon = start, nameEnd, value;
+		if ((mBuffer[start] == ' ' || mBuffer[start] == '\t') && mResponse.headerCount > 0) {
+			mResponse.valueEnds[mResponse.headerCount-1] = trimEnd(start, end);
+			return;
+		}
+		while (colon < end && mBuffer[colon] != ':') colon++;
+		if (colon == end || colon == start) throw new IOException("Invalid header");
+		nameEnd = trimEnd(start, colon);
+		value = colon + 1;
+		while (value < end && (mBuffer[value] == ' ' || mBuffer[value] == '\t')) value++;
+		end = trimEnd(value, end);
+		mResponse.addHeader(start, nameEnd, value, end);
+		if (mResponse.nameEquals(mResponse.headerCount-1, "content-length")) {
+			long length = mResponse.parseLong(value, end, -1);
+			if (length < 0 || length > MAX_BODY_SIZE) throw new IOException("Invalid Content-Length");
+			mContentLength = (int) length;
+		}
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (mBuffer[end-1] == ' ' || mBuffer[end-1] == '\t')) end--;
+		return end;
+	}
+
+	/**
+	 * Moves the unparsed bytes at the beginning of the buffer, or grows it, so that there is room after them.
+	 * @return The room left
+	 */
+	private int prepare() throws IOException {
+		int shift = mStart, length = mEnd - mStart;
+		if (mEnd < mBuffer.length) return mBuffer.length - mEnd;
+		if (shift == 0) {
+			if (mBuffer.length >= MAX_MESSAGE_SIZE) throw new IOException("Message too large");
+			byte[] buffer = new byte[Math.min(MAX_MESSAGE_SIZE, mBuffer.length * 2)];
+			System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+			mBuffer = buffer;
+			mByteBuffer = ByteBuffer.wrap(mBuffer);
+			mResponse.buffer = mBuffer;
+		} else {
+			System.arraycopy(mBuffer, shift, mBuffer, 0, length);
+			mStart = 0;
+			mEnd = length;
+			// The offsets of the response being parsed follow the bytes
+			if (mScan >= 0) {
+				mScan -= shift;
+				if (mHeaderEnd >= 0) mHeaderEnd -= shift;
+				mResponse.shift(shift);
+			}
+		}
+		return mBuffer.length - mEnd;
+	}
+
+}
@@ -27,21 +27,22 @@ import android.util.Log;
 
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,6 +51,10 @@ import java.util.regex.Pattern;
  * A basic and asynchronous RTSP client.
  * The original purpose of this class was to implement a small RTSP client compatible with Wowza.
  * It implements Digest Access Authentication according to RFC 2069. 
+ * 
+ * The connection with the server is run by an {@link RtspEngine}, shared by all the clients
+ * by default: the SETUP requests of the tracks are pipelined, and the OPTIONS keep-alives of
+ * the clients are sent by the thread of the engine.
  */
 public class RtspClient {
 
@@ -114,12 +119,20 @@ public class RtspClient {
 	private Parameters mTmpParameters;
 	private Parameters mParameters;
 
+	/** Maximum duration of the handshake with the server, in ms. */
+	private final static long HANDSHAKE_TIMEOUT = 20000;
+
+	/** Interval between two OPTIONS requests sent to check the connection, in ms. */
+	private final static long KEEP_ALIVE_INTERVAL = 6000;
+
 	private int mCSeq;
-	private Socket mSocket;
 	private String mSessionID;
 	private String mAuthorization;
-	private BufferedReader mBufferedReader;
+	private RtspEngine mEngine = null;
+	private volatile RtspConnection mConnection;
+	private RtspEngine.Timer mKeepAlive = null;
 	private OutputStream mOutputStream;
+	private InterleavedWriter mWriter;
 	private Callback mCallback;
 	private Handler mMainHandler;
 	private Handler mHandler;
@@ -143,16 +156,10 @@ public class RtspClient {
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mState = STATE_STOPPED;
 
-		final Semaphore signal = new Semaphore(0);
-		new HandlerThread("net.majorkernelpanic.streaming.RtspClient"){
-			@Override
-			protected void onLooperPrepared() {
-				mHandler = new Handler();
-				signal.release();
-			}
-		}.start();
-		signal.acquireUninterruptibly();
-		
+		HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.RtspClient");
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+
 	}
 
 	/**
@@ -164,6 +171,14 @@ public class RtspClient {
 		mCallback = cb;
 	}
 
+	/**
+	 * Sets the engine that runs the connection with the server, {@link RtspEngine#getDefault()} by default.
+	 * It takes effect when the stream is started.
+	 */
+	public void setEngine(RtspEngine engine) {
+		mEngine = engine;
+	}
+
 	/**
 	 * The {@link Session} that will be used to stream to the server.
 	 * If not called before {@link #startStream()}, a it will be created.
@@ -230,46 +245,55 @@ public class RtspClient {
 		mHandler.post(new Runnable () {
 			@Override
 			public void run() {
-				if (mState != STATE_STOPPED) return;
-				mState = STATE_STARTING;
-				
-				Log.d(TAG,"Connecting to RTSP server...");
-				
-				// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
-				mParameters = mTmpParameters.clone();
-				mParameters.session.setDestination(mTmpParameters.host);
-				
-				try {
-					mParameters.session.syncConfigure();
-				} catch (Exception e) {
-					mParameters.session = null;
-					mState = STATE_STOPPED;
-					return;
-				}				
-				
-				try {
-					tryConnection();
-				} catch (Exception e) {
-					postError(ERROR_CONNECTION_FAILED, e);
-					abort();
-					return;
-				}
-				
-				try {
-					mParameters.session.syncStart();
-					mState = STATE_STARTED;
-					if (mParameters.transport == TRANSPORT_UDP) {
-						mHandler.post(mConnectionMonitor);
-					}
-				} catch (Exception e) {
-					abort();
-				}
-
+				syncStartStream();
 			}
 		});
 
 	}
 
+	/**
+	 * Does the same thing as {@link #startStream()} on the calling thread.
+	 * @return Whether the stream was started
+	 */
+	boolean syncStartStream() {
+		if (mState != STATE_STOPPED) return false;
+		mState = STATE_STARTING;
+
+		Log.d(TAG,"Connecting to RTSP server...");
+
+		// If the user calls some methods to configure the client, it won't modify its behavior until the stream is restarted
+		mParameters = mTmpParameters.clone();
+		mParameters.session.setDestination(mTmpParameters.host);
+
+		try {
+			mParameters.session.syncConfigure();
+		} catch (Exception e) {
+			mParameters.session = null;
+			mState = STATE_STOPPED;
+			return false;
+		}
+
+		try {
+			tryConnection();
+		} catch (Exception e) {
+			postError(ERROR_CONNECTION_FAILED, e);
+			abort();
+			return false;
+		}
+
+		try {
+			mParameters.session.syncStart();
+			mState = STATE_STARTED;
+			if (mParameters.transport == TRANSPORT_UDP) {
+				scheduleKeepAlive();
+			}
+		} catch (Exception e) {
+			abort();
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Stops the stream, and informs the RTSP server.
 	 */
@@ -277,69 +301,194 @@ public class RtspClient {
 		mHandler.post(new Runnable () {
 			@Override
 			public void run() {
-				if (mParameters != null && mParameters.session != null) {
-					mParameters.session.stop();
-				}
-				if (mState != STATE_STOPPED) {
-					mState = STATE_STOPPING;
-					abort();
-				}
+				syncStopStream();
 			}
 		});
 	}
 
+	/** Does the same thing as {@link #stopStream()} on the calling thread. */
+	void syncStopStream() {
+		if (mParameters != null && mParameters.session != null) {
+			mParameters.session.stop();
+		}
+		if (mState != STATE_STOPPED) {
+			mState = STATE_STOPPING;
+			abort();
+		}
+	}
+
 	public void release() {
 		stopStream();
 		mHandler.getLooper().quit();
 	}
 	
 	private void abort() {
+		cancelKeepAlive();
 		try {
 			sendRequestTeardown();
 		} catch (Exception ignore) {}
-		try {
-			mSocket.close();
-		} catch (Exception ignore) {}
-		mHandler.removeCallbacks(mConnectionMonitor);
+		if (mConnection != null) {
+			mConnection.close();
+			mConnection = null;
+		}
+		if (mWriter != null) {
+			mWriter.close();
+			mWriter = null;
+		}
+		mHandler.removeCallbacks(mConnectionLost);
 		mHandler.removeCallbacks(mRetryConnection);
 		mState = STATE_STOPPED;
 	}
-	
+
+	/**
+	 * Connects to the server and runs the handshake on the thread of the engine,
+	 * the calling thread waits for the end of the handshake.
+	 */
 	private void tryConnection() throws IOException {
+		final Handshake handshake = new Handshake();
+
+		if (mEngine == null) mEngine = RtspEngine.getDefault();
+		if (mConnection != null) mConnection.close();
+		if (mWriter != null) {
+			mWriter.close();
+			mWriter = null;
+		}
 		mCSeq = 0;
-		mSocket = new Socket(mParameters.host, mParameters.port);
-		mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-		mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
-		sendRequestAnnounce();
-		sendRequestSetup();
-		sendRequestRecord();
+		mAuthorization = null;
+		mOutputStream = null;
+
+		mConnection = new RtspConnection(mEngine, new InetSocketAddress(mParameters.host, mParameters.port), handshake);
+		mConnection.connect();
+		try {
+			handshake.await();
+		} catch (IOException e) {
+			mConnection.close();
+			mConnection = null;
+			throw e;
+		} catch (RuntimeException e) {
+			mConnection.close();
+			mConnection = null;
+			throw e;
+		}
+
+		if (mParameters.transport == TRANSPORT_TCP) {
+			// The RTSP requests and the interleaved RTP/RTCP packets of all the tracks
+			// are written on the connection by the same writer
+			SocketChannel channel = mConnection.detach();
+			mConnection = null;
+			mWriter = new InterleavedWriter(channel);
+			mWriter.start();
+			mOutputStream = mWriter.getControlStream();
+			for (int i=0;i<2;i++) {
+				Stream stream = mParameters.session.getTrack(i);
+				if (stream != null) stream.setOutputStream(mOutputStream, (byte)(2*i));
+			}
+		}
 	}
-	
+
+	/**
+	 * The handshake with the server: ANNOUNCE, the SETUP requests of all the tracks at once, and RECORD.
+	 * Each request is sent by the handler of the response to the previous one, on the thread of the engine.
+	 */
+	private class Handshake implements RtspConnection.Listener {
+
+		private final Semaphore mDone = new Semaphore(0);
+		private Exception mError = null;
+		private boolean mFinished = false, mSucceeded = false;
+		private int mSetups = 0;
+
+		@Override
+		public void onConnected(RtspConnection connection) {
+			sendRequestAnnounce(connection, this);
+		}
+
+		@Override
+		public void onClosed(RtspConnection connection, Exception cause) {
+			if (cause == null) return;
+			fail(cause);
+			synchronized (this) {
+				if (!mSucceeded || connection != mConnection) return;
+			}
+			// The connection was lost while streaming
+			mHandler.post(mConnectionLost);
+		}
+
+		public synchronized void fail(Exception e) {
+			if (mFinished) return;
+			mFinished = true;
+			mError = e;
+			mDone.release();
+		}
+
+		public synchronized void succeed() {
+			if (mFinished) return;
+			mFinished = mSucceeded = true;
+			mDone.release();
+		}
+
+		public void await() throws IOException {
+			boolean done;
+			try {
+				done = mDone.tryAcquire(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				done = false;
+			}
+			synchronized (this) {
+				if (!done) fail(new SocketTimeoutException("No response from the server"));
+				if (mError instanceof IOException) throw (IOException) mError;
+				if (mError instanceof RuntimeException) throw (RuntimeException) mError;
+				if (mError != null) throw new IOException(mError.getMessage());
+			}
+		}
+
+		/** A handler of the responses that ends the handshake with the errors. */
+		abstract class Step implements RtspConnection.ResponseHandler {
+			@Override
+			public void onError(Exception e) {
+				fail(e);
+			}
+		}
+
+	}
+
 	/**
 	 * Forges and sends the ANNOUNCE request 
 	 */
-	private void sendRequestAnnounce() throws IllegalStateException, SocketException, IOException {
+	private void sendRequestAnnounce(final RtspConnection connection, final Handshake handshake) {
 
-		String body = mParameters.session.getSessionDescription();
+		final String body = getSessionDescription();
+		int cseq = nextCSeq();
 		String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-				"CSeq: " + (++mCSeq) + "\r\n" +
+				"CSeq: " + cseq + "\r\n" +
 				"Content-Length: " + body.length() + "\r\n" +
 				"Content-Type: application/sdp \r\n\r\n" +
 				body;
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response response = Response.parseResponse(mBufferedReader);
+		connection.send(cseq, request, handshake.new Step() {
+			@Override
+			public void onResponse(Response response) throws Exception {
+				if (onResponseAnnounce(connection, response, body, handshake)) {
+					sendRequestSetup(connection, handshake);
+				}
+			}
+		});
+	}
 
-		if (response.headers.containsKey("server")) {
-			Log.v(TAG,"RTSP server name:" + response.headers.get("server"));
+	/**
+	 * Handles the response to the ANNOUNCE request, and sends it again with the credentials if needed.
+	 * @return Whether the handshake can go on with the SETUP requests
+	 */
+	private boolean onResponseAnnounce(final RtspConnection connection, Response response, String body, final Handshake handshake) throws IOException {
+
+		if (response.hasHeader("server")) {
+			Log.v(TAG,"RTSP server name:" + response.getHeader("server"));
 		} else {
 			Log.v(TAG,"RTSP server name unknown");
 		}
 
 		try {
-			Matcher m = Response.rexegSession.matcher(response.headers.get("session"));
+			Matcher m = Response.rexegSession.matcher(response.getHeader("session"));
 			m.find();
 			mSessionID = m.group(1);
 		} catch (Exception e) {
@@ -353,7 +502,7 @@ public class RtspClient {
 			if (mParameters.username == null || mParameters.password == null) throw new IllegalStateException("Authentication is enabled and setCredentials(String,String) was not called !");
 
 			try {
-				m = Response.rexegAuthenticate.matcher(response.headers.get("www-authenticate")); m.find();
+				m = Response.rexegAuthenticate.matcher(response.getHeader("www-authenticate")); m.find();
 				nonce = m.group(2);
 				realm = m.group(1);
 			} catch (Exception e) {
@@ -367,8 +516,9 @@ public class RtspClient {
 
 			mAuthorization = "Digest username=\""+mParameters.username+"\",realm=\""+realm+"\",nonce=\""+nonce+"\",uri=\""+uri+"\",response=\""+hash3+"\"";
 
-			request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
-					"CSeq: " + (++mCSeq) + "\r\n" +
+			int cseq = nextCSeq();
+			String request = "ANNOUNCE rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
+					"CSeq: " + cseq + "\r\n" +
 					"Content-Length: " + body.length() + "\r\n" +
 					"Authorization: " + mAuthorization + "\r\n" +
 					"Session: " + mSessionID + "\r\n" +
@@ -377,50 +527,79 @@ public class RtspClient {
 
 			Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-			mOutputStream.write(request.getBytes("UTF-8"));
-			mOutputStream.flush();
-			response = Response.parseResponse(mBufferedReader);
-
-			if (response.status == 401) throw new RuntimeException("Bad credentials !");
+			connection.send(cseq, request, handshake.new Step() {
+				@Override
+				public void onResponse(Response response) throws Exception {
+					if (response.status == 401) throw new RuntimeException("Bad credentials !");
+					sendRequestSetup(connection, handshake);
+				}
+			});
+			return false;
 
 		} else if (response.status == 403) {
 			throw new RuntimeException("Access forbidden !");
 		}
 
+		return true;
 	}
 
 	/**
-	 * Forges and sends the SETUP request 
+	 * Forges and sends the SETUP requests of all the tracks without waiting for the responses,
+	 * the RECORD request is sent once they all got a response.
 	 */
-	private void sendRequestSetup() throws IllegalStateException, SocketException, IOException {
+	private void sendRequestSetup(final RtspConnection connection, final Handshake handshake) {
 		for (int i=0;i<2;i++) {
-			Stream stream = mParameters.session.getTrack(i);
+			final Stream stream = mParameters.session.getTrack(i);
 			if (stream != null) {
+				int cseq = nextCSeq();
 				String params = mParameters.transport==TRANSPORT_TCP ? 
 						("TCP;interleaved="+2*i+"-"+(2*i+1)) : ("UDP;unicast;client_port="+(5000+2*i)+"-"+(5000+2*i+1)+";mode=receive");
 				String request = "SETUP rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+"/trackID="+i+" RTSP/1.0\r\n" +
-						"Transport: RTP/AVP/"+params+"\r\n" +
-						addHeaders();
+						"Transport: "+getProfile(stream)+"/"+params+"\r\n" +
+						addHeaders(cseq);
 
 				Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
 
-				mOutputStream.write(request.getBytes("UTF-8"));
-				mOutputStream.flush();
-				Response response = Response.parseResponse(mBufferedReader);
-				Matcher m;
-				if (mParameters.transport == TRANSPORT_UDP) {
-					try {
-						m = Response.rexegTransport.matcher(response.headers.get("transport")); m.find();
-						stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
-						Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
-					} catch (Exception e) {
-						e.printStackTrace();
-						int[] ports = stream.getDestinationPorts();
-						Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
+				handshake.mSetups++;
+				connection.send(cseq, request, handshake.new Step() {
+					@Override
+					public void onResponse(Response response) throws Exception {
+						onResponseSetup(stream, response);
+						if (--handshake.mSetups == 0) sendRequestRecord(connection, handshake);
 					}
-				} else {
-					stream.setOutputStream(mOutputStream, (byte)(2*i));
-				}
+				});
+			}
+		}
+		if (handshake.mSetups == 0) sendRequestRecord(connection, handshake);
+	}
+
+	/**
+	 * Returns the session description sent with ANNOUNCE. Packets are only sent again over UDP,
+	 * so in the interleaved mode the media lines keep the RTP/AVP profile and don't announce NACKs.
+	 */
+	private String getSessionDescription() {
+		String sdp = mParameters.session.getSessionDescription();
+		if (mParameters.transport == TRANSPORT_UDP) return sdp;
+		return sdp.replace(" RTP/AVPF ", " RTP/AVP ").replaceAll("a=rtcp-fb:[^\r\n]*\r\n", "");
+	}
+
+	/** Returns the profile of the media line of a track, RTP/AVPF when the track accepts RTCP feedback over UDP. */
+	private String getProfile(Stream stream) {
+		return mParameters.transport == TRANSPORT_UDP && stream.getSessionDescription().contains(" RTP/AVPF ") ? "RTP/AVPF" : "RTP/AVP";
+	}
+
+	/** Sets the destination ports of a track, in the interleaved mode the output stream is set once the handshake is over. */
+	private void onResponseSetup(Stream stream, Response response) {
+		Matcher m;
+		if (mParameters.transport == TRANSPORT_UDP) {
+			try {
+				m = Response.rexegTransport.matcher(response.getHeader("transport")); m.find();
+				stream.setDestinationPorts(Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)));
+				Log.d(TAG, "Setting destination ports: "+Integer.parseInt(m.group(3))+", "+Integer.parseInt(m.group(4)));
+			} catch (Exception e) {
+				e.printStackTrace();
+				int[] ports = stream.getDestinationPorts();
+				Log.d(TAG,"Server did not specify ports, using default ports: "+ports[0]+"-"+ports[1]);
 			}
 		}
 	}
@@ -428,64 +607,103 @@ public class RtspClient {
 	/**
 	 * Forges and sends the RECORD request 
 	 */
-	private void sendRequestRecord() throws IllegalStateException, SocketException, IOException {
+	private void sendRequestRecord(RtspConnection connection, final Handshake handshake) {
+		int cseq = nextCSeq();
 		String request = "RECORD rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" +
 				"Range: npt=0.000-\r\n" +
-				addHeaders();
+				addHeaders(cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		connection.send(cseq, request, handshake.new Step() {
+			@Override
+			public void onResponse(Response response) {
+				handshake.succeed();
+			}
+		});
 	}
 
 	/**
 	 * Forges and sends the TEARDOWN request 
 	 */
 	private void sendRequestTeardown() throws IOException {
-		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
+		int cseq = nextCSeq();
+		String request = "TEARDOWN rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders(cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
+		if (mConnection != null) {
+			mConnection.send(cseq, request, null);
+		} else if (mOutputStream != null) {
+			mOutputStream.write(request.getBytes("UTF-8"));
+			mOutputStream.flush();
+		}
 	}
 	
 	/**
-	 * Forges and sends the OPTIONS request 
+	 * Forges and sends the OPTIONS request, the next one is scheduled when the response is received.
 	 */
-	private void sendRequestOption() throws IOException {
-		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders();
+	private void sendRequestOption() {
+		final RtspConnection connection = mConnection;
+		if (connection == null) return;
+		int cseq = nextCSeq();
+		String request = "OPTIONS rtsp://"+mParameters.host+":"+mParameters.port+mParameters.path+" RTSP/1.0\r\n" + addHeaders(cseq);
 		Log.i(TAG,request.substring(0, request.indexOf("\r\n")));
-		mOutputStream.write(request.getBytes("UTF-8"));
-		mOutputStream.flush();
-		Response.parseResponse(mBufferedReader);
+		connection.send(cseq, request, new RtspConnection.ResponseHandler() {
+			@Override
+			public void onResponse(Response response) {
+				if (connection == mConnection) scheduleKeepAlive();
+			}
+			@Override
+			public void onError(Exception e) {
+				// Happens if the OPTION request fails
+				if (connection == mConnection) mHandler.post(mConnectionLost);
+			}
+		});
 	}	
 
-	private String addHeaders() {
-		return "CSeq: " + (++mCSeq) + "\r\n" +
+	private synchronized int nextCSeq() {
+		return ++mCSeq;
+	}
+
+	private String addHeaders(int cseq) {
+		return "CSeq: " + cseq + "\r\n" +
 				"Content-Length: 0\r\n" +
 				"Session: " + mSessionID + "\r\n" +
 				// For some reason you may have to remove last "\r\n" in the next line to make the RTSP client work with your wowza server :/
 				(mAuthorization != null ? "Authorization: " + mAuthorization + "\r\n":"") + "\r\n";
 	}
 
+	/** We poll the RTSP server with OPTIONS requests, sent by the thread of the engine. */
+	private synchronized void scheduleKeepAlive() {
+		if (mKeepAlive != null) mKeepAlive.cancel();
+		mKeepAlive = mEngine.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (mState == STATE_STARTED) sendRequestOption();
+			}
+		}, KEEP_ALIVE_INTERVAL);
+	}
+
+	private synchronized void cancelKeepAlive() {
+		if (mKeepAlive != null) {
+			mKeepAlive.cancel();
+			mKeepAlive = null;
+		}
+	}
+
 	/**
 	 * If the connection with the RTSP server is lost, we try to reconnect to it as
 	 * long as {@link #stopStream()} is not called.
 	 */
-	private Runnable mConnectionMonitor = new Runnable() {
+	private Runnable mConnectionLost = new Runnable() {
 		@Override
 		public void run() {
-			if (mState == STATE_STARTED) {
-				try {
-					// We poll the RTSP server with OPTION requests
-					sendRequestOption();
-					mHandler.postDelayed(mConnectionMonitor, 6000);
-				} catch (IOException e) {
-					// Happens if the OPTION request fails
-					postMessage(ERROR_CONNECTION_LOST);
-					Log.e(TAG, "Connection lost with the server...");
-					mParameters.session.stop();
-					mHandler.post(mRetryConnection);
-				}
+			if (mState == STATE_STARTED && mConnection != null) {
+				cancelKeepAlive();
+				mConnection.close();
+				mConnection = null;
+				postMessage(ERROR_CONNECTION_LOST);
+				Log.e(TAG, "Connection lost with the server...");
+				mParameters.session.stop();
+				mHandler.removeCallbacks(mRetryConnection);
+				mHandler.post(mRetryConnection);
 			}
 		}
 	};
@@ -500,7 +718,7 @@ public class RtspClient {
 					tryConnection();
 					try {
 						mParameters.session.start();
-						mHandler.post(mConnectionMonitor);
+						if (mParameters.transport == TRANSPORT_UDP) scheduleKeepAlive();
 						postMessage(MESSAGE_CONNECTION_RECOVERED);
 					} catch (Exception e) {
 						abort();
@@ -558,12 +776,12 @@ public class RtspClient {
 		});
 	}	
 
+	/**
+	 * A response of the server, filled by a {@link ResponseParser}. The headers are kept as offsets
+	 * in the buffer of the parser, which reuses the response: it is only valid in the handler it is given to.
+	 */
 	static class Response {
 
-		// Parses method & uri
-		public static final Pattern regexStatus = Pattern.compile("RTSP/\\d.\\d (\\d+) (\\w+)",Pattern.CASE_INSENSITIVE);
-		// Parses a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
 		// Parses a WWW-Authenticate header
 		public static final Pattern rexegAuthenticate = Pattern.compile("realm=\"(.+)\",\\s+nonce=\"(\\w+)\"",Pattern.CASE_INSENSITIVE);
 		// Parses a Session header
@@ -571,37 +789,94 @@ public class RtspClient {
 		// Parses a Transport header
 		public static final Pattern rexegTransport = Pattern.compile("client_port=(\\d+)-(\\d+).+server_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
 
+		private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
 		public int status;
-		public HashMap<String,String> headers = new HashMap<String,String>();
-
-		/** Parse the method, URI & headers of a RTSP request */
-		public static Response parseResponse(BufferedReader input) throws IOException, IllegalStateException, SocketException {
-			Response response = new Response();
-			String line;
-			Matcher matcher;
-			// Parsing request method & URI
-			if ((line = input.readLine())==null) throw new SocketException("Connection lost");
-			matcher = regexStatus.matcher(line);
-			matcher.find();
-			response.status = Integer.parseInt(matcher.group(1));
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null) {
-				//Log.e(TAG,"l: "+line.length()+", c: "+line);
-				if (line.length()>3) {
-					matcher = rexegHeader.matcher(line);
-					matcher.find();
-					response.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
-				} else {
-					break;
-				}
+
+		byte[] buffer;
+		int headerCount = 0;
+		int[] nameStarts = new int[16], nameEnds = new int[16], valueStarts = new int[16], valueEnds = new int[16];
+		int bodyOffset = 0, bodyLength = 0;
+
+		/** Returns the value of a header, the name is not case sensitive, or null if there is no such header. */
+		public String getHeader(String name) {
+			int i = indexOf(name);
+			return i < 0 ? null : new String(buffer, valueStarts[i], valueEnds[i] - valueStarts[i], ISO_8859_1);
+		}
+
+		/** Returns the value of a header as a number without allocating anything, or the default value. */
+		public long getHeaderLong(String name, long defaultValue) {
+			int i = indexOf(name);
+			return i < 0 ? defaultValue : parseLong(valueStarts[i], valueEnds[i], defaultValue);
+		}
+
+		public boolean hasHeader(String name) {
+			return indexOf(name) >= 0;
+		}
+
+		public String getBody() {
+			return new String(buffer, bodyOffset, bodyLength, ISO_8859_1);
+		}
+
+		void reset(byte[] buffer) {
+			this.buffer = buffer;
+			status = 0;
+			headerCount = 0;
+			bodyOffset = bodyLength = 0;
+		}
+
+		void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+			if (headerCount == nameStarts.length) {
+				nameStarts = Arrays.copyOf(nameStarts, headerCount * 2);
+				nameEnds = Arrays.copyOf(nameEnds, headerCount * 2);
+				valueStarts = Arrays.copyOf(valueStarts, headerCount * 2);
+				valueEnds = Arrays.copyOf(valueEnds, headerCount * 2);
+			}
+			nameStarts[headerCount] = nameStart;
+			nameEnds[headerCount] = nameEnd;
+			valueStarts[headerCount] = valueStart;
+			valueEnds[headerCount] = valueEnd;
+			headerCount++;
+		}
+
+		/** Called when the bytes of the response are moved in the buffer. */
+		void shift(int offset) {
+			for (int i=0;i<headerCount;i++) {
+				nameStarts[i] -= offset;
+				nameEnds[i] -= offset;
+				valueStarts[i] -= offset;
+				valueEnds[i] -= offset;
+			}
+		}
+
+		/** Compares the name of a header with a name in lower case. */
+		boolean nameEquals(int index, String name) {
+			int start = nameStarts[index], length = nameEnds[index] - start, c;
+			if (length != name.length()) return false;
+			for (int i=0;i<length;i++) {
+				c = buffer[start+i];
+				if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+				if (c != name.charAt(i)) return false;
 			}
-			if (line==null) throw new SocketException("Connection lost");
-/**this comment need to recovery**/
-		//	Log.d(TAG, "Response from server: "+response.status);
+			return true;
+		}
 
-			return response;
+		long parseLong(int start, int end, long defaultValue) {
+			long value = 0;
+			if (start == end) return defaultValue;
+			for (int i=start;i<end;i++) {
+				if (buffer[i] < '0' || buffer[i] > '9' || i - start > 17) return defaultValue;
+				value = value * 10 + buffer[i] - '0';
+			}
+			return value;
+		}
+
+		private int indexOf(String name) {
+			String lower = name.toLowerCase(Locale.US);
+			for (int i=0;i<headerCount;i++) {
+				if (nameEquals(i, lower)) return i;
+			}
+			return -1;
 		}
 	}
 
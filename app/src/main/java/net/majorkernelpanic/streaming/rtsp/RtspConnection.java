@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A non-blocking RTSP connection run by an {@link RtspEngine}.
+ * Requests can be pipelined: they are written as soon as they are sent, and each response is
+ * given to the handler of the request with the same CSeq. Interleaved RTP/RTCP packets sent by
+ * the server on the connection are skipped.
+ * The methods can be called from any thread, the handlers are called by the thread of the engine.
+ */
+class RtspConnection implements RtspEngine.ChannelHandler {
+
+	public final static String TAG = "RtspConnection";
+
+	/** Delay after which a request without response closes the connection, in ms. */
+	private final static long TIMEOUT = 10000;
+
+	interface Listener {
+		/** Called when the connection is established, requests sent before are written then. */
+		public void onConnected(RtspConnection connection);
+		/** @param cause Why the connection was closed, null if it was closed by {@link #close()} */
+		public void onClosed(RtspConnection connection, Exception cause);
+	}
+
+	interface ResponseHandler {
+		public void onResponse(RtspClient.Response response) throws Exception;
+		/** Called if the connection is closed before the response, or if {@link #onResponse} threw. */
+		public void onError(Exception e);
+	}
+
+	private static class Pending {
+		ResponseHandler handler;
+		RtspEngine.Timer timer;
+	}
+
+	private final RtspEngine mEngine;
+	private final InetSocketAddress mAddress;
+	private final Listener mListener;
+	private final HashMap<Integer, Pending> mPending = new HashMap<Integer, Pending>();
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private final ResponseParser mParser = new ResponseParser();
+	private ByteBuffer mOutput = ByteBuffer.allocate(4096);
+	private boolean mConnected = false, mClosed = false;
+
+	public RtspConnection(RtspEngine engine, InetSocketAddress address, Listener listener) {
+		mEngine = engine;
+		mAddress = address;
+		mListener = listener;
+	}
+
+	/** Opens the connection, {@link Listener#onConnected(RtspConnection)} is called once it is established. */
+	public void connect() {
+		mEngine.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mChannel = SocketChannel.open();
+					mChannel.configureBlocking(false);
+					mChannel.socket().setTcpNoDelay(true);
+					if (mChannel.connect(mAddress)) {
+						mKey = mEngine.register(mChannel, SelectionKey.OP_READ, RtspConnection.this);
+						onConnected();
+					} else {
+						mKey = mEngine.register(mChannel, SelectionKey.OP_CONNECT, RtspConnection.this);
+					}
+				} catch (IOException e) {
+					close(e);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Connection failed", e);
+					close(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a request, the requests are written in the order in which they are sent.
+	 * @param cseq The CSeq of the request
+	 * @param request The request, headers and body included
+	 * @param handler Called with the response, or null if the response is ignored
+	 */
+	public void send(final int cseq, String request, final ResponseHandler handler) {
+		final byte[] bytes;
+		try {
+			bytes = request.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		mEngine.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mClosed) {
+					if (handler != null) handler.onError(new SocketException("Connection closed"));
+					return;
+				}
+				if (handler != null) {
+					final Pending pending = new Pending();
+					pending.handler = handler;
+					pending.timer = mEngine.schedule(new Runnable() {
+						@Override
+						public void run() {
+							if (mPending.get(cseq) == pending) {
+								close(new SocketTimeoutException("No response to the request "+cseq));
+							}
+						}
+					}, TIMEOUT);
+					mPending.put(cseq, pending);
+				}
+				if (mOutput.remaining() < bytes.length) {
+					ByteBuffer output = ByteBuffer.allocate(mOutput.position() + bytes.length);
+					mOutput.flip();
+					output.put(mOutput);
+					mOutput = output;
+				}
+				mOutput.put(bytes);
+				if (mConnected) flush();
+			}
+		});
+	}
+
+	/** Closes the connection once the requests already sent are written, if they can be written right away. */
+	public void close() {
+		mEngine.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (mConnected && !mClosed) flush();
+				close(null);
+			}
+		});
+	}
+
+	/**
+	 * Removes the connection from the engine and returns its channel in blocking mode,
+	 * so that it can be used by an {@link net.majorkernelpanic.streaming.rtp.InterleavedWriter}.
+	 * Responses to requests still pending are lost. Must not be called on the thread of the engine.
+	 */
+	public SocketChannel detach() throws IOException {
+		final Semaphore done = new Semaphore(0);
+		final IOException[] error = new IOException[1];
+		mEngine.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (mClosed || !mConnected) throw new SocketException("Connection closed");
+					if (mOutput.position() > 0) flush();
+					mEngine.deregister(mKey);
+					mClosed = true;
+					failPending(new SocketException("Connection detached"));
+					mChannel.configureBlocking(true);
+				} catch (IOException e) {
+					error[0] = e;
+				}
+				done.release();
+			}
+		});
+		try {
+			if (!done.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) throw new SocketTimeoutException("The engine did not respond");
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		if (error[0] != null) throw error[0];
+		return mChannel;
+	}
+
+	@Override
+	public void onReady(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				if (mChannel.finishConnect()) onConnected();
+				return;
+			}
+			if (key.isReadable()) read();
+			if (key.isValid() && key.isWritable()) flush();
+		} catch (IOException e) {
+			close(e);
+		} catch (RuntimeException e) {
+			// A listener or a handler failed, the requests pending would otherwise never complete
+			Log.e(TAG, "Connection failed", e);
+			close(e);
+		}
+	}
+
+	private void onConnected() {
+		mConnected = true;
+		mKey.interestOps(SelectionKey.OP_READ);
+		mListener.onConnected(this);
+		if (mOutput.position() > 0) flush();
+	}
+
+	/** Writes what the socket accepts, the rest is written when the socket is writable. */
+	private void flush() {
+		try {
+			mOutput.flip();
+			mChannel.write(mOutput);
+			mOutput.compact();
+			if (mKey.isValid()) {
+				mKey.interestOps(mOutput.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	private void read() {
+		int n, type;
+		try {
+			if ((n = mParser.read(mChannel)) < 0) throw new SocketException("Connection lost");
+			while (n > 0 && !mClosed && (type = mParser.next()) != ResponseParser.NEED_MORE) {
+				// Interleaved packets are skipped
+				if (type == ResponseParser.RESPONSE) dispatch(mParser.getResponse());
+			}
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+	private void dispatch(RtspClient.Response response) {
+		Pending pending;
+		long cseq = response.getHeaderLong("cseq", -1);
+		pending = cseq >= 0 && cseq <= Integer.MAX_VALUE ? mPending.remove((int) cseq) : null;
+		if (pending == null) {
+			Log.w(TAG, "Unexpected response, CSeq: "+cseq);
+			return;
+		}
+		pending.timer.cancel();
+		try {
+			pending.handler.onResponse(response);
+		} catch (Exception e) {
+			pending.handler.onError(e);
+		}
+	}
+
+	private void failPending(Exception cause) {
+		HashMap<Integer, Pending> pending = new HashMap<Integer, Pending>(mPending);
+		mPending.clear();
+		for (Pending p : pending.values()) {
+			p.timer.cancel();
+			p.handler.onError(cause);
+		}
+	}
+
+	private void close(Exception cause) {
+		if (mClosed) return;
+		mClosed = true;
+		if (mKey != null) mKey.cancel();
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+		failPending(cause != null ? cause : new SocketException("Connection closed"));
+		mListener.onClosed(this, cause);
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A single thread that runs the RTSP connections of several {@link RtspClient}s with
+ * non-blocking channels and a {@link Selector}: their handshakes, keep-alives and timeouts.
+ * Everything that touches a channel runs on this thread, other threads post tasks with
+ * {@link #execute(Runnable)} or {@link #schedule(Runnable, long)}.
+ */
+public class RtspEngine implements Runnable {
+
+	public final static String TAG = "RtspEngine";
+
+	private static RtspEngine sDefault = null;
+
+	/**
+	 * Called by the thread of the engine when a registered channel is ready.
+	 * A handler should close its channel itself when it fails, if a RuntimeException
+	 * escapes the engine closes the channel.
+	 */
+	interface ChannelHandler {
+		public void onReady(SelectionKey key);
+	}
+
+	/** A task scheduled on the thread of the engine, see {@link RtspEngine#schedule(Runnable, long)}. */
+	public static class Timer implements Comparable<Timer> {
+		private final Runnable mTask;
+		private final long mTime;
+		private volatile boolean mCancelled = false;
+
+		private Timer(Runnable task, long time) {
+			mTask = task;
+			mTime = time;
+		}
+
+		/** The task will not run if it has not run yet. */
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer timer) {
+			return mTime < timer.mTime ? -1 : mTime > timer.mTime ? 1 : 0;
+		}
+	}
+
+	private final Selector mSelector;
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+	private volatile Thread mThread = null;
+
+	public RtspEngine() throws IOException {
+		mSelector = Selector.open();
+	}
+
+	/** Returns the engine shared by the clients, it is started when first used. */
+	public static synchronized RtspEngine getDefault() throws IOException {
+		if (sDefault == null) {
+			sDefault = new RtspEngine();
+			sDefault.start();
+		}
+		return sDefault;
+	}
+
+	public synchronized void start() {
+		if (mThread != null) return;
+		mThread = new Thread(this, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/** Stops the thread, the channels still registered are closed. */
+	public synchronized void stop() {
+		if (mThread == null) return;
+		mThread.interrupt();
+		mSelector.wakeup();
+		mThread = null;
+	}
+
+	public boolean isEngineThread() {
+		return Thread.currentThread() == mThread;
+	}
+
+	/** Runs the task on the thread of the engine, after the tasks already posted. */
+	public void execute(Runnable task) {
+		mTasks.add(task);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the thread of the engine after a delay.
+	 * @param delay The delay in ms
+	 */
+	public Timer schedule(Runnable task, long delay) {
+		final Timer timer = new Timer(task, SystemClock.elapsedRealtime() + delay);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				mTimers.add(timer);
+			}
+		});
+		return timer;
+	}
+
+	/** Registers a channel, must be called on the thread of the engine. */
+	SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+		return channel.register(mSelector, ops, handler);
+	}
+
+	/**
+	 * Waits until a cancelled key is removed from the selector, the channel can then
+	 * be put back in blocking mode. Must be called on the thread of the engine.
+	 */
+	void deregister(SelectionKey key) throws IOException {
+		key.cancel();
+		mSelector.selectNow();
+	}
+
+	@Override
+	public void run() {
+		Iterator<SelectionKey> iterator;
+		SelectionKey key;
+		long timeout;
+		try {
+			while (!Thread.interrupted()) {
+				runTasks();
+				timeout = runTimers();
+				mSelector.select(timeout);
+				iterator = mSelector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					key = iterator.next();
+					iterator.remove();
+					if (!key.isValid()) continue;
+					try {
+						((ChannelHandler) key.attachment()).onReady(key);
+					} catch (RuntimeException e) {
+						// The handler could not close its connection itself
+						Log.e(TAG, "Connection failed", e);
+						key.cancel();
+						try {
+							key.channel().close();
+						} catch (IOException ignore) {}
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Selector failed: "+e.getMessage());
+		}
+		for (SelectionKey k : mSelector.keys()) {
+			try {
+				k.channel().close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = mTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Task failed", e);
+			}
+		}
+	}
+
+	/** Runs the timers that are due, returns the delay before the next one or 0 if there is none. */
+	private long runTimers() {
+		long now = SystemClock.elapsedRealtime();
+		Timer timer;
+		while ((timer = mTimers.peek()) != null && (timer.mCancelled || timer.mTime <= now)) {
+			mTimers.poll();
+			if (timer.mCancelled) continue;
+			try {
+				timer.mTask.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Timer failed", e);
+			}
+			now = SystemClock.elapsedRealtime();
+		}
+		return timer == null ? 0 : Math.max(1, timer.mTime - now);
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtcp.ReceiverStatistics;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+/**
+ * Adapts the bit rate of a video encoder to the network, while it is encoding.
+ *
+ * The target bit rate follows the loss based rules of the Google Congestion Control: it
+ * grows by 8% when receivers report less than 2% of losses, holds between 2% and 10%, and
+ * drops in proportion to the loss above 10%. It also drops by 15% when the round trip time
+ * grows well above its minimum, or when the FIFO of the {@link RtpSocket} fills up because
+ * the uplink can't keep up. When the packets leave the FIFO slower than they are committed,
+ * the bit rate drops to the rate at which they leave it. Without any receiver report
+ * (RTP over RTSP), only the FIFO is used.
+ *
+ * The bit rate of the MediaCodec is updated with MediaCodec.setParameters(). When the bit
+ * rate gets too low for the resolution, the frame rate of the {@link VideoQuality} is lowered
+ * step by step, see {@link Callback}.
+ */
+@SuppressLint("NewApi")
+public class BitrateController implements Runnable {
+
+    public final static String TAG = "BitrateController";
+
+    /** Period of the controller in ms. */
+    private final static long INTERVAL = 500;
+
+    /** The bit rate is not increased during this delay after a decrease, in ms. */
+    private final static long HOLD_TIME = 2000;
+
+    /** Decreases are at least this far apart, in ms. */
+    private final static long DECREASE_INTERVAL = 1000;
+
+    /** Round trip time above its minimum that is considered as congestion, in ms. */
+    private final static long RTT_THRESHOLD = 150;
+
+    /** The minimum round trip time is forgotten after this delay, in ms. */
+    private final static long RTT_WINDOW = 30000;
+
+    /** Bits per pixel below which the frame rate is lowered, and above which it is raised again. */
+    private final static float BPP_LOW = 0.04f, BPP_HIGH = 0.07f;
+
+    /** The FIFO drains too slowly when packets leave it below this fraction of the rate at which they come in. */
+    private final static float DRAIN_RATIO = 0.9f;
+
+    /** Steps of the frame rate, in fractions of the frame rate requested. */
+    private final static int[] FRAMERATE_STEPS = {6, 4, 3, 2};
+    private final static int FRAMERATE_DIVISOR = 6;
+
+    public interface Callback {
+        /**
+         * Called by the thread of the controller when the frame rate must be changed.
+         * @param quality The quality requested with the new frame rate, and the current bit rate
+         */
+        public void onVideoQualityChanged(VideoQuality quality);
+    }
+
+    private final MediaCodec mMediaCodec;
+    private final RtpSocket mSocket;
+    private final VideoQuality mQuality;
+    private Callback mCallback = null;
+    private Thread mThread = null;
+
+    private int mMinBitrate, mMaxBitrate, mBitrate, mAppliedBitrate;
+    private int mStep = 0;
+    private long mReports = 0, mMinRtt = -1, mMinRttTime = 0;
+    private long mLastDecrease = 0, mLastIncrease = 0;
+    private final Sample mSample = new Sample(), mLastSample = new Sample();
+    private long mLastSampleTime = -1;
+
+    /** What the controller measures on the socket, the byte and packet counts are cumulative. */
+    static class Sample {
+        int queue, capacity;
+        long committedBytes, releasedBytes, droppedPackets;
+        long reports = 0, rtt = -1;
+        float loss = 0;
+
+        void set(Sample sample) {
+            queue = sample.queue;
+            capacity = sample.capacity;
+            committedBytes = sample.committedBytes;
+            releasedBytes = sample.releasedBytes;
+            droppedPackets = sample.droppedPackets;
+            reports = sample.reports;
+            rtt = sample.rtt;
+            loss = sample.loss;
+        }
+    }
+
+    /**
+     * @param mediaCodec The encoder, it must be started
+     * @param socket The socket of the stream
+     * @param quality The quality requested for the stream, its bit rate is the maximum
+     */
+    public BitrateController(MediaCodec mediaCodec, RtpSocket socket, VideoQuality quality) {
+        mMediaCodec = mediaCodec;
+        mSocket = socket;
+        mQuality = quality.clone();
+        mMaxBitrate = mBitrate = mAppliedBitrate = quality.bitrate;
+        mMinBitrate = Math.max(50000, quality.bitrate / 10);
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /** Sets the range in which the bit rate is adapted, in bit per second. */
+    public void setBitrateRange(int min, int max) {
+        if (min <= 0 || min > max) throw new IllegalArgumentException("Invalid range: " + min + "-" + max);
+        mMinBitrate = min;
+        mMaxBitrate = max;
+    }
+
+    /** Returns the bit rate the controller aims at, it is applied to the encoder when it changed by more than 5%. */
+    int getTargetBitrate() {
+        return mBitrate;
+    }
+
+    /** Returns the bit rate currently requested to the encoder, in bit per second. */
+    public int getBitrate() {
+        return mAppliedBitrate;
+    }
+
+    public void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        }
+    }
+
+    /** Waits for the thread to stop, the codec can then be released. */
+    public void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException ignore) {}
+            mThread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long now;
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(INTERVAL);
+                now = SystemClock.elapsedRealtime();
+                sample(mSample);
+                update(now, mSample);
+                apply(now);
+            }
+        } catch (InterruptedException ignore) {
+        } catch (RuntimeException e) {
+            // The codec may have been released
+            e.printStackTrace();
+        }
+    }
+
+    private void sample(Sample sample) {
+        ReceiverStatistics statistics = mSocket.getReceiverStatistics();
+        sample.queue = mSocket.getQueueLength();
+        sample.capacity = mSocket.getFifoCapacity();
+        sample.committedBytes = mSocket.getCommittedBytes();
+        sample.releasedBytes = mSocket.getReleasedBytes();
+        sample.droppedPackets = mSocket.getDroppedPackets(RtpSocket.OVERFLOW_DROP_NON_REFERENCE)
+                + mSocket.getDroppedPackets(RtpSocket.OVERFLOW_DROP_UNTIL_KEY_FRAME);
+        sample.reports = statistics.getReports();
+        sample.loss = statistics.getFractionLost();
+        sample.rtt = statistics.getRoundTripTime();
+    }
+
+    /**
+     * Updates the target bit rate, called every {@link #INTERVAL} ms.
+     * @param now The time in ms
+     */
+    void update(long now, Sample sample) {
+        boolean first = mLastSampleTime < 0;
+        long committed = sample.committedBytes - mLastSample.committedBytes;
+        long released = sample.releasedBytes - mLastSample.releasedBytes;
+        boolean dropped = sample.droppedPackets != mLastSample.droppedPackets;
+        mLastSample.set(sample);
+        mLastSampleTime = now;
+        if (first) return;
+
+        if (sample.queue > sample.capacity / 2 || dropped) {
+            // The packets are produced faster than they can be sent
+            decrease(now, 0.85f);
+        } else if (sample.queue >= sample.capacity / 8 && released < committed * DRAIN_RATIO) {
+            // The FIFO drains slower than it fills, the bit rate follows the rate at which it drains
+            decrease(now, Math.max(0.5f, Math.min(0.85f, (float) released / committed)));
+        } else if (sample.reports != mReports) {
+            mReports = sample.reports;
+            onReport(now, sample.loss, sample.rtt);
+        } else if (sample.reports == 0 && sample.queue < sample.capacity / 8 && released >= committed * DRAIN_RATIO) {
+            increase(now);
+        }
+    }
+
+    private void onReport(long now, float loss, long rtt) {
+        if (rtt >= 0 && (mMinRtt < 0 || rtt < mMinRtt || now - mMinRttTime > RTT_WINDOW)) {
+            mMinRtt = rtt;
+            mMinRttTime = now;
+        }
+        if (loss > 0.10f) {
+            decrease(now, 1 - 0.5f * loss);
+        } else if (loss >= 0.02f) {
+            // Holds the bit rate
+        } else if (rtt >= 0 && rtt > mMinRtt + RTT_THRESHOLD) {
+            decrease(now, 0.85f);
+        } else {
+            increase(now);
+        }
+    }
+
+    private void decrease(long now, float factor) {
+        if (now - mLastDecrease < DECREASE_INTERVAL) return;
+        mLastDecrease = now;
+        mBitrate = Math.max(mMinBitrate, (int) (mBitrate * factor));
+    }
+
+    private void increase(long now) {
+        if (now - mLastDecrease < HOLD_TIME || now - mLastIncrease < DECREASE_INTERVAL) return;
+        mLastIncrease = now;
+        mBitrate = Math.min(mMaxBitrate, (int) (mBitrate * 1.08f) + 1);
+    }
+
+    /** Updates the encoder if the bit rate changed by more than 5%, and the frame rate if needed. */
+    private void apply(long now) {
+        if (Math.abs(mBitrate - mAppliedBitrate) > mAppliedBitrate / 20 ||
+                (mBitrate != mAppliedBitrate && (mBitrate == mMinBitrate || mBitrate == mMaxBitrate))) {
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, mBitrate);
+            mMediaCodec.setParameters(parameters);
+            Log.d(TAG, "Bit rate: " + mAppliedBitrate / 1000 + " -> " + mBitrate / 1000 + " kbps");
+            mAppliedBitrate = mBitrate;
+        }
+
+        float bpp = bitsPerPixel(mAppliedBitrate, mStep);
+        if (bpp < BPP_LOW && mStep < FRAMERATE_STEPS.length - 1) {
+            setStep(mStep + 1);
+        } else if (mStep > 0 && bitsPerPixel(mAppliedBitrate, mStep - 1) > BPP_HIGH) {
+            setStep(mStep - 1);
+        }
+    }
+
+    private float bitsPerPixel(int bitrate, int step) {
+        float pixels = (float) mQuality.resX * mQuality.resY * framerate(step);
+        return pixels > 0 ? bitrate / pixels : Float.MAX_VALUE;
+    }
+
+    private int framerate(int step) {
+        return Math.max(1, mQuality.framerate * FRAMERATE_STEPS[step] / FRAMERATE_DIVISOR);
+    }
+
+    private void setStep(int step) {
+        VideoQuality quality = mQuality.clone();
+        mStep = step;
+        quality.framerate = framerate(step);
+        quality.bitrate = mAppliedBitrate;
+        Log.d(TAG, "Quality: " + quality);
+        if (mCallback != null) mCallback.onVideoQualityChanged(quality);
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class CounterTest {
+
+    @Test
+    public void sumsTheCells() {
+        Counter counter = new Counter();
+        assertEquals(0, counter.get());
+        counter.increment();
+        counter.add(41);
+        counter.add(-2);
+        assertEquals(40, counter.get());
+        assertEquals("40", counter.toString());
+        counter.reset();
+        assertEquals(0, counter.get());
+    }
+
+    /** Many more threads than cells: some of them share a cell, none of the increments is lost. */
+    @Test(timeout = 60000)
+    public void losesNothingWhenThreadsShareCells() throws InterruptedException {
+        final Counter counter = new Counter();
+        final CountDownLatch start = new CountDownLatch(1);
+        final int perThread = 100000;
+        Thread[] threads = new Thread[Runtime.getRuntime().availableProcessors() * 4 + 3];
+        for (int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j=0;j<perThread;j++) {
+                        if (j % 2 == 0) counter.increment(); else counter.add(2);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        assertEquals((long) threads.length * perThread / 2 * 3, counter.get());
+    }
+
+}
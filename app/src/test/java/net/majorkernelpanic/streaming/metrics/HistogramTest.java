@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    private static void checkIndex(long value) {
+        int index = Histogram.index(value);
+        long highest = Histogram.highestValue(index);
+        long lowest = index == 0 ? 0 : Histogram.highestValue(index - 1) + 1;
+        assertTrue(value + " in [" + lowest + ", " + highest + "]", lowest <= value && value <= highest);
+        // The histogram reports the highest value of the sub bucket
+        assertTrue(value + " reported as " + highest, highest - value <= value >> Histogram.SUB_BITS);
+    }
+
+    @Test
+    public void countsEachValueInASubBucketThatContainsIt() {
+        for (long value=0;value<1<<20;value++) {
+            checkIndex(value);
+            assertTrue(Histogram.index(value + 1) - Histogram.index(value) <= 1);
+        }
+        for (int bit=20;bit<40;bit++) {
+            for (long value : new long[] {(1L << bit) - 1, 1L << bit, (1L << bit) + 1, 3L << (bit - 1)}) checkIndex(value);
+        }
+        Random random = new Random(31);
+        for (int i=0;i<1000000;i++) checkIndex((random.nextLong() >>> 1) % (Histogram.MAX_VALUE + 1));
+        checkIndex(Histogram.MAX_VALUE);
+        assertEquals(Histogram.MAX_VALUE, Histogram.highestValue(Histogram.index(Histogram.MAX_VALUE)));
+    }
+
+    @Test
+    public void returnsPercentilesWithinThePrecision() {
+        Random random = new Random(37);
+        for (int iteration=0;iteration<50;iteration++) {
+            Histogram histogram = new Histogram();
+            long[] values = new long[1 + random.nextInt(5000)];
+            long scale = 1L << random.nextInt(36);
+            for (int i=0;i<values.length;i++) {
+                values[i] = (long) (random.nextDouble() * scale);
+                histogram.record(values[i]);
+            }
+            Arrays.sort(values);
+            for (double percentile : new double[] {0, 1, 10, 50, 90, 99, 99.9, 100}) {
+                long exact = values[Math.max(0, (int) Math.ceil(percentile / 100 * values.length) - 1)];
+                long value = histogram.getValueAtPercentile(percentile);
+                assertTrue(percentile + "%: " + value + " for " + exact, value >= exact && value - exact <= exact >> Histogram.SUB_BITS);
+            }
+            assertEquals(values.length, histogram.getCount());
+            assertEquals(values[0], histogram.getMin());
+            assertEquals(values[values.length - 1], histogram.getMax());
+            assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+        }
+    }
+
+    @Test
+    public void clampsTheValues() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMin());
+        assertEquals(0.0, histogram.getMean(), 0);
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(Histogram.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Histogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(Histogram.MAX_VALUE / 2.0, histogram.getMean(), 1);
+
+        StringBuilder json = new StringBuilder();
+        histogram.toJson(json);
+        assertTrue(json.toString(), json.toString().startsWith("{\"count\":2,\"min\":0,"));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test(timeout = 60000)
+    public void recordsFromSeveralThreads() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        final int perThread = 200000;
+        Thread[] threads = new Thread[4];
+        for (int i=0;i<threads.length;i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j=0;j<perThread;j++) histogram.record(offset + 1 + j % 1000);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(threads.length + 999, histogram.getMax());
+    }
+
+}
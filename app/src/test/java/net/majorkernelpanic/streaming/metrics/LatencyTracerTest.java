@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.metrics;
+
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_CAPTURE;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_CONVERTED;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_COUNT;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_ENCODED;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_PACKETIZED;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_QUEUED;
+import static net.majorkernelpanic.streaming.metrics.LatencyTracer.STAGE_SENT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class LatencyTracerTest {
+
+    private static final int DELAY = 3;
+
+    private static long[] counts(LatencyTracer tracer) {
+        long[] counts = new long[STAGE_COUNT + 1];
+        for (int i=0;i<STAGE_COUNT;i++) counts[i] = tracer.getStageLatency(i).getCount();
+        counts[STAGE_COUNT] = tracer.getTotalLatency().getCount();
+        return counts;
+    }
+
+    @Test
+    public void recordsTheTimeSpentInEachStage() throws InterruptedException {
+        LatencyTracer tracer = new LatencyTracer();
+        long frame = 123456;
+        tracer.begin(frame);
+        for (int stage=STAGE_CONVERTED;stage<STAGE_COUNT;stage++) {
+            Thread.sleep(DELAY);
+            tracer.mark(frame, stage);
+            // The stage is reached by each packet of the frame, only the first time counts
+            tracer.mark(frame, stage);
+        }
+        assertEquals(0, tracer.getStageLatency(STAGE_CAPTURE).getCount());
+        for (int stage=STAGE_CONVERTED;stage<STAGE_COUNT;stage++) {
+            Histogram latency = tracer.getStageLatency(stage);
+            assertEquals(1, latency.getCount());
+            assertTrue(LatencyTracer.getStageName(stage) + ": " + latency.getMin() + " us", latency.getMin() >= DELAY * 1000);
+        }
+        Histogram total = tracer.getTotalLatency();
+        assertEquals(1, total.getCount());
+        assertTrue(total.getMin() >= (STAGE_COUNT - 1) * DELAY * 1000);
+    }
+
+    @Test
+    public void measuresSkippedStagesFromThePreviousOneReached() throws InterruptedException {
+        LatencyTracer tracer = new LatencyTracer();
+        tracer.begin(1);
+        Thread.sleep(DELAY);
+        tracer.mark(1, STAGE_ENCODED);
+        Thread.sleep(DELAY);
+        tracer.mark(1, STAGE_SENT);
+        assertEquals(0, tracer.getStageLatency(STAGE_CONVERTED).getCount());
+        assertEquals(0, tracer.getStageLatency(STAGE_QUEUED).getCount());
+        assertEquals(0, tracer.getStageLatency(STAGE_PACKETIZED).getCount());
+        assertTrue(tracer.getStageLatency(STAGE_ENCODED).getMin() >= DELAY * 1000);
+        assertTrue(tracer.getStageLatency(STAGE_SENT).getMin() >= DELAY * 1000);
+        assertTrue(tracer.getStageLatency(STAGE_SENT).getMax() < tracer.getTotalLatency().getMin());
+    }
+
+    @Test
+    public void ignoresFramesNotInTheRing() {
+        // Rounded up to 8 frames
+        LatencyTracer tracer = new LatencyTracer(5);
+        tracer.mark(42, STAGE_ENCODED);
+        for (long frame=0;frame<9;frame++) tracer.begin(frame);
+        long[] before = counts(tracer);
+        // The first frame left the ring
+        tracer.mark(0, STAGE_ENCODED);
+        tracer.mark(42, STAGE_ENCODED);
+        assertEquals(before[STAGE_ENCODED], counts(tracer)[STAGE_ENCODED]);
+        tracer.mark(1, STAGE_ENCODED);
+        tracer.mark(8, STAGE_ENCODED);
+        assertEquals(2, tracer.getStageLatency(STAGE_ENCODED).getCount());
+
+        tracer.setEnabled(false);
+        assertFalse(tracer.isEnabled());
+        tracer.begin(100);
+        tracer.mark(2, STAGE_ENCODED);
+        tracer.setEnabled(true);
+        tracer.mark(100, STAGE_ENCODED);
+        assertEquals(2, tracer.getStageLatency(STAGE_ENCODED).getCount());
+
+        tracer.reset();
+        tracer.mark(1, STAGE_SENT);
+        assertEquals(0, tracer.getStageLatency(STAGE_ENCODED).getCount());
+        assertEquals(0, tracer.getTotalLatency().getCount());
+    }
+
+    /** The packetizer and the socket mark the same frames from their own threads. */
+    @Test(timeout = 60000)
+    public void recordsEachStageOnceWhenMarkedConcurrently() throws InterruptedException {
+        final LatencyTracer tracer = new LatencyTracer(1024);
+        final int frames = 1000;
+        for (long frame=0;frame<frames;frame++) tracer.begin(frame);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long frame=0;frame<frames;frame++) {
+                        for (int stage=STAGE_CONVERTED;stage<STAGE_COUNT;stage++) tracer.mark(frame, stage);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        long[] counts = counts(tracer);
+        for (int stage=STAGE_CONVERTED;stage<=STAGE_COUNT;stage++) assertEquals(frames, counts[stage]);
+    }
+
+    @Test
+    public void writesTheFramesInTheChromeTraceFormat() throws InterruptedException {
+        LatencyTracer tracer = new LatencyTracer(4);
+        tracer.begin(777);
+        Thread.sleep(1);
+        tracer.mark(777, STAGE_ENCODED);
+        tracer.mark(777, STAGE_SENT);
+        tracer.begin(888);
+
+        StringBuilder json = new StringBuilder();
+        assertTrue(tracer.writeChromeTrace(json, 9));
+        String trace = json.toString();
+        assertTrue(trace, trace.startsWith("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":9,\"tid\":1,"));
+        assertTrue(trace, trace.contains("{\"name\":\"encoder\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":9,\"tid\":3,\"ts\":"));
+        assertTrue(trace, trace.contains("{\"name\":\"socket_send\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":9,\"tid\":5,\"ts\":"));
+        assertTrue(trace, trace.matches(".*\"dur\":[0-9]+\\.[0-9]{3},\"args\":\\{\"frame\":777\\}\\}.*"));
+        // The frame that was only captured has no event yet
+        assertFalse(trace, trace.contains("888"));
+        // Five thread names and two stages
+        assertEquals(7, trace.split("\\},\\{").length);
+
+        json = new StringBuilder();
+        tracer.toJson(json);
+        assertTrue(json.toString(), json.toString().startsWith("{\"nv21_conversion\":{\"count\":0,"));
+        assertTrue(json.toString(), json.toString().contains("\"encoder\":{\"count\":1,"));
+        assertTrue(json.toString(), json.toString().contains("\"total\":{\"count\":1,"));
+    }
+
+}
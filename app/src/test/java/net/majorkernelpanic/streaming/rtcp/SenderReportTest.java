@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SenderReportTest {
+
+    private static final int SSRC = 0x11223344, OTHER_SSRC = 0x55667788;
+
+    /** Average size of the RTCP packets before any is received: an SR and the UDP/IP headers. */
+    private static final double INITIAL_SIZE = 28 + 28;
+
+    private static final double COMPENSATION = 2.71828 - 1.5;
+
+    private SenderReport mReport;
+    private final List<String> mEvents = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        mReport = new SenderReport();
+        mReport.setSSRC(SSRC);
+        mReport.setClockFrequency(90000);
+        mReport.setListener(new SenderReport.Listener() {
+            @Override
+            public void onReceiverReport(SenderReport report, ReceiverStatistics statistics) {
+                mEvents.add("report");
+            }
+        });
+        mReport.setNackListener(new SenderReport.NackListener() {
+            @Override
+            public void onNack(int pid, int blp) {
+                mEvents.add("nack " + pid + " " + blp);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mReport.close();
+    }
+
+    /** Starts an RTCP packet, its length is written by {@link #end(ByteBuffer, int)}. */
+    private static int begin(ByteBuffer packet, int count, int pt, int ssrc) {
+        int start = packet.position();
+        packet.put((byte) (0x80 | count)).put((byte) pt).putShort((short) 0).putInt(ssrc);
+        return start;
+    }
+
+    private static void end(ByteBuffer packet, int start) {
+        packet.putShort(start + 2, (short) ((packet.position() - start) / 4 - 1));
+    }
+
+    private static void putReportBlock(ByteBuffer packet, int ssrc, int fractionLost, int cumulativeLost, int highest, int jitter) {
+        packet.putInt(ssrc).putInt(fractionLost << 24 | (cumulativeLost & 0xFFFFFF)).putInt(highest).putInt(jitter).putInt(0).putInt(0);
+    }
+
+    private boolean receive(ByteBuffer packet) {
+        return mReport.receive(packet.array(), 0, packet.position());
+    }
+
+    @Test
+    public void parsesReceiverReports() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 2, 201, OTHER_SSRC);
+        putReportBlock(packet, OTHER_SSRC, 10, 10, 10, 10);
+        putReportBlock(packet, SSRC, 64, -3, 0x00010005, 900);
+        end(packet, start);
+        // An SDES follows in the compound packet
+        start = begin(packet, 1, 202, OTHER_SSRC);
+        packet.put((byte) 1).put((byte) 2).put((byte) 'a').put((byte) 'b');
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        ReceiverStatistics statistics = mReport.getReceiverStatistics();
+        assertEquals(1, statistics.getReports());
+        assertEquals(0.25f, statistics.getFractionLost(), 0);
+        assertEquals(-3, statistics.getCumulativeLost());
+        assertEquals(0x00010005, statistics.getHighestSequence());
+        assertEquals(900, statistics.getJitter());
+        assertEquals(10, statistics.getJitterMs());
+        // The last sender report is unknown
+        assertEquals(-1, statistics.getRoundTripTime());
+        assertEquals("[report]", mEvents.toString());
+    }
+
+    @Test
+    public void parsesTheReportBlocksOfSenderReports() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 1, 200, OTHER_SSRC);
+        // The sender info: NTP and RTP timestamps, packet and octet counts
+        packet.putLong(-1).putInt(-1).putInt(-1).putInt(-1);
+        putReportBlock(packet, SSRC, 128, 1000, 70000, 45);
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        ReceiverStatistics statistics = mReport.getReceiverStatistics();
+        assertEquals(0.5f, statistics.getFractionLost(), 0);
+        assertEquals(1000, statistics.getCumulativeLost());
+        assertEquals(70000, statistics.getHighestSequence());
+        assertEquals(45, statistics.getJitter());
+        assertEquals("[report]", mEvents.toString());
+    }
+
+    @Test
+    public void ignoresReportsAboutOtherStreams() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 1, 201, OTHER_SSRC);
+        putReportBlock(packet, OTHER_SSRC, 64, 1, 1, 1);
+        end(packet, start);
+        start = begin(packet, 0, 205, OTHER_SSRC);
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        assertEquals(0, mReport.getReceiverStatistics().getReports());
+        assertEquals("[]", mEvents.toString());
+    }
+
+    @Test
+    public void rejectsInvalidPackets() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 1, 201, OTHER_SSRC);
+        putReportBlock(packet, SSRC, 64, 1, 1, 1);
+        end(packet, start);
+
+        // Version 1
+        packet.put(0, (byte) 0x41);
+        assertFalse(receive(packet));
+        // Longer than the datagram
+        packet.put(0, (byte) 0x81);
+        packet.putShort(2, (short) 100);
+        assertFalse(receive(packet));
+        assertEquals(0, mReport.getReceiverStatistics().getReports());
+        // A truncated report block is ignored
+        packet.putShort(2, (short) 1);
+        assertTrue(mReport.receive(packet.array(), 0, 8));
+        assertEquals(0, mReport.getReceiverStatistics().getReports());
+    }
+
+    @Test
+    public void parsesExtendedReports() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 0, 207, OTHER_SSRC);
+        // A block of an unknown type is skipped
+        packet.put((byte) 42).put((byte) 0).putShort((short) 1).putInt(0);
+        // Statistics Summary, L and J flags, on the sequence numbers [65530, 4[
+        packet.put((byte) 6).put((byte) 0xA0).putShort((short) 9).putInt(SSRC);
+        packet.putShort((short) 65530).putShort((short) 4).putInt(5).putInt(0);
+        packet.putInt(0).putInt(0).putInt(1800).putInt(0);
+        packet.put((byte) 0).put((byte) 0).putShort((short) 0);
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        ReceiverStatistics statistics = mReport.getReceiverStatistics();
+        assertEquals(1, statistics.getReports());
+        // 5 packets lost out of 10
+        assertEquals(0.5f, statistics.getFractionLost(), 0);
+        assertEquals(1800, statistics.getJitter());
+        assertEquals(20, statistics.getJitterMs());
+
+        packet = ByteBuffer.allocate(256);
+        start = begin(packet, 0, 207, OTHER_SSRC);
+        // VoIP Metrics: a loss rate of 32/256 and a round trip delay of 120 ms
+        packet.put((byte) 7).put((byte) 0).putShort((short) 8).putInt(SSRC);
+        packet.put((byte) 32).put((byte) 0).put((byte) 0).put((byte) 0).putInt(0);
+        packet.putShort((short) 120).putShort((short) 0);
+        for (int i=0;i<4;i++) packet.putInt(0);
+        // About another stream
+        packet.put((byte) 7).put((byte) 0).putShort((short) 8).putInt(OTHER_SSRC);
+        packet.put((byte) 255).put((byte) 0).put((byte) 0).put((byte) 0).putInt(0);
+        packet.putShort((short) 1).putShort((short) 0);
+        for (int i=0;i<4;i++) packet.putInt(0);
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        assertEquals(2, statistics.getReports());
+        assertEquals(0.125f, statistics.getFractionLost(), 0);
+        assertEquals(120, statistics.getRoundTripTime());
+        assertEquals("[report, report]", mEvents.toString());
+    }
+
+    @Test
+    public void parsesGenericNacks() {
+        ByteBuffer packet = ByteBuffer.allocate(256);
+        int start = begin(packet, 1, 205, OTHER_SSRC);
+        packet.putInt(SSRC);
+        packet.putShort((short) 65535).putShort((short) 0x8001);
+        packet.putShort((short) 12).putShort((short) 0);
+        end(packet, start);
+        // About another stream
+        start = begin(packet, 1, 205, OTHER_SSRC);
+        packet.putInt(OTHER_SSRC);
+        packet.putShort((short) 5).putShort((short) 0);
+        end(packet, start);
+        // Another feedback message
+        start = begin(packet, 3, 205, OTHER_SSRC);
+        packet.putInt(SSRC);
+        packet.putShort((short) 6).putShort((short) 0);
+        end(packet, start);
+
+        assertTrue(receive(packet));
+        assertEquals("[nack 65535 32769, nack 12 0]", mEvents.toString());
+        assertEquals(0, mReport.getReceiverStatistics().getReports());
+    }
+
+    /** The bounds of the randomized interval, (0.5 to 1.5) * td / (e - 1.5). */
+    private void assertInterval(double td, boolean initial) {
+        double sum = 0, min = Double.MAX_VALUE, max = 0;
+        int count = 20000;
+        for (int i=0;i<count;i++) {
+            long interval = mReport.nextInterval(initial);
+            sum += interval;
+            min = Math.min(min, interval);
+            max = Math.max(max, interval);
+        }
+        assertTrue(min + " < " + td, min >= Math.floor(td * 0.5 / COMPENSATION));
+        assertTrue(max + " > " + td, max <= td * 1.5 / COMPENSATION);
+        assertTrue(max - min > td * 0.9 / COMPENSATION);
+        assertEquals(td / COMPENSATION, sum / count, td * 0.02);
+    }
+
+    @Test
+    public void randomizesTheIntervalAroundTheMinimum() {
+        assertInterval(3000, false);
+        // The first report is sent sooner
+        assertInterval(1500, true);
+        mReport.setInterval(10000);
+        assertInterval(10000, false);
+        // A fast link does not shorten the minimum interval
+        mReport.setBandwidth(10000000);
+        assertInterval(10000, false);
+        mReport.setInterval(0);
+        assertEquals(1000, mReport.nextInterval(false));
+    }
+
+    @Test
+    public void growsTheIntervalWithTheReceiversOnSlowLinks() {
+        // 5% of 800 bit/s for RTCP: 5 bytes per second
+        double bandwidth = 800 / 8 * 0.05, size = INITIAL_SIZE;
+        mReport.setBandwidth(800);
+        // With a single receiver, the sender is not below 25% of the members
+        assertInterval(2 * size / bandwidth * 1000, false);
+
+        // Three more receivers, each RR is counted in the average size of the packets
+        for (int i=1;i<=3;i++) {
+            ByteBuffer packet = ByteBuffer.allocate(64);
+            int start = begin(packet, 0, 201, OTHER_SSRC + i);
+            end(packet, start);
+            assertTrue(receive(packet));
+            size = (8 + 28) / 16.0 + size * 15 / 16;
+        }
+        // The sender gets 25% of the bandwidth of RTCP
+        assertInterval(size / (bandwidth * 0.25) * 1000, false);
+    }
+
+}
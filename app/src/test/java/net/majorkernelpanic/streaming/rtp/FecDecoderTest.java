@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FecDecoderTest {
+
+    private static final int SSRC = 0x12345678;
+
+    /** A media packet, and the parity packet sent right after it if it completed a group. */
+    private static class Packet {
+        byte[] data;
+        boolean marker;
+        byte[] parity;
+    }
+
+    /** Frames of 1 to 12 packets with random payloads, the sequence numbers start at firstSeq. */
+    private static List<Packet> randomPackets(Random random, int count, int firstSeq) {
+        List<Packet> packets = new ArrayList<Packet>();
+        int left = 0, timestamp = random.nextInt();
+        for (int i=0;i<count;i++) {
+            if (left == 0) {
+                left = 1 + random.nextInt(12);
+                timestamp += 3000;
+            }
+            Packet packet = new Packet();
+            packet.marker = --left == 0;
+            packet.data = new byte[RtpSocket.RTP_HEADER_LENGTH + random.nextInt(RtpSocket.MTU - RtpSocket.RTP_HEADER_LENGTH + 1)];
+            random.nextBytes(packet.data);
+            ByteBuffer header = ByteBuffer.wrap(packet.data);
+            header.put(0, (byte) 0x80);
+            header.put(1, (byte) (packet.marker ? 0x80 | 96 : 96));
+            header.putShort(2, (short) (firstSeq + i));
+            header.putInt(4, timestamp);
+            header.putInt(8, SSRC);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /** Runs the packets through the encoder, half of them with their payload in a slice, as the RtpSocket sends them. */
+    private static int protect(Random random, List<Packet> packets, int groupSize) {
+        FecEncoder encoder = new FecEncoder(127, 0xCAFE);
+        encoder.setGroupSize(groupSize);
+        int groups = 0;
+        for (Packet packet : packets) {
+            int length;
+            if (random.nextBoolean()) {
+                int headerLength = Math.min(packet.data.length, RtpSocket.RTP_HEADER_LENGTH + 2);
+                ByteBuffer payload = ByteBuffer.allocate(packet.data.length + 10);
+                payload.position(7);
+                payload.put(packet.data, headerLength, packet.data.length - headerLength);
+                payload.limit(payload.position());
+                payload.position(7);
+                length = encoder.add(packet.data, headerLength, payload, packet.marker);
+                assertEquals(7, payload.position());
+            } else {
+                length = encoder.add(packet.data, packet.data.length, null, packet.marker);
+            }
+            if (length > 0) {
+                packet.parity = Arrays.copyOf(encoder.getPacket(), length);
+                groups++;
+            }
+        }
+        return groups;
+    }
+
+    private static int base(byte[] parity) {
+        return ByteBuffer.wrap(parity).getShort(14) & 0xFFFF;
+    }
+
+    private static int mask(byte[] parity) {
+        return ByteBuffer.wrap(parity).getShort(24) & 0xFFFF;
+    }
+
+    /** Sequence numbers of the packets protected by a parity packet. */
+    private static List<Integer> protectedPackets(byte[] parity) {
+        List<Integer> seqs = new ArrayList<Integer>();
+        for (int i=0;i<16;i++) {
+            if ((mask(parity) & (0x8000 >>> i)) != 0) seqs.add((base(parity) + i) & 0xFFFF);
+        }
+        return seqs;
+    }
+
+    private static int seq(Packet packet) {
+        return ByteBuffer.wrap(packet.data).getShort(2) & 0xFFFF;
+    }
+
+    /**
+     * Drops one packet per group and checks that each one is rebuilt from the parity packet.
+     * @return The number of groups across the wrap of the sequence numbers
+     */
+    private static int recoverOnePacketPerGroup(Random random, int count, int firstSeq, int groupSize) {
+        List<Packet> packets = randomPackets(random, count, firstSeq);
+        int groups = protect(random, packets, groupSize), recovered = 0, shortGroups = 0, wrapped = 0;
+        FecDecoder decoder = new FecDecoder(64);
+        byte[] out = new byte[RtpSocket.MTU];
+
+        int groupStart = 0;
+        for (int i=0;i<packets.size();i++) {
+            byte[] parity = packets.get(i).parity;
+            if (parity == null) continue;
+            List<Integer> seqs = protectedPackets(parity);
+            assertEquals(i - groupStart + 1, seqs.size());
+            assertEquals(seq(packets.get(groupStart)), base(parity));
+            if (seqs.size() < groupSize) {
+                // Closed early by the end of a frame
+                assertTrue(packets.get(i).marker);
+                assertTrue(seqs.size() >= (groupSize+1)/2);
+                shortGroups++;
+            }
+            if (seqs.get(seqs.size()-1) < seqs.get(0)) wrapped++;
+
+            if (groupStart == 0) {
+                // The decoder learns the SSRC of the stream from the media packets, nothing is lost in the first group
+                for (int j=0;j<=i;j++) decoder.addMediaPacket(packets.get(j).data, 0, packets.get(j).data.length);
+                assertEquals(-1, decoder.addFecPacket(parity, 0, parity.length, out));
+                groupStart = i + 1;
+                continue;
+            }
+
+            Packet lost = packets.get(groupStart + random.nextInt(seqs.size()));
+            for (int j=groupStart;j<=i;j++) {
+                Packet packet = packets.get(j);
+                if (packet != lost) decoder.addMediaPacket(packet.data, 0, packet.data.length);
+            }
+            int offset = random.nextInt(5);
+            byte[] received = new byte[offset + parity.length];
+            System.arraycopy(parity, 0, received, offset, parity.length);
+            int length = decoder.addFecPacket(received, offset, parity.length, out);
+
+            assertEquals("Packet " + seq(lost), lost.data.length, length);
+            assertArrayEquals("Packet " + seq(lost), lost.data, Arrays.copyOf(out, length));
+            recovered++;
+            groupStart = i + 1;
+        }
+        assertEquals(groups - 1, recovered);
+        assertEquals(recovered, decoder.getRecoveredPackets());
+        assertEquals(0, decoder.getUnrecoverableGroups());
+        assertTrue(groups >= count / groupSize);
+        if (groupSize > 1) assertTrue(shortGroups > 0);
+        return wrapped;
+    }
+
+    @Test
+    public void recoversOnePacketPerGroup() {
+        Random random = new Random(17);
+        for (int groupSize : new int[] {1, 2, 5, 10, 16}) {
+            recoverOnePacketPerGroup(random, 2000, random.nextInt(0x8000), groupSize);
+        }
+    }
+
+    @Test
+    public void recoversPacketsAcrossTheSequenceWrap() {
+        Random random = new Random(19);
+        int wrapped = 0;
+        for (int firstSeq=0xFFFF-40;firstSeq<=0xFFFF;firstSeq++) {
+            wrapped += recoverOnePacketPerGroup(random, 200, firstSeq, 10);
+        }
+        assertTrue(wrapped > 30);
+    }
+
+    @Test
+    public void rebuildsNothingWithoutOrWithTooManyLosses() {
+        Random random = new Random(23);
+        List<Packet> packets = randomPackets(random, 200, 0xFFF0);
+        protect(random, packets, 10);
+        FecDecoder decoder = new FecDecoder(64);
+        byte[] out = new byte[RtpSocket.MTU];
+        int groupStart = 0, complete = 0, unrecoverable = 0;
+        for (int i=0;i<packets.size();i++) {
+            byte[] parity = packets.get(i).parity;
+            if (parity == null) continue;
+            // Every other group loses two packets, when it has two
+            boolean twoLost = complete % 2 == 0 && i > groupStart;
+            for (int j=groupStart;j<=i;j++) {
+                if (twoLost && j < groupStart + 2) continue;
+                decoder.addMediaPacket(packets.get(j).data, 0, packets.get(j).data.length);
+            }
+            assertEquals(-1, decoder.addFecPacket(parity, 0, parity.length, out));
+            if (twoLost) unrecoverable++;
+            complete++;
+            groupStart = i + 1;
+        }
+        assertTrue(unrecoverable > 0);
+        assertEquals(unrecoverable, decoder.getUnrecoverableGroups());
+        assertEquals(0, decoder.getRecoveredPackets());
+        // A truncated parity packet is ignored
+        assertEquals(-1, decoder.addFecPacket(new byte[20], 0, 20, out));
+    }
+
+    @Test
+    public void rebuildsNothingBeforeTheFirstMediaPacket() {
+        Random random = new Random(29);
+        List<Packet> packets = randomPackets(random, 1, 0);
+        protect(random, packets, 1);
+        FecDecoder decoder = new FecDecoder(64);
+        byte[] parity = packets.get(0).parity, out = new byte[RtpSocket.MTU];
+        // The SSRC of the lost packet is not known yet
+        assertEquals(-1, decoder.addFecPacket(parity, 0, parity.length, out));
+        assertEquals(0, decoder.getRecoveredPackets());
+    }
+
+}
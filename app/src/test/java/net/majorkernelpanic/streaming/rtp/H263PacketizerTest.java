@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class H263PacketizerTest {
+
+    /** Finds the start codes one byte at a time. */
+    private static int naiveFind(byte[] buffer, int start, int end) {
+        for (int i=start;i+2<end;i++) {
+            if (buffer[i] == 0 && buffer[i+1] == 0 && (buffer[i+2]&0xFC) == 0x80) return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void findsTheSameStartCodesAsANaiveScan() {
+        Random random = new Random(11);
+        byte[] values = {0, 0, 0, (byte) 0x80, (byte) 0x81, (byte) 0x83, (byte) 0x84, 0x7F, 1};
+        for (int iteration=0;iteration<2000;iteration++) {
+            byte[] buffer = new byte[random.nextInt(64)];
+            for (int i=0;i<buffer.length;i++) buffer[i] = values[random.nextInt(values.length)];
+            for (int start=0;start<=buffer.length;start++) {
+                for (int end=start;end<=buffer.length;end++) {
+                    assertEquals(naiveFind(buffer, start, end), H263Packetizer.findPictureStartCode(buffer, start, end));
+                }
+            }
+        }
+    }
+
+    /** Returns the stream in chunks of random sizes, so that start codes are split between two reads. */
+    private static class ChoppedInputStream extends InputStream {
+        private final byte[] mData;
+        private final Random mRandom;
+        private int mOffset = 0;
+
+        ChoppedInputStream(byte[] data, Random random) {
+            mData = data;
+            mRandom = random;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mOffset == mData.length) return -1;
+            int chunk = mRandom.nextBoolean() ? 1 + mRandom.nextInt(3) : 1 + mRandom.nextInt(20000);
+            length = Math.min(Math.min(length, chunk), mData.length - mOffset);
+            System.arraycopy(mData, mOffset, buffer, offset, length);
+            mOffset += length;
+            return length;
+        }
+    }
+
+    /**
+     * Keeps the payloads instead of sending them. Nothing is committed to the socket,
+     * so the same buffer of the FIFO is handed out for every packet.
+     */
+    private static class CapturingPacketizer extends H263Packetizer {
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        final List<Integer> headers = new ArrayList<Integer>();
+        final List<Boolean> markers = new ArrayList<Boolean>();
+
+        @Override
+        protected void send(int length, ByteBuffer payload, int offset, int count) {
+            byte[] copy = new byte[count];
+            ByteBuffer view = payload.duplicate();
+            view.position(offset);
+            view.get(copy);
+            payloads.add(copy);
+            headers.add(((buffer[rtphl] & 0xFF) << 8) | (buffer[rtphl+1] & 0xFF));
+            markers.add((buffer[1] & 0x80) != 0);
+        }
+    }
+
+    /** Frames of random sizes, some larger than the carry-over buffer, each starting with a picture start code. */
+    private static List<byte[]> randomFrames(Random random) {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i=0;i<60;i++) {
+            int length = 3 + (random.nextInt(8) == 0 ? random.nextInt(150000) : random.nextInt(4000));
+            byte[] frame = new byte[length];
+            frame[2] = (byte) (0x80 | random.nextInt(4));
+            for (int j=3;j<length;j++) {
+                // Single zero bytes, and zero bytes right before the start code of the next frame
+                frame[j] = (byte) (frame[j-1] != 0 && random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(255));
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    @Test(timeout = 60000)
+    public void sendsEveryFrameReadAcrossTheCarryOverBuffer() throws IOException {
+        Random random = new Random(13);
+        for (int iteration=0;iteration<10;iteration++) {
+            List<byte[]> frames = randomFrames(random);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (byte[] frame : frames) stream.write(frame);
+
+            CapturingPacketizer packetizer = new CapturingPacketizer();
+            packetizer.setInputStream(new ChoppedInputStream(stream.toByteArray(), random));
+            // Returns at the end of the stream
+            packetizer.run();
+
+            // The last frame is not sent, its end was never found
+            int packet = 0;
+            for (int i=0;i<frames.size()-1;i++) {
+                byte[] frame = frames.get(i);
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                boolean first = true, marker = false;
+                while (!marker) {
+                    assertTrue("Frame " + i + " is missing", packet < packetizer.payloads.size());
+                    byte[] payload = packetizer.payloads.get(packet);
+                    assertTrue(payload.length > 0 && payload.length <= RtpSocket.MTU-28-RtpSocket.RTP_HEADER_LENGTH-2);
+                    assertEquals(first ? 0x0400 : 0, (int) packetizer.headers.get(packet));
+                    marker = packetizer.markers.get(packet);
+                    received.write(payload);
+                    first = false;
+                    packet++;
+                }
+                // The two zero bytes of the start code are replaced by the P bit
+                byte[] expected = new byte[frame.length-2];
+                System.arraycopy(frame, 2, expected, 0, expected.length);
+                assertArrayEquals("Frame " + i, expected, received.toByteArray());
+            }
+            // Full fragments of the last frame may have been sent, but none is marked
+            for (;packet<packetizer.payloads.size();packet++) {
+                assertFalse(packetizer.markers.get(packet));
+            }
+        }
+    }
+
+}
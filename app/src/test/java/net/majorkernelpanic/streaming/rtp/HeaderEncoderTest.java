@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HeaderEncoderTest {
+
+    private static final long[] CLOCKS = {8000, 11025, 16000, 22050, 44100, 48000, 90000};
+
+    /** The number of ticks of the clock in ns, rounded down, without any precision loss. */
+    private static long exact(long ns, long clock) {
+        return BigInteger.valueOf(ns).multiply(BigInteger.valueOf(clock)).divide(BigInteger.valueOf(1000000000L)).longValue();
+    }
+
+    @Test
+    public void convertsTimestampsToTheClockOfTheStream() {
+        Random random = new Random(5);
+        RtpSocket.HeaderEncoder encoder = new RtpSocket.HeaderEncoder();
+        for (long clock : CLOCKS) {
+            encoder.setClockFrequency(clock);
+            assertEquals(clock, encoder.getClockFrequency());
+            assertEquals(0, encoder.toRtpTimestamp(0));
+            for (int i=0;i<100000;i++) {
+                // Up to a year of uptime
+                long ns = (random.nextLong() >>> 1) % 31536000000000000L;
+                long error = exact(ns, clock) - encoder.toRtpTimestamp(ns);
+                // The factor is rounded down, it loses less than a tick every 2^40 ns (18 minutes)
+                assertTrue(clock + " Hz, " + ns + " ns: " + error, error >= 0 && error <= 1 + (ns >> 40));
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheRateOfTheClock() {
+        RtpSocket.HeaderEncoder encoder = new RtpSocket.HeaderEncoder();
+        for (long clock : CLOCKS) {
+            encoder.setClockFrequency(clock);
+            long start = 123456789012345L, previous = encoder.toRtpTimestamp(start);
+            for (int second=1;second<=60;second++) {
+                long ticks = encoder.toRtpTimestamp(start + second * 1000000000L);
+                assertTrue(ticks >= previous);
+                assertTrue(clock + " Hz", Math.abs(ticks - encoder.toRtpTimestamp(start) - second * clock) <= 1);
+                previous = ticks;
+            }
+        }
+    }
+
+    /** The conversion used before the factor was exact for 90 kHz, the factor drifts from it by less than a tick every 2^40 ns. */
+    @Test
+    public void matchesTheOldConversionAt90kHz() {
+        Random random = new Random(9);
+        RtpSocket.HeaderEncoder encoder = new RtpSocket.HeaderEncoder();
+        encoder.setClockFrequency(90000);
+        for (int i=0;i<100000;i++) {
+            long ns = (random.nextLong() >>> 1) % 86400000000000L;
+            long old = (ns / 100L) * (90000 / 1000L) / 10000L;
+            long error = old - encoder.toRtpTimestamp(ns);
+            assertTrue(ns + " ns: " + error, error >= -1 && error <= 1 + (ns >> 40));
+        }
+    }
+
+    @Test
+    public void writesTheFieldsInTheHeader() {
+        RtpSocket.HeaderEncoder encoder = new RtpSocket.HeaderEncoder();
+        encoder.setClockFrequency(90000);
+        for (ByteBuffer header : new ByteBuffer[] {ByteBuffer.allocate(RtpSocket.MTU), ByteBuffer.allocateDirect(RtpSocket.MTU)}) {
+            header.put(0, (byte) 0x80);
+            header.put(1, (byte) 96);
+            header.put(12, (byte) 0x55);
+            header.position(7);
+
+            encoder.setSequence(header, 0x1ABCD);
+            encoder.setSSRC(header, 0xCAFEBABE);
+            encoder.setTimestamp(header, 1000000000L);
+            long first = encoder.getTimestamp(header);
+            encoder.setTimestamp(header, 3000000000L);
+            long second = encoder.getTimestamp(header);
+
+            // Only the absolute fields are written, the position and the rest of the packet are left alone
+            assertEquals(7, header.position());
+            assertEquals(0x80, header.get(0) & 0xFF);
+            assertEquals(96, header.get(1));
+            assertEquals(0xAB, header.get(2) & 0xFF);
+            assertEquals(0xCD, header.get(3) & 0xFF);
+            assertEquals(0xCAFEBABEL, header.getInt(8) & 0xFFFFFFFFL);
+            assertEquals(0x55, header.get(12));
+
+            // The random offset of the encoder is in both timestamps
+            assertTrue(first >= 0 && first <= 0xFFFFFFFFL);
+            assertEquals(180000, (second - first) & 0xFFFFFFFFL);
+            assertEquals(second, ((header.get(4) & 0xFFL) << 24) | ((header.get(5) & 0xFFL) << 16) | ((header.get(6) & 0xFFL) << 8) | (header.get(7) & 0xFFL));
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InterleavedWriterTest {
+
+    /** Queues frames on a loopback connection and checks that the peer reads exactly the expected bytes. */
+    private static void check(int[] payloads, boolean rtpHeaders, int readDelay) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel peer = server.accept();
+        InterleavedWriter writer = new InterleavedWriter(client);
+        writer.start();
+
+        final CountDownLatch written = new CountDownLatch(payloads.length);
+        InterleavedWriter.Listener listener = new InterleavedWriter.Listener() {
+            @Override
+            public void onFrameWritten(InterleavedWriter.Frame frame) {
+                written.countDown();
+            }
+        };
+
+        Random random = new Random(payloads.length);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i=0;i<payloads.length;i++) {
+            byte[] header = new byte[rtpHeaders ? 12 : 0], payload = new byte[payloads[i]];
+            random.nextBytes(header);
+            random.nextBytes(payload);
+            expected.write('$');
+            expected.write(i & 0xFF);
+            expected.write((header.length + payload.length) >> 8);
+            expected.write((header.length + payload.length) & 0xFF);
+            expected.write(header);
+            expected.write(payload);
+            InterleavedWriter.Frame frame = new InterleavedWriter.Frame(listener, i);
+            frame.set(i & 0xFF, rtpHeaders ? ByteBuffer.wrap(header) : null, ByteBuffer.wrap(payload));
+            writer.put(frame);
+        }
+
+        if (readDelay > 0) Thread.sleep(readDelay);
+        byte[] received = new byte[expected.size()];
+        new DataInputStream(peer.socket().getInputStream()).readFully(received);
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertTrue(Arrays.equals(expected.toByteArray(), received));
+
+        writer.close();
+        peer.close();
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void writesFramesInOrder() throws Exception {
+        check(new int[] {100, 1300, 5, 700, 1300}, true, 0);
+    }
+
+    /** The last payload of a batch may be empty, the other buffers of the vector must still be written. */
+    @Test(timeout = 10000)
+    public void writesBatchesEndingWithAnEmptyPayload() throws Exception {
+        check(new int[] {1300, 1300, 0}, true, 0);
+        check(new int[] {0}, true, 0);
+        check(new int[] {20, 0}, false, 0);
+    }
+
+    /** The socket accepts a batch in several writes when the peer reads slowly. */
+    @Test(timeout = 10000)
+    public void writesBatchesPartially() throws Exception {
+        int[] payloads = new int[2000];
+        Arrays.fill(payloads, 1300);
+        for (int i=63;i<payloads.length;i+=64) payloads[i] = 0;
+        check(payloads, true, 200);
+    }
+
+    @Test(timeout = 10000)
+    public void dropsFramesOnceClosed() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        InterleavedWriter writer = new InterleavedWriter(client);
+        writer.close();
+        final int[] written = new int[1];
+        InterleavedWriter.Frame frame = new InterleavedWriter.Frame(new InterleavedWriter.Listener() {
+            @Override
+            public void onFrameWritten(InterleavedWriter.Frame frame) {
+                written[0]++;
+            }
+        });
+        frame.set(0, ByteBuffer.wrap(new byte[10]));
+        writer.put(frame);
+        assertEquals(1, written[0]);
+        assertTrue(writer.isClosed());
+        server.close();
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    /** The queue between a packetizer and the thread of its {@link RtpSocket}. */
+    private interface Fifo {
+        int claim() throws InterruptedException;
+        void publish();
+        int poll() throws InterruptedException;
+        void release();
+    }
+
+    private static class RingFifo implements Fifo {
+        private final RingBuffer mRing;
+
+        RingFifo(int capacity) {
+            mRing = new RingBuffer(capacity);
+        }
+
+        public int claim() throws InterruptedException {
+            return mRing.claim();
+        }
+
+        public void publish() {
+            mRing.publish();
+        }
+
+        public int poll() throws InterruptedException {
+            return mRing.poll(4, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            mRing.release();
+        }
+    }
+
+    /** The FIFO the RtpSocket used before the ring: two semaphores and two indices. */
+    private static class SemaphoreFifo implements Fifo {
+        private final int mCapacity;
+        private final Semaphore mRequested, mCommitted;
+        private int mIn, mOut;
+
+        SemaphoreFifo(int capacity) {
+            mCapacity = capacity;
+            mRequested = new Semaphore(capacity);
+            mCommitted = new Semaphore(0);
+        }
+
+        public int claim() throws InterruptedException {
+            mRequested.acquire();
+            return mIn;
+        }
+
+        public void publish() {
+            if (++mIn >= mCapacity) mIn = 0;
+            mCommitted.release();
+        }
+
+        public int poll() throws InterruptedException {
+            if (!mCommitted.tryAcquire(4, TimeUnit.SECONDS)) return -1;
+            return mOut;
+        }
+
+        public void release() {
+            if (++mOut >= mCapacity) mOut = 0;
+            mRequested.release();
+        }
+    }
+
+    /**
+     * A producer thread publishes count packets while the calling thread consumes them,
+     * checks that they come out in order and returns the latencies between publish and poll, in ns.
+     */
+    private static long[] race(final Fifo fifo, int capacity, final int count) throws Exception {
+        final long[] sequence = new long[capacity], published = new long[capacity];
+        long[] latencies = new long[count];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i=0;i<count;i++) {
+                        int slot = fifo.claim();
+                        sequence[slot] = i;
+                        published[slot] = System.nanoTime();
+                        fifo.publish();
+                    }
+                } catch (InterruptedException ignore) {}
+            }
+        };
+        producer.start();
+        try {
+            for (int i=0;i<count;i++) {
+                int slot = fifo.poll();
+                assertTrue("Packet " + i + " never came", slot >= 0);
+                latencies[i] = System.nanoTime() - published[slot];
+                assertEquals(i, sequence[slot]);
+                fifo.release();
+            }
+        } finally {
+            producer.interrupt();
+            producer.join();
+        }
+        return latencies;
+    }
+
+    private static String measure(Fifo fifo, int capacity, int count) throws Exception {
+        long start = System.nanoTime();
+        long[] latencies = race(fifo, capacity, count);
+        long duration = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return String.format("%d packets/s, p50 %d us, p99 %d us", count * 1000000000L / duration,
+                latencies[count / 2] / 1000, latencies[count - count / 100] / 1000);
+    }
+
+    @Test(timeout = 60000)
+    public void keepsTheOrderUnderAProducerConsumerRace() throws Exception {
+        for (int capacity : new int[] {1, 2, 7, 300}) {
+            race(new RingFifo(capacity), capacity, 200000);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void blocksTheProducerWhenFull() throws Exception {
+        final RingBuffer ring = new RingBuffer(4);
+        for (int i=0;i<4;i++) {
+            assertEquals(i, ring.claim());
+            ring.publish();
+        }
+        assertTrue(ring.isFull());
+        assertEquals(4, ring.size());
+
+        final int[] slot = {-1};
+        final CountDownLatch claimed = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    slot[0] = ring.claim();
+                    claimed.countDown();
+                } catch (InterruptedException ignore) {}
+            }
+        };
+        producer.start();
+        assertFalse(claimed.await(50, TimeUnit.MILLISECONDS));
+
+        assertEquals(4, ring.available());
+        assertEquals(2, ring.peek(2));
+        assertEquals(0, ring.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, ring.outstanding());
+        ring.release();
+        assertTrue(claimed.await(5, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(0, slot[0]);
+        assertEquals(3, ring.size());
+        assertFalse(ring.isFull());
+    }
+
+    @Test(timeout = 10000)
+    public void pollTimesOut() throws Exception {
+        RingBuffer ring = new RingBuffer(8);
+        long start = System.nanoTime();
+        assertEquals(-1, ring.poll(20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        ring.claim();
+        ring.publish();
+        assertEquals(0, ring.poll(20, TimeUnit.MILLISECONDS));
+        assertEquals(-1, ring.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, ring.polled());
+        ring.release();
+        ring.awaitEmpty();
+        assertEquals(0, ring.size());
+    }
+
+    /** Prints the throughput and the latency of the ring and of the semaphores it replaced. */
+    @Test(timeout = 120000)
+    public void comparesWithTheSemaphoreFifo() throws Exception {
+        int capacity = 300, count = 1000000;
+        for (int run=0;run<2;run++) {
+            String ring = measure(new RingFifo(capacity), capacity, count);
+            String semaphores = measure(new SemaphoreFifo(capacity), capacity, count);
+            if (run > 0) {
+                System.out.println("RingBuffer:    " + ring);
+                System.out.println("SemaphoreFifo: " + semaphores);
+            }
+        }
+    }
+
+}
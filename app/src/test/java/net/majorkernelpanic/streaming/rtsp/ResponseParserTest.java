@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ResponseParserTest {
+
+    private static byte[] bytes(String string) throws IOException {
+        return string.getBytes("ISO-8859-1");
+    }
+
+    /** Feeds the whole message at once and returns the parser. */
+    private static ResponseParser parse(String message) throws IOException {
+        ResponseParser parser = new ResponseParser(64);
+        byte[] data = bytes(message);
+        parser.feed(data, 0, data.length);
+        return parser;
+    }
+
+    @Test
+    public void parsesTheStatusAndTheHeaders() throws IOException {
+        ResponseParser parser = parse("RTSP/1.0 401 Unauthorized\r\nCSeq: 3\r\nWWW-Authenticate:  Digest realm=\"x\" \r\nX-Folded: a\r\n b\r\n\r\n");
+        assertEquals(ResponseParser.RESPONSE, parser.next());
+        RtspClient.Response response = parser.getResponse();
+        assertEquals(401, response.status);
+        assertEquals(3, response.getHeaderLong("cseq", -1));
+        assertEquals("Digest realm=\"x\"", response.getHeader("www-authenticate"));
+        assertTrue(response.getHeader("X-FOLDED").startsWith("a") && response.getHeader("x-folded").endsWith("b"));
+        assertNull(response.getHeader("session"));
+        assertEquals(-1, response.getHeaderLong("content-length", -1));
+        assertEquals("", response.getBody());
+        assertEquals(ResponseParser.NEED_MORE, parser.next());
+    }
+
+    @Test
+    public void acceptsBareLineFeeds() throws IOException {
+        ResponseParser parser = parse("\r\nRTSP/1.0 200 OK\nCSeq: 1\nContent-Length: 2\n\nok");
+        assertEquals(ResponseParser.RESPONSE, parser.next());
+        assertEquals(200, parser.getResponse().status);
+        assertEquals("ok", parser.getResponse().getBody());
+    }
+
+    @Test
+    public void skipsInterleavedPackets() throws IOException {
+        ResponseParser parser = parse("$\u0001\u0000\u0003abcRTSP/1.0 200 OK\r\nCSeq: 2\r\n\r\n");
+        assertEquals(ResponseParser.INTERLEAVED, parser.next());
+        assertEquals(1, parser.getChannel());
+        assertEquals(3, parser.getPacketLength());
+        assertEquals('a', parser.getBuffer()[parser.getPacketOffset()]);
+        assertEquals(ResponseParser.RESPONSE, parser.next());
+        assertEquals(2, parser.getResponse().getHeaderLong("CSeq", -1));
+    }
+
+    /** Servers may end a response with extra empty lines, an interleaved packet can follow them. */
+    @Test
+    public void skipsEmptyLinesBeforeInterleavedPackets() throws IOException {
+        ResponseParser parser = parse("RTSP/1.0 200 OK\r\nCSeq: 1\r\n\r\n\r\n\r\n$\u0000\u0000\u0002ab\r\n$\u0001\u0000\u0000\n");
+        assertEquals(ResponseParser.RESPONSE, parser.next());
+        assertEquals(ResponseParser.INTERLEAVED, parser.next());
+        assertEquals(0, parser.getChannel());
+        assertEquals(2, parser.getPacketLength());
+        assertEquals(ResponseParser.INTERLEAVED, parser.next());
+        assertEquals(1, parser.getChannel());
+        assertEquals(0, parser.getPacketLength());
+        assertEquals(ResponseParser.NEED_MORE, parser.next());
+    }
+
+    @Test
+    public void rejectsInvalidContentLengths() throws IOException {
+        String[] lengths = {"4294967297", "-1", "1x", "", "65537", "99999999999999999999", "9223372036854775808"};
+        for (String length : lengths) {
+            try {
+                parse("RTSP/1.0 200 OK\r\nContent-Length: " + length + "\r\n\r\n").next();
+                fail("Content-Length: " + length);
+            } catch (IOException expected) {}
+        }
+    }
+
+    @Test
+    public void rejectsInvalidStatusLines() throws IOException {
+        String[] lines = {"HTTP/1.0 200 OK", "RTSP/1.0 20 OK", "RTSP/1.0 2000 OK", "RTSP/1.0", "RTSP/1.0 abc OK"};
+        for (String line : lines) {
+            try {
+                parse(line + "\r\nCSeq: 1\r\n\r\n").next();
+                fail(line);
+            } catch (IOException expected) {}
+        }
+    }
+
+    @Test
+    public void rejectsMessagesTooLarge() throws IOException {
+        ResponseParser parser = new ResponseParser(64);
+        byte[] header = bytes("RTSP/1.0 200 OK\r\nX: ");
+        byte[] filler = new byte[1024];
+        Arrays.fill(filler, (byte) 'a');
+        parser.feed(header, 0, header.length);
+        try {
+            for (int i=0;i<ResponseParser.MAX_MESSAGE_SIZE/filler.length+1;i++) {
+                parser.feed(filler, 0, filler.length);
+                assertEquals(ResponseParser.NEED_MORE, parser.next());
+            }
+            fail();
+        } catch (IOException expected) {}
+    }
+
+    /** Random messages are split at random places, they must be parsed the same way. */
+    @Test
+    public void parsesMessagesSplitAnywhere() throws IOException {
+        Random random = new Random(42);
+        for (int iteration=0;iteration<5000;iteration++) {
+            List<String> expected = new ArrayList<String>();
+            byte[] data = randomMessages(random, expected);
+            ResponseParser parser = new ResponseParser(16 + random.nextInt(256));
+            List<String> parsed = new ArrayList<String>();
+            for (int offset=0;offset<data.length;) {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(random.nextBoolean() ? 8 : 4096));
+                parser.feed(data, offset, length);
+                offset += length;
+                collect(parser, parsed);
+            }
+            assertEquals("Iteration " + iteration, expected, parsed);
+        }
+    }
+
+    /** Nothing may be returned before the last byte of a message, the buffer has to grow and shift many times. */
+    @Test
+    public void parsesMessagesFedOneByteAtATime() throws IOException {
+        String[] messages = {
+                "\r\nRTSP/1.0 200 OK\r\nCSeq: 7\r\nSession: 1234\r\nX-Folded: a\r\n b\r\nContent-Length: 5\r\n\r\nhello",
+                "$\u0002\u0000\u0004abcd",
+                "\r\nRTSP/1.0 454 Session Not Found\nCSeq: 8\n\n"};
+        int[] ends = new int[messages.length];
+        StringBuilder all = new StringBuilder();
+        for (int i=0;i<messages.length;i++) ends[i] = all.append(messages[i]).length();
+        byte[] data = bytes(all.toString());
+        ResponseParser parser = new ResponseParser(16);
+        List<String> parsed = new ArrayList<String>();
+        for (int i=0, end=0;i<data.length;i++) {
+            parser.feed(data, i, 1);
+            collect(parser, parsed);
+            if (end < ends.length && i + 1 == ends[end]) end++;
+            assertEquals("Byte " + i, end, parsed.size());
+        }
+        assertEquals(Arrays.asList("200,7,1234,hello", "$2,4", "454,8,null,"), parsed);
+
+        Random random = new Random(3);
+        for (int iteration=0;iteration<200;iteration++) {
+            List<String> expected = new ArrayList<String>();
+            data = randomMessages(random, expected);
+            parser = new ResponseParser(16);
+            parsed = new ArrayList<String>();
+            for (int i=0;i<data.length;i++) {
+                parser.feed(data, i, 1);
+                collect(parser, parsed);
+            }
+            assertEquals("Iteration " + iteration, expected, parsed);
+        }
+    }
+
+    /** Corrupted messages may be rejected with an IOException, but nothing else may go wrong. */
+    @Test
+    public void survivesCorruptedMessages() throws IOException {
+        Random random = new Random(7);
+        for (int iteration=0;iteration<5000;iteration++) {
+            byte[] data = randomMessages(random, new ArrayList<String>());
+            for (int i=random.nextInt(8);i>=0;i--) {
+                data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+            ResponseParser parser = new ResponseParser(16 + random.nextInt(256));
+            try {
+                for (int offset=0;offset<data.length;) {
+                    int length = Math.min(data.length - offset, 1 + random.nextInt(64));
+                    parser.feed(data, offset, length);
+                    offset += length;
+                    collect(parser, new ArrayList<String>());
+                }
+            } catch (IOException expected) {}
+        }
+    }
+
+    private static void collect(ResponseParser parser, List<String> parsed) throws IOException {
+        int type;
+        while ((type = parser.next()) != ResponseParser.NEED_MORE) {
+            if (type == ResponseParser.INTERLEAVED) {
+                parsed.add("$" + parser.getChannel() + "," + parser.getPacketLength());
+            } else {
+                RtspClient.Response response = parser.getResponse();
+                parsed.add(response.status + "," + response.getHeaderLong("cseq", -1) + "," + response.getHeader("session") + "," + response.getBody());
+            }
+        }
+    }
+
+    /** Writes a few responses and interleaved packets, and what should be parsed from them. */
+    private static byte[] randomMessages(Random random, List<String> expected) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int i=random.nextInt(6);i>=0;i--) {
+            if (random.nextInt(4) == 0) output.write(bytes(random.nextBoolean() ? "\r\n" : "\r\n\r\n"));
+            if (random.nextInt(3) == 0) {
+                int length = random.nextInt(random.nextInt(10) == 0 ? 20000 : 200), channel = random.nextInt(4);
+                output.write('$');
+                output.write(channel);
+                output.write(length >> 8);
+                output.write(length);
+                for (int j=0;j<length;j++) output.write(random.nextInt(256));
+                expected.add("$" + channel + "," + length);
+            } else {
+                int status = 200 + random.nextInt(300), cseq = random.nextInt(100000);
+                String session = random.nextBoolean() ? Integer.toString(random.nextInt(1000000)) : null;
+                char[] body = new char[random.nextInt(4) == 0 ? random.nextInt(random.nextInt(10) == 0 ? 60000 : 300) : 0];
+                Arrays.fill(body, 'x');
+                StringBuilder message = new StringBuilder("RTSP/1.0 " + status + " Reason\r\n");
+                message.append(random.nextBoolean() ? "CSeq: " : "cseq:").append(cseq).append("\r\n");
+                if (session != null) message.append("Session: ").append(session).append(" \r\n");
+                for (int j=random.nextInt(20);j>0;j--) message.append("X-Header-").append(j).append(": value ").append(j).append("\r\n");
+                if (body.length > 0) {
+                    message.append("Content-Type: text/plain\r\n");
+                    message.append(random.nextBoolean() ? "Content-Length: " : "content-LENGTH:\t").append(body.length).append("\r\n");
+                }
+                message.append("\r\n").append(body);
+                output.write(bytes(message.toString()));
+                expected.add(status + "," + cseq + "," + session + "," + new String(body));
+            }
+        }
+        return output.toByteArray();
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.metrics.StreamMetrics;
+import net.majorkernelpanic.streaming.rtcp.ReceiverStatistics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RtspClientTest {
+
+    /** A track that only records what the client tells it. */
+    private static class FakeStream implements Stream {
+        private final String mDescription;
+        int[] destinationPorts = {5000, 5001};
+        OutputStream outputStream = null;
+        byte channel = -1;
+
+        FakeStream(String description) {
+            mDescription = description;
+        }
+
+        public String getSessionDescription() {
+            return mDescription;
+        }
+
+        public void configure() {}
+        public void start() {}
+        public void stop() {}
+        public void setTimeToLive(int ttl) {}
+        public void setDestinationAddress(InetAddress dest) {}
+
+        public void setDestinationPorts(int dport) {
+            setDestinationPorts(dport, dport + 1);
+        }
+
+        public void setDestinationPorts(int rtpPort, int rtcpPort) {
+            destinationPorts = new int[] {rtpPort, rtcpPort};
+        }
+
+        public void setOutputStream(OutputStream stream, byte channelIdentifier) {
+            outputStream = stream;
+            channel = channelIdentifier;
+        }
+
+        public int[] getLocalPorts() {
+            return new int[] {6000, 6001};
+        }
+
+        public int[] getDestinationPorts() {
+            return destinationPorts;
+        }
+
+        public int getSSRC() {
+            return 0;
+        }
+
+        public long getBitrate() {
+            return 0;
+        }
+
+        public ReceiverStatistics getReceiverStatistics() {
+            return null;
+        }
+
+        public StreamMetrics getMetrics() {
+            return null;
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /** A session of an audio and a video track that does not touch the camera. */
+    private static class FakeSession extends Session {
+        final FakeStream audio = new FakeStream("m=audio 5000 RTP/AVP 96\r\na=rtpmap:96 mpeg4-generic/44100\r\n");
+        final FakeStream video = new FakeStream("m=video 5002 RTP/AVPF 96\r\na=rtpmap:96 H264/90000\r\na=rtcp-fb:96 nack\r\n");
+        volatile boolean started = false, stopped = false;
+
+        @Override
+        public Stream getTrack(int id) {
+            return id == 0 ? audio : video;
+        }
+
+        @Override
+        public String getSessionDescription() {
+            return "v=0\r\ns=Unnamed\r\nt=0 0\r\n" + audio.getSessionDescription() + "a=control:trackID=0\r\n" +
+                    video.getSessionDescription() + "a=control:trackID=1\r\n";
+        }
+
+        @Override
+        public void syncConfigure() {}
+
+        @Override
+        public void syncStart() {
+            started = true;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    private static class Request {
+        String method, uri, body;
+        long cseq;
+        Map<String, String> headers = new HashMap<String, String>();
+    }
+
+    /**
+     * Answers the requests of one client and records them. The SETUP requests are only answered
+     * once they have all been received, in the reverse order.
+     */
+    private static class Server extends Thread {
+        private static final Pattern TRACK = Pattern.compile("trackID=(\\d+)");
+
+        private final ServerSocket mServer;
+        private final int mTracks;
+        private final boolean mAuthentication;
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final List<Request> setups = new ArrayList<Request>();
+        volatile Request announce;
+        volatile Exception error;
+
+        Server(int tracks, boolean authentication) throws IOException {
+            mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mServer.setSoTimeout(10000);
+            mTracks = tracks;
+            mAuthentication = authentication;
+            start();
+        }
+
+        int getPort() {
+            return mServer.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = mServer.accept();
+                // A client that waits for a response before sending the next SETUP makes the test fail
+                socket.setSoTimeout(5000);
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                OutputStream output = socket.getOutputStream();
+                Request request;
+                while ((request = read(input)) != null) {
+                    requests.add(request.method + " " + request.cseq);
+                    // The client may close the connection before reading the last response
+                    if (request.method.equals("TEARDOWN")) break;
+                    if (request.method.equals("ANNOUNCE")) {
+                        announce = request;
+                        if (mAuthentication && !request.headers.containsKey("authorization")) {
+                            reply(output, request, "401 Unauthorized", "WWW-Authenticate: Digest realm=\"test\", nonce=\"0a1b2c3d\"\r\n");
+                        } else {
+                            reply(output, request, "200 OK", "");
+                        }
+                    } else if (request.method.equals("SETUP")) {
+                        setups.add(request);
+                        if (setups.size() < mTracks) continue;
+                        for (int i=setups.size()-1;i>=0;i--) {
+                            Request setup = setups.get(i);
+                            Matcher m = TRACK.matcher(setup.uri);
+                            m.find();
+                            int port = 7000 + 2 * Integer.parseInt(m.group(1));
+                            reply(output, setup, "200 OK", "Transport: " + setup.headers.get("transport") + ";server_port=" + port + "-" + (port + 1) + "\r\n");
+                        }
+                    } else {
+                        reply(output, request, "200 OK", "");
+                    }
+                }
+                socket.close();
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                try {
+                    mServer.close();
+                } catch (IOException ignore) {}
+            }
+        }
+
+        private static void reply(OutputStream output, Request request, String status, String headers) throws IOException {
+            output.write(("RTSP/1.0 " + status + "\r\nCSeq: " + request.cseq + "\r\nSession: 902878;timeout=60\r\n" + headers + "\r\n").getBytes("ISO-8859-1"));
+            output.flush();
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) return line.size() == 0 ? null : line.toString("ISO-8859-1");
+                if (c != '\r') line.write(c);
+            }
+            return line.toString("ISO-8859-1");
+        }
+
+        private static Request read(InputStream input) throws IOException {
+            String line = readLine(input);
+            if (line == null) return null;
+            Request request = new Request();
+            String[] parts = line.split(" ");
+            request.method = parts[0];
+            request.uri = parts[1];
+            while ((line = readLine(input)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            request.cseq = Long.parseLong(request.headers.get("cseq"));
+            byte[] body = new byte[request.headers.containsKey("content-length") ? Integer.parseInt(request.headers.get("content-length")) : 0];
+            for (int n=0;n<body.length;) n += Math.max(0, input.read(body, n, body.length - n));
+            request.body = new String(body, "UTF-8");
+            return request;
+        }
+    }
+
+    private RtspEngine mEngine;
+    private FakeSession mSession;
+
+    @Before
+    public void setUp() throws IOException {
+        mEngine = new RtspEngine();
+        mEngine.start();
+        mSession = new FakeSession();
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+    }
+
+    private RtspClient client(Server server, int transport) {
+        RtspClient client = new RtspClient();
+        client.setEngine(mEngine);
+        client.setServerAddress("127.0.0.1", server.getPort());
+        client.setStreamPath("/live/test");
+        client.setSession(mSession);
+        client.setTransportMode(transport);
+        return client;
+    }
+
+    @Test(timeout = 30000)
+    public void sendsTheSetupsOfAllTheTracksAtOnce() throws Exception {
+        Server server = new Server(2, false);
+        RtspClient client = client(server, RtspClient.TRANSPORT_UDP);
+        assertTrue(client.syncStartStream());
+        assertTrue(mSession.started);
+        assertTrue(client.isStreaming());
+
+        // The ports of the server are given to the tracks
+        assertEquals("[7000, 7001]", Arrays.toString(mSession.audio.destinationPorts));
+        assertEquals("[7002, 7003]", Arrays.toString(mSession.video.destinationPorts));
+        assertEquals("RTP/AVP/UDP;unicast;client_port=5000-5001;mode=receive", server.setups.get(0).headers.get("transport"));
+        assertEquals("RTP/AVPF/UDP;unicast;client_port=5002-5003;mode=receive", server.setups.get(1).headers.get("transport"));
+        assertTrue(server.announce.body.contains("a=rtcp-fb:96 nack"));
+        assertEquals("902878", server.setups.get(0).headers.get("session"));
+
+        client.syncStopStream();
+        assertTrue(mSession.stopped);
+        assertFalse(client.isStreaming());
+        server.join(10000);
+        assertNull(server.error);
+        assertEquals(Arrays.asList("ANNOUNCE 1", "SETUP 2", "SETUP 3", "RECORD 4", "TEARDOWN 5"), server.requests);
+    }
+
+    @Test(timeout = 30000)
+    public void answersTheChallengeOfTheServer() throws Exception {
+        Server server = new Server(2, true);
+        RtspClient client = client(server, RtspClient.TRANSPORT_UDP);
+        client.setCredentials("user", "secret");
+        assertTrue(client.syncStartStream());
+        assertTrue(server.announce.headers.get("authorization").startsWith("Digest username=\"user\",realm=\"test\",nonce=\"0a1b2c3d\",uri=\"rtsp://127.0.0.1:"));
+        assertTrue(server.setups.get(0).headers.get("authorization").startsWith("Digest "));
+
+        client.syncStopStream();
+        server.join(10000);
+        assertNull(server.error);
+        assertEquals(Arrays.asList("ANNOUNCE 1", "ANNOUNCE 2", "SETUP 3", "SETUP 4", "RECORD 5", "TEARDOWN 6"), server.requests);
+    }
+
+    @Test(timeout = 30000)
+    public void interleavesTheTracksOnTheConnection() throws Exception {
+        Server server = new Server(2, false);
+        RtspClient client = client(server, RtspClient.TRANSPORT_TCP);
+        assertTrue(client.syncStartStream());
+
+        assertEquals("RTP/AVP/TCP;interleaved=0-1", server.setups.get(0).headers.get("transport"));
+        // Packets are not sent again over TCP, the RTCP feedback is not announced
+        assertEquals("RTP/AVP/TCP;interleaved=2-3", server.setups.get(1).headers.get("transport"));
+        assertFalse(server.announce.body.contains("AVPF"));
+        assertFalse(server.announce.body.contains("rtcp-fb"));
+        // The tracks write in the control stream of the writer of the connection
+        assertTrue(mSession.audio.outputStream != null && mSession.audio.outputStream == mSession.video.outputStream);
+        assertEquals(0, mSession.audio.channel);
+        assertEquals(2, mSession.video.channel);
+
+        // The TEARDOWN is written by the writer
+        client.syncStopStream();
+        server.join(10000);
+        assertNull(server.error);
+        assertEquals(Arrays.asList("ANNOUNCE 1", "SETUP 2", "SETUP 3", "RECORD 4", "TEARDOWN 5"), server.requests);
+    }
+
+    @Test(timeout = 30000)
+    public void failsWhenTheServerIsGone() throws Exception {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        RtspClient client = new RtspClient();
+        client.setEngine(mEngine);
+        client.setServerAddress("127.0.0.1", port);
+        client.setSession(mSession);
+        assertFalse(client.syncStartStream());
+        assertFalse(mSession.started);
+        assertFalse(client.isStreaming());
+    }
+
+}
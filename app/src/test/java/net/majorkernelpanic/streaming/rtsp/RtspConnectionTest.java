@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RtspConnectionTest {
+
+    /** Records what the connection reports, in order. */
+    private static class Recorder implements RtspConnection.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        public void onConnected(RtspConnection connection) {
+            events.add("connected");
+        }
+
+        public void onClosed(RtspConnection connection, Exception cause) {
+            events.add("closed " + (cause != null));
+        }
+
+        RtspConnection.ResponseHandler handler(final int cseq) {
+            return new RtspConnection.ResponseHandler() {
+                public void onResponse(RtspClient.Response response) {
+                    events.add(cseq + " " + response.status + " " + response.getHeaderLong("cseq", -1) + " " + response.getBody());
+                }
+
+                public void onError(Exception e) {
+                    events.add(cseq + " error");
+                }
+            };
+        }
+
+        String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No event", event);
+            return event;
+        }
+    }
+
+    private RtspEngine mEngine;
+    private ServerSocket mServer;
+    private Recorder mRecorder;
+
+    @Before
+    public void setUp() throws IOException {
+        mEngine = new RtspEngine();
+        mEngine.start();
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mServer.setSoTimeout(5000);
+        mRecorder = new Recorder();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mEngine.stop();
+    }
+
+    private RtspConnection connection() {
+        return new RtspConnection(mEngine, new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getLocalPort()), mRecorder);
+    }
+
+    private static String request(int cseq) {
+        return "OPTIONS * RTSP/1.0\r\nCSeq: " + cseq + "\r\n\r\n";
+    }
+
+    /** Reads what the client wrote until the given number of requests have been received. */
+    private static String readRequests(InputStream input, int count) throws IOException {
+        StringBuilder requests = new StringBuilder();
+        int c;
+        while (count > 0 && (c = input.read()) >= 0) {
+            requests.append((char) c);
+            if (requests.toString().endsWith("\r\n\r\n")) count--;
+        }
+        return requests.toString();
+    }
+
+    private static void write(OutputStream output, String message) throws IOException {
+        output.write(message.getBytes("ISO-8859-1"));
+        output.flush();
+    }
+
+    @Test(timeout = 30000)
+    public void writesTheRequestsSentBeforeTheConnectionInOrder() throws Exception {
+        RtspConnection connection = connection();
+        connection.send(1, request(1), mRecorder.handler(1));
+        connection.send(2, request(2), null);
+        connection.connect();
+        connection.send(3, request(3), mRecorder.handler(3));
+
+        Socket socket = mServer.accept();
+        socket.setSoTimeout(5000);
+        assertEquals(request(1) + request(2) + request(3), readRequests(socket.getInputStream(), 3));
+        assertEquals("connected", mRecorder.next());
+        write(socket.getOutputStream(), "RTSP/1.0 200 OK\r\nCSeq: 1\r\n\r\nRTSP/1.0 200 OK\r\nCSeq: 2\r\n\r\nRTSP/1.0 200 OK\r\nCSeq: 3\r\n\r\n");
+        // The response to the request without handler is dropped
+        assertEquals("1 200 1 ", mRecorder.next());
+        assertEquals("3 200 3 ", mRecorder.next());
+
+        connection.close();
+        assertEquals("closed false", mRecorder.next());
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    /** The responses are matched with the requests by their CSeq, whatever comes in between. */
+    @Test(timeout = 30000)
+    public void matchesTheResponsesByTheirCSeq() throws Exception {
+        RtspConnection connection = connection();
+        connection.connect();
+        for (int cseq=1;cseq<=4;cseq++) connection.send(cseq, request(cseq), mRecorder.handler(cseq));
+
+        Socket socket = mServer.accept();
+        socket.setSoTimeout(5000);
+        // The four requests are written before any response
+        readRequests(socket.getInputStream(), 4);
+        assertEquals("connected", mRecorder.next());
+        OutputStream output = socket.getOutputStream();
+        write(output, "RTSP/1.0 454 Session Not Found\r\nCSeq: 3\r\n\r\n$\u0001\u0000\u0004abcd");
+        assertEquals("3 454 3 ", mRecorder.next());
+        write(output, "RTSP/1.0 200 OK\r\nCSeq: 99\r\n\r\nRTSP/1.0 200 OK\r\nCSeq: 1\r\nContent-Le");
+        // The response that does not match any request is dropped, the next one is only complete with its body
+        assertNull(mRecorder.events.poll(100, TimeUnit.MILLISECONDS));
+        write(output, "ngth: 2\r\n\r\nok");
+        assertEquals("1 200 1 ok", mRecorder.next());
+        write(output, "RTSP/1.0 200 OK\r\nCSeq: 4\r\nContent-Length: 2\r\n\r\nok");
+        assertEquals("4 200 4 ok", mRecorder.next());
+
+        // The request 2 never got its response, its handler is told when the server leaves
+        socket.close();
+        assertEquals("2 error", mRecorder.next());
+        assertEquals("closed true", mRecorder.next());
+        connection.send(5, request(5), mRecorder.handler(5));
+        assertEquals("5 error", mRecorder.next());
+        assertNull(mRecorder.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void failsThePendingRequestsWhenClosed() throws Exception {
+        RtspConnection connection = connection();
+        connection.connect();
+        connection.send(1, request(1), mRecorder.handler(1));
+        connection.send(2, request(2), mRecorder.handler(2));
+        Socket socket = mServer.accept();
+        socket.setSoTimeout(5000);
+        readRequests(socket.getInputStream(), 2);
+        assertEquals("connected", mRecorder.next());
+
+        connection.close();
+        String first = mRecorder.next(), second = mRecorder.next();
+        assertTrue(first + ", " + second, (first + second).equals("1 error2 error") || (first + second).equals("2 error1 error"));
+        assertEquals("closed false", mRecorder.next());
+        socket.close();
+    }
+
+    @Test(timeout = 30000)
+    public void failsWhenTheServerIsGone() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mServer.close();
+        RtspConnection connection = new RtspConnection(mEngine, address, mRecorder);
+        connection.send(1, request(1), mRecorder.handler(1));
+        connection.connect();
+        assertEquals("1 error", mRecorder.next());
+        assertEquals("closed true", mRecorder.next());
+    }
+
+}
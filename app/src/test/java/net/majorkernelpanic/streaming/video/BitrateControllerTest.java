@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Drives a {@link BitrateController} with a fake clock and an emulated uplink: an encoder
+ * that follows the target bit rate, the FIFO of the RtpSocket, and a link of a given capacity.
+ */
+public class BitrateControllerTest {
+
+    private final static int MAX_BITRATE = 2000000, MIN_BITRATE = 100000;
+
+    /** The encoder, the FIFO and the link, advanced 10 ms at a time. */
+    private static class Network {
+
+        final static int PACKET_SIZE = 1200, CAPACITY = 300, TICK = 10;
+
+        final BitrateController controller;
+        final BitrateController.Sample sample = new BitrateController.Sample();
+        long now = 0, reports = 0;
+        int linkBitrate;
+        float loss = 0;
+
+        // Bytes waiting in the FIFO, bytes the encoder could not commit because the FIFO is full
+        long queued = 0, backlog = 0;
+        double linkCredit = 0;
+
+        Network(int linkBitrate) {
+            this.linkBitrate = linkBitrate;
+            controller = new BitrateController(null, null, new VideoQuality(640, 480, 30, MAX_BITRATE));
+            controller.setBitrateRange(MIN_BITRATE, MAX_BITRATE);
+        }
+
+        /** Runs the network for the given time in ms, the controller is updated every 500 ms. */
+        void run(long duration) {
+            for (long end = now + duration; now < end; ) {
+                now += TICK;
+                // The encoder follows the target bit rate, it waits when the FIFO is full
+                backlog += (long) controller.getTargetBitrate() * TICK / 8000;
+                long room = (long) CAPACITY * PACKET_SIZE - queued;
+                long committed = Math.min(backlog, room);
+                backlog = Math.min(backlog - committed, (long) PACKET_SIZE * 10);
+                queued += committed;
+                sample.committedBytes += committed;
+
+                linkCredit += (double) linkBitrate * TICK / 8000;
+                long sent = Math.min(queued, (long) linkCredit);
+                linkCredit = Math.min(linkCredit - sent, PACKET_SIZE * 10);
+                queued -= sent;
+                sample.releasedBytes += sent;
+
+                if (now % 500 == 0) {
+                    sample.queue = (int) ((queued + PACKET_SIZE - 1) / PACKET_SIZE);
+                    sample.capacity = CAPACITY;
+                    sample.reports = reports;
+                    sample.loss = loss;
+                    controller.update(now, sample);
+                }
+            }
+        }
+
+        /** A receiver report comes with the next update. */
+        void report(float loss) {
+            this.loss = loss;
+            reports++;
+        }
+    }
+
+    @Test
+    public void holdsTheMaximumOnAFastLink() {
+        Network network = new Network(10000000);
+        network.run(60000);
+        assertEquals(MAX_BITRATE, network.controller.getTargetBitrate());
+    }
+
+    @Test
+    public void backsOffWithoutReportsWhenTheLinkSlowsDown() {
+        // RTP over RTSP: no receiver report, only the FIFO tells the link is slower
+        Network network = new Network(5000000);
+        network.run(20000);
+        assertEquals(MAX_BITRATE, network.controller.getTargetBitrate());
+
+        network.linkBitrate = 400000;
+        network.run(10000);
+        assertTrue("Target: " + network.controller.getTargetBitrate(), network.controller.getTargetBitrate() <= 400000);
+
+        // The bit rate settles around the capacity of the link, and the FIFO drains
+        network.run(60000);
+        assertTrue("Target: " + network.controller.getTargetBitrate(), network.controller.getTargetBitrate() > 200000);
+        assertTrue("Queued: " + network.queued, network.queued < Network.PACKET_SIZE * Network.CAPACITY / 2);
+    }
+
+    @Test
+    public void recoversWhenTheLinkIsFastAgain() {
+        Network network = new Network(300000);
+        network.run(30000);
+        assertTrue(network.controller.getTargetBitrate() < 400000);
+
+        network.linkBitrate = 5000000;
+        network.run(60000);
+        assertEquals(MAX_BITRATE, network.controller.getTargetBitrate());
+    }
+
+    @Test
+    public void followsTheLossReported() {
+        Network network = new Network(10000000);
+        // Each report of 30% of losses takes 15% off the bit rate
+        for (int i=0;i<20;i++) {
+            network.report(0.3f);
+            network.run(1000);
+        }
+        assertEquals(MIN_BITRATE, network.controller.getTargetBitrate());
+
+        // Between 2% and 10% of losses, the bit rate holds
+        for (int i=0;i<10;i++) {
+            network.report(0.05f);
+            network.run(1000);
+        }
+        assertEquals(MIN_BITRATE, network.controller.getTargetBitrate());
+
+        for (int i=0;i<60;i++) {
+            network.report(0);
+            network.run(1000);
+        }
+        assertEquals(MAX_BITRATE, network.controller.getTargetBitrate());
+    }
+
+}